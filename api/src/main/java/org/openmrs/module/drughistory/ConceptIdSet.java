@@ -0,0 +1,149 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+
+package org.openmrs.module.drughistory;
+
+import org.openmrs.Concept;
+
+import java.util.Arrays;
+import java.util.Collection;
+
+/**
+ * An immutable set of concept ids kept as a sorted int array, used by snapshot generation to track the drugs a person
+ * is on without hashing (or loading) Concept objects. Adding an id that is already there, or removing one that is
+ * not, returns the same instance, so consecutive snapshots with the same drugs share one set; any other change copies
+ * the array once. A person is rarely on more than a handful of drugs, so this is cheaper than a hashed or tree-shaped
+ * structure.
+ */
+public class ConceptIdSet {
+
+	public static final ConceptIdSet EMPTY = new ConceptIdSet(new int[0]);
+
+	// sorted and distinct; never modified once the set is created
+	final int[] ids;
+
+	private Long fingerprint;
+
+	private ConceptIdSet(int[] sortedDistinctIds) {
+		this.ids = sortedDistinctIds;
+	}
+
+	/**
+	 * @param conceptIds the ids, in any order and possibly repeated; the array is not modified
+	 * @return a set of the ids
+	 */
+	public static ConceptIdSet of(int[] conceptIds) {
+		if (conceptIds == null || conceptIds.length == 0) {
+			return EMPTY;
+		}
+		return new ConceptIdSet(DrugSetFingerprint.toSortedConceptIds(conceptIds));
+	}
+
+	/**
+	 * @param drugs the drugs; nulls and concepts without an id are ignored
+	 * @return a set of the drugs' concept ids
+	 */
+	public static ConceptIdSet of(Collection<Concept> drugs) {
+		int[] ids = DrugSetFingerprint.toSortedConceptIds(drugs);
+		return ids.length == 0 ? EMPTY : new ConceptIdSet(ids);
+	}
+
+	/**
+	 * @return this set if it already contains the id, otherwise a new set with the id added
+	 */
+	public ConceptIdSet with(int conceptId) {
+		int i = Arrays.binarySearch(ids, conceptId);
+		if (i >= 0) {
+			return this;
+		}
+		i = -i - 1;
+		int[] added = new int[ids.length + 1];
+		System.arraycopy(ids, 0, added, 0, i);
+		added[i] = conceptId;
+		System.arraycopy(ids, i, added, i + 1, ids.length - i);
+		return new ConceptIdSet(added);
+	}
+
+	/**
+	 * @return this set if it does not contain the id, otherwise a new set without it
+	 */
+	public ConceptIdSet without(int conceptId) {
+		int i = Arrays.binarySearch(ids, conceptId);
+		if (i < 0) {
+			return this;
+		}
+		if (ids.length == 1) {
+			return EMPTY;
+		}
+		int[] removed = new int[ids.length - 1];
+		System.arraycopy(ids, 0, removed, 0, i);
+		System.arraycopy(ids, i + 1, removed, i, ids.length - i - 1);
+		return new ConceptIdSet(removed);
+	}
+
+	public boolean contains(int conceptId) {
+		return Arrays.binarySearch(ids, conceptId) >= 0;
+	}
+
+	public int size() {
+		return ids.length;
+	}
+
+	public boolean isEmpty() {
+		return ids.length == 0;
+	}
+
+	/**
+	 * @param index from 0 to size() - 1
+	 * @return the id at that position, in ascending order
+	 */
+	public int get(int index) {
+		return ids[index];
+	}
+
+	/**
+	 * @return a copy of the ids, in ascending order
+	 */
+	public int[] toArray() {
+		return Arrays.copyOf(ids, ids.length);
+	}
+
+	/**
+	 * @return the {@link DrugSetFingerprint} of the set, computed once per set
+	 */
+	public long getFingerprint() {
+		// racing threads compute the same value, and Long is immutable, so this needs no locking
+		Long f = fingerprint;
+		if (f == null) {
+			f = DrugSetFingerprint.ofSorted(ids);
+			fingerprint = f;
+		}
+		return f;
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		return this == o || o instanceof ConceptIdSet && Arrays.equals(ids, ((ConceptIdSet) o).ids);
+	}
+
+	@Override
+	public int hashCode() {
+		return Arrays.hashCode(ids);
+	}
+
+	@Override
+	public String toString() {
+		return Arrays.toString(ids);
+	}
+}
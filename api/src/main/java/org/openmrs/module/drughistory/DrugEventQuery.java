@@ -0,0 +1,158 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+
+package org.openmrs.module.drughistory;
+
+import org.openmrs.Cohort;
+import org.openmrs.Concept;
+import org.openmrs.Person;
+
+import java.util.Date;
+import java.util.Properties;
+import java.util.Set;
+
+/**
+ * The filters of a drug event query. Fields left null do not restrict the results. Queries setting the same fields
+ * share one compiled HQL statement, so building a query per call is cheap.
+ */
+public class DrugEventQuery {
+
+	private Person person;
+	private Cohort cohort;
+	private Date since;
+	private Date until;
+	private Integer fromPersonId;
+	private Integer toPersonId;
+	private Set<DrugEventType> eventTypes;
+	private Set<Concept> concepts;
+	private Integer limit;
+
+	/**
+	 * Reads the params supported by {@link org.openmrs.module.drughistory.api.DrugEventService#getDrugEvents(Properties)}:
+	 * "person" (a Person), "cohort" (a Cohort), "since" and "until" (inclusive Dates), "fromPersonId"/"toPersonId"
+	 * (an inclusive range of person ids) and "limit" (a Number, the largest number of events to return)
+	 *
+	 * @param params the params, or null for none
+	 * @return the equivalent query
+	 */
+	public static DrugEventQuery fromProperties(Properties params) {
+		DrugEventQuery query = new DrugEventQuery();
+		if (params == null) {
+			return query;
+		}
+		if (params.get("person") instanceof Person) {
+			query.setPerson((Person) params.get("person"));
+		}
+		if (params.get("cohort") instanceof Cohort) {
+			query.setCohort((Cohort) params.get("cohort"));
+		}
+		if (params.get("since") instanceof Date) {
+			query.setSince((Date) params.get("since"));
+		}
+		if (params.get("until") instanceof Date) {
+			query.setUntil((Date) params.get("until"));
+		}
+		if (params.get("fromPersonId") instanceof Number) {
+			query.setFromPersonId(((Number) params.get("fromPersonId")).intValue());
+		}
+		if (params.get("toPersonId") instanceof Number) {
+			query.setToPersonId(((Number) params.get("toPersonId")).intValue());
+		}
+		if (params.get("limit") instanceof Number) {
+			query.setLimit(((Number) params.get("limit")).intValue());
+		}
+		return query;
+	}
+
+	public Person getPerson() {
+		return person;
+	}
+
+	public void setPerson(Person person) {
+		this.person = person;
+	}
+
+	public Cohort getCohort() {
+		return cohort;
+	}
+
+	public void setCohort(Cohort cohort) {
+		this.cohort = cohort;
+	}
+
+	/**
+	 * @return an inclusive lower bound on the date occurred
+	 */
+	public Date getSince() {
+		return since;
+	}
+
+	public void setSince(Date since) {
+		this.since = since;
+	}
+
+	/**
+	 * @return an inclusive upper bound on the date occurred
+	 */
+	public Date getUntil() {
+		return until;
+	}
+
+	public void setUntil(Date until) {
+		this.until = until;
+	}
+
+	public Integer getFromPersonId() {
+		return fromPersonId;
+	}
+
+	public void setFromPersonId(Integer fromPersonId) {
+		this.fromPersonId = fromPersonId;
+	}
+
+	public Integer getToPersonId() {
+		return toPersonId;
+	}
+
+	public void setToPersonId(Integer toPersonId) {
+		this.toPersonId = toPersonId;
+	}
+
+	public Set<DrugEventType> getEventTypes() {
+		return eventTypes;
+	}
+
+	public void setEventTypes(Set<DrugEventType> eventTypes) {
+		this.eventTypes = eventTypes;
+	}
+
+	public Set<Concept> getConcepts() {
+		return concepts;
+	}
+
+	public void setConcepts(Set<Concept> concepts) {
+		this.concepts = concepts;
+	}
+
+	/**
+	 * @return the largest number of events to return, or null for all of them
+	 */
+	public Integer getLimit() {
+		return limit;
+	}
+
+	public void setLimit(Integer limit) {
+		this.limit = limit;
+	}
+}
@@ -0,0 +1,71 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+
+package org.openmrs.module.drughistory;
+
+import java.util.Date;
+
+/**
+ * The columns of a drug event needed to build snapshots, read without loading the DrugEvent or any of its associations.
+ * When streamed with DrugEventService#visitDrugEventRows the same instance is refilled for every row, so visitors must
+ * copy what they want to keep.
+ */
+public class DrugEventRow {
+
+	private Integer personId;
+	private Integer encounterId;
+	private Integer conceptId;
+	private DrugEventType eventType;
+	private Date dateOccurred;
+
+	public Integer getPersonId() {
+		return personId;
+	}
+
+	public void setPersonId(Integer personId) {
+		this.personId = personId;
+	}
+
+	public Integer getEncounterId() {
+		return encounterId;
+	}
+
+	public void setEncounterId(Integer encounterId) {
+		this.encounterId = encounterId;
+	}
+
+	public Integer getConceptId() {
+		return conceptId;
+	}
+
+	public void setConceptId(Integer conceptId) {
+		this.conceptId = conceptId;
+	}
+
+	public DrugEventType getEventType() {
+		return eventType;
+	}
+
+	public void setEventType(DrugEventType eventType) {
+		this.eventType = eventType;
+	}
+
+	public Date getDateOccurred() {
+		return dateOccurred;
+	}
+
+	public void setDateOccurred(Date dateOccurred) {
+		this.dateOccurred = dateOccurred;
+	}
+}
@@ -0,0 +1,65 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+
+package org.openmrs.module.drughistory;
+
+import java.util.Date;
+
+/**
+ * A read-only view of a saved drug event holding plain ids instead of Person, Encounter and Concept references. These
+ * are read with a projection query, so no entities are created, cached in the session or dirty checked for them.
+ */
+public class DrugEventSummary {
+
+	private final Integer drugEventId;
+	private final Integer personId;
+	private final Integer encounterId;
+	private final Integer conceptId;
+	private final DrugEventType eventType;
+	private final Date dateOccurred;
+
+	public DrugEventSummary(Integer drugEventId, Integer personId, Integer encounterId, Integer conceptId,
+	                        DrugEventType eventType, Date dateOccurred) {
+		this.drugEventId = drugEventId;
+		this.personId = personId;
+		this.encounterId = encounterId;
+		this.conceptId = conceptId;
+		this.eventType = eventType;
+		this.dateOccurred = dateOccurred;
+	}
+
+	public Integer getDrugEventId() {
+		return drugEventId;
+	}
+
+	public Integer getPersonId() {
+		return personId;
+	}
+
+	public Integer getEncounterId() {
+		return encounterId;
+	}
+
+	public Integer getConceptId() {
+		return conceptId;
+	}
+
+	public DrugEventType getEventType() {
+		return eventType;
+	}
+
+	public Date getDateOccurred() {
+		return dateOccurred;
+	}
+}
@@ -13,6 +13,7 @@
  */
 package org.openmrs.module.drughistory;
 
+import org.apache.commons.lang.StringUtils;
 import org.openmrs.BaseOpenmrsMetadata;
 import org.openmrs.Concept;
 
@@ -98,8 +99,11 @@ public class DrugEventTrigger extends BaseOpenmrsMetadata implements Serializabl
 		this.customQuery = customQuery;
 	}
 
+	/**
+	 * A blank custom query counts as none, so such a trigger uses the questions and answers like any other
+	 */
 	public boolean hasCustomQuery() {
-		return customQuery != null;
+		return StringUtils.isNotBlank(customQuery);
 	}
 
 	public DrugEventType getEventType() {
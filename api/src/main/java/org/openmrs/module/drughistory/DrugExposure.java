@@ -0,0 +1,91 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+
+package org.openmrs.module.drughistory;
+
+import org.openmrs.BaseOpenmrsObject;
+import org.openmrs.Concept;
+import org.openmrs.Person;
+
+import java.util.Date;
+
+/**
+ * A continuous period during which a person was on a drug, derived from their drug events: it starts with the START
+ * or CONTINUE that made the drug active and ends, exclusively, on the date of the STOP that removed it. The stop date
+ * is null while the drug is still active.
+ */
+public class DrugExposure extends BaseOpenmrsObject {
+
+	private Integer drugExposureId;
+	private Person person;
+	private Concept concept;
+	private Date startDate;
+	private Date stopDate;
+
+	@Override
+	public Integer getId() {
+		return getDrugExposureId();
+	}
+
+	@Override
+	public void setId(Integer id) {
+		setDrugExposureId(id);
+	}
+
+	public Integer getDrugExposureId() {
+		return drugExposureId;
+	}
+
+	public void setDrugExposureId(Integer drugExposureId) {
+		this.drugExposureId = drugExposureId;
+	}
+
+	public Person getPerson() {
+		return person;
+	}
+
+	public void setPerson(Person person) {
+		this.person = person;
+	}
+
+	public Concept getConcept() {
+		return concept;
+	}
+
+	public void setConcept(Concept concept) {
+		this.concept = concept;
+	}
+
+	/**
+	 * @return the first date the drug was active, inclusive
+	 */
+	public Date getStartDate() {
+		return startDate;
+	}
+
+	public void setStartDate(Date startDate) {
+		this.startDate = startDate;
+	}
+
+	/**
+	 * @return the date the drug was stopped, exclusive, or null if it is still active
+	 */
+	public Date getStopDate() {
+		return stopDate;
+	}
+
+	public void setStopDate(Date stopDate) {
+		this.stopDate = stopDate;
+	}
+}
@@ -0,0 +1,63 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+
+package org.openmrs.module.drughistory;
+
+import java.util.Date;
+
+/**
+ * A drug exposure that has not been saved yet, holding plain ids instead of Person and Concept references, so
+ * exposures can be rebuilt without creating entities
+ */
+public class DrugExposureRecord {
+
+	private final Integer personId;
+	private final int conceptId;
+	private final Date startDate;
+	private Date stopDate;
+
+	/**
+	 * @param personId  the person
+	 * @param conceptId the drug
+	 * @param startDate the first date the drug was active
+	 */
+	public DrugExposureRecord(Integer personId, int conceptId, Date startDate) {
+		this.personId = personId;
+		this.conceptId = conceptId;
+		this.startDate = startDate;
+	}
+
+	public Integer getPersonId() {
+		return personId;
+	}
+
+	public int getConceptId() {
+		return conceptId;
+	}
+
+	public Date getStartDate() {
+		return startDate;
+	}
+
+	/**
+	 * @return the date the drug was stopped, exclusive, or null if it is still active
+	 */
+	public Date getStopDate() {
+		return stopDate;
+	}
+
+	public void setStopDate(Date stopDate) {
+		this.stopDate = stopDate;
+	}
+}
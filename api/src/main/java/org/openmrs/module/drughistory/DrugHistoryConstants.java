@@ -0,0 +1,60 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+
+package org.openmrs.module.drughistory;
+
+/**
+ * Constants (mostly global property names) used throughout the module
+ */
+public class DrugHistoryConstants {
+
+	public static final String MODULE_ID = "drughistory";
+
+	/**
+	 * number of triggers processed at the same time by generateAllDrugEvents; defaults to the number of processors
+	 */
+	public static final String GP_EVENT_GENERATION_PARALLELISM = MODULE_ID + ".eventGeneration.parallelism";
+
+	/**
+	 * when true, triggers without a custom query generate their events with a single INSERT ... SELECT in the database
+	 */
+	public static final String GP_EVENT_GENERATION_SERVER_SIDE = MODULE_ID + ".eventGeneration.serverSideInsert";
+
+	/**
+	 * number of person_id ranges processed at the same time when generating snapshots for everyone; 1 keeps the
+	 * generation serial in the caller's transaction
+	 */
+	public static final String GP_SNAPSHOT_GENERATION_PARALLELISM = MODULE_ID + ".snapshotGeneration.parallelism";
+
+	/**
+	 * when true, snapshots are only written for dates on which the set of active drugs changes
+	 */
+	public static final String GP_SNAPSHOT_GENERATION_CHANGES_ONLY = MODULE_ID + ".snapshotGeneration.changesOnly";
+
+	/**
+	 * number of person_id ranges processed at the same time when generating drug exposures for everyone; each range is
+	 * committed on its own
+	 */
+	public static final String GP_EXPOSURE_GENERATION_PARALLELISM = MODULE_ID + ".exposureGeneration.parallelism";
+
+	/**
+	 * the regimen drug sets digest last re-tagged by RetagDrugSnapshotsTask; written by the task
+	 */
+	public static final String GP_RETAGGED_REGIMEN_DIGEST = MODULE_ID + ".retagDrugSnapshots.regimenDigest";
+
+	/**
+	 * largest number of results returned by one call to the keyset-paginated queries; larger requests are capped
+	 */
+	public static final int MAX_PAGE_SIZE = 1000;
+}
@@ -0,0 +1,75 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+
+package org.openmrs.module.drughistory;
+
+import org.apache.commons.lang.StringUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.api.context.Context;
+
+/**
+ * Helper methods shared by the drug history services
+ */
+public class DrugHistoryUtil {
+
+	private static final Log log = LogFactory.getLog(DrugHistoryUtil.class);
+
+	/**
+	 * Reads a positive integer global property, falling back to defaultValue if the property is missing or invalid
+	 *
+	 * @param propertyName the global property to read
+	 * @param defaultValue the value to use if the property is not usable
+	 * @return the configured value or defaultValue
+	 */
+	public static int getPositiveIntegerGlobalProperty(String propertyName, int defaultValue) {
+		String value = Context.getAdministrationService().getGlobalProperty(propertyName);
+		if (StringUtils.isBlank(value)) {
+			return defaultValue;
+		}
+		try {
+			int i = Integer.parseInt(value.trim());
+			if (i > 0) {
+				return i;
+			}
+		} catch (NumberFormatException e) {
+			// fall through to the warning below
+		}
+		log.warn("Ignoring invalid value '" + value + "' for global property " + propertyName);
+		return defaultValue;
+	}
+
+	/**
+	 * Reads a boolean global property, falling back to defaultValue if the property is missing
+	 *
+	 * @param propertyName the global property to read
+	 * @param defaultValue the value to use if the property is not set
+	 * @return the configured value or defaultValue
+	 */
+	public static boolean getBooleanGlobalProperty(String propertyName, boolean defaultValue) {
+		String value = Context.getAdministrationService().getGlobalProperty(propertyName);
+		if (StringUtils.isBlank(value)) {
+			return defaultValue;
+		}
+		return Boolean.parseBoolean(value.trim());
+	}
+
+	/**
+	 * @param pageSize the page size asked for
+	 * @return the page size to use, between 1 and {@link DrugHistoryConstants#MAX_PAGE_SIZE}
+	 */
+	public static int getPageSize(int pageSize) {
+		return Math.max(1, Math.min(pageSize, DrugHistoryConstants.MAX_PAGE_SIZE));
+	}
+}
@@ -0,0 +1,114 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+
+package org.openmrs.module.drughistory;
+
+import org.openmrs.Concept;
+
+import java.util.Arrays;
+import java.util.Collection;
+
+/**
+ * Canonical form of a drug set: its distinct concept ids in ascending order, and a 64-bit FNV-1a hash of them. The
+ * hash is stored with snapshots and regimens (drug_fingerprint) so that finding the ones with exactly a given drug set
+ * is a single index lookup. Equal sets always have the same fingerprint; different sets colliding is possible but very
+ * unlikely, so callers needing certainty compare the sorted ids as well.
+ */
+public class DrugSetFingerprint {
+
+	private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+	private static final long FNV_PRIME = 0x100000001b3L;
+
+	private DrugSetFingerprint() {
+		// static helpers only
+	}
+
+	/**
+	 * @param drugs the drug set; nulls and concepts without an id are ignored
+	 * @return the fingerprint of the set
+	 */
+	public static long of(Collection<Concept> drugs) {
+		return hash(toSortedConceptIds(drugs));
+	}
+
+	/**
+	 * @param conceptIds the concept ids, in any order and possibly repeated; the array is not modified
+	 * @return the fingerprint of the set
+	 */
+	public static long of(int[] conceptIds) {
+		return hash(toSortedConceptIds(conceptIds));
+	}
+
+	/**
+	 * @param sortedConceptIds distinct concept ids in ascending order, e.g. from {@link #toSortedConceptIds(int[])}
+	 * @return the fingerprint of the set
+	 */
+	public static long ofSorted(int[] sortedConceptIds) {
+		return hash(sortedConceptIds);
+	}
+
+	/**
+	 * @param drugs the drug set; nulls and concepts without an id are ignored
+	 * @return the distinct concept ids of the set, in ascending order
+	 */
+	public static int[] toSortedConceptIds(Collection<Concept> drugs) {
+		if (drugs == null) {
+			return new int[0];
+		}
+		int[] ids = new int[drugs.size()];
+		int n = 0;
+		for (Concept c : drugs) {
+			if (c != null && c.getConceptId() != null) {
+				ids[n++] = c.getConceptId();
+			}
+		}
+		return sortDistinct(ids, n);
+	}
+
+	/**
+	 * @param conceptIds the concept ids, in any order and possibly repeated; the array is not modified
+	 * @return the distinct concept ids, in ascending order
+	 */
+	public static int[] toSortedConceptIds(int[] conceptIds) {
+		if (conceptIds == null) {
+			return new int[0];
+		}
+		return sortDistinct(Arrays.copyOf(conceptIds, conceptIds.length), conceptIds.length);
+	}
+
+	private static int[] sortDistinct(int[] ids, int length) {
+		Arrays.sort(ids, 0, length);
+		int n = 0;
+		for (int i = 0; i < length; i++) {
+			if (n == 0 || ids[n - 1] != ids[i]) {
+				ids[n++] = ids[i];
+			}
+		}
+		return n == ids.length ? ids : Arrays.copyOf(ids, n);
+	}
+
+	/**
+	 * FNV-1a over the big-endian bytes of each id
+	 */
+	private static long hash(int[] sortedConceptIds) {
+		long hash = FNV_OFFSET_BASIS;
+		for (int id : sortedConceptIds) {
+			for (int shift = 24; shift >= 0; shift -= 8) {
+				hash ^= (id >>> shift) & 0xff;
+				hash *= FNV_PRIME;
+			}
+		}
+		return hash;
+	}
+}
@@ -29,6 +29,8 @@ public class DrugSnapshot extends BaseOpenmrsObject {
 	private Person person;
 	private Encounter encounter;
 	private Set<Concept> concepts;
+	private Set<Regimen> regimens;
+	private Long drugFingerprint;
 	private Date dateTaken;
 
 	@Override
@@ -79,6 +81,31 @@ public class DrugSnapshot extends BaseOpenmrsObject {
 		this.concepts = concepts;
 	}
 
+	/**
+	 * @return the regimens whose drugs are all contained in this snapshot, as recorded when it was generated or last
+	 *         re-tagged
+	 */
+	public Set<Regimen> getRegimens() {
+		if (regimens == null)
+			regimens = new HashSet<Regimen>();
+		return regimens;
+	}
+
+	public void setRegimens(Set<Regimen> regimens) {
+		this.regimens = regimens;
+	}
+
+	/**
+	 * @return the {@link DrugSetFingerprint} of the concepts as of the last save
+	 */
+	public Long getDrugFingerprint() {
+		return drugFingerprint;
+	}
+
+	public void setDrugFingerprint(Long drugFingerprint) {
+		this.drugFingerprint = drugFingerprint;
+	}
+
 	public Date getDateTaken() {
 		return dateTaken;
 	}
@@ -0,0 +1,164 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+
+package org.openmrs.module.drughistory;
+
+import org.openmrs.Cohort;
+import org.openmrs.Concept;
+import org.openmrs.Person;
+
+import java.util.Collection;
+import java.util.Date;
+import java.util.Properties;
+import java.util.Set;
+
+/**
+ * The filters of a drug snapshot query. Fields left null do not restrict the results. Queries setting the same fields
+ * share one compiled HQL statement, so building a query per call is cheap.
+ */
+public class DrugSnapshotQuery {
+
+	private Person person;
+	private Cohort cohort;
+	private Date since;
+	private Date until;
+	private Set<Concept> drugs;
+	private Collection<Concept> allDrugs;
+	private Collection<Concept> drugSet;
+	private Integer limit;
+
+	/**
+	 * Reads the params supported by
+	 * {@link org.openmrs.module.drughistory.api.DrugSnapshotService#getDrugSnapshots(Properties)}: "person" (a
+	 * Person), "cohort" (a Cohort), "drugs" (a Set of Concepts), "allDrugs" and "drugSet" (Collections of Concepts),
+	 * "since" and "until" (inclusive Dates) and "limit" (a Number, the largest number of snapshots to return)
+	 *
+	 * @param params the params, or null for none
+	 * @return the equivalent query
+	 */
+	@SuppressWarnings("unchecked")
+	public static DrugSnapshotQuery fromProperties(Properties params) {
+		DrugSnapshotQuery query = new DrugSnapshotQuery();
+		if (params == null) {
+			return query;
+		}
+		if (params.get("person") instanceof Person) {
+			query.setPerson((Person) params.get("person"));
+		}
+		if (params.get("cohort") instanceof Cohort) {
+			query.setCohort((Cohort) params.get("cohort"));
+		}
+		if (params.get("drugs") instanceof Set) {
+			query.setDrugs((Set<Concept>) params.get("drugs"));
+		}
+		if (params.get("allDrugs") instanceof Collection) {
+			query.setAllDrugs((Collection<Concept>) params.get("allDrugs"));
+		}
+		if (params.get("drugSet") instanceof Collection) {
+			query.setDrugSet((Collection<Concept>) params.get("drugSet"));
+		}
+		if (params.get("since") instanceof Date) {
+			query.setSince((Date) params.get("since"));
+		}
+		if (params.get("until") instanceof Date) {
+			query.setUntil((Date) params.get("until"));
+		}
+		if (params.get("limit") instanceof Number) {
+			query.setLimit(((Number) params.get("limit")).intValue());
+		}
+		return query;
+	}
+
+	public Person getPerson() {
+		return person;
+	}
+
+	public void setPerson(Person person) {
+		this.person = person;
+	}
+
+	public Cohort getCohort() {
+		return cohort;
+	}
+
+	public void setCohort(Cohort cohort) {
+		this.cohort = cohort;
+	}
+
+	/**
+	 * @return an inclusive lower bound on the date taken
+	 */
+	public Date getSince() {
+		return since;
+	}
+
+	public void setSince(Date since) {
+		this.since = since;
+	}
+
+	/**
+	 * @return an inclusive upper bound on the date taken
+	 */
+	public Date getUntil() {
+		return until;
+	}
+
+	public void setUntil(Date until) {
+		this.until = until;
+	}
+
+	/**
+	 * @return drugs of which the snapshots must contain at least one; ignored when empty
+	 */
+	public Set<Concept> getDrugs() {
+		return drugs;
+	}
+
+	public void setDrugs(Set<Concept> drugs) {
+		this.drugs = drugs;
+	}
+
+	/**
+	 * @return drugs the snapshots must all contain, along with any others; ignored when empty
+	 */
+	public Collection<Concept> getAllDrugs() {
+		return allDrugs;
+	}
+
+	public void setAllDrugs(Collection<Concept> allDrugs) {
+		this.allDrugs = allDrugs;
+	}
+
+	/**
+	 * @return the drugs the snapshots must contain exactly
+	 */
+	public Collection<Concept> getDrugSet() {
+		return drugSet;
+	}
+
+	public void setDrugSet(Collection<Concept> drugSet) {
+		this.drugSet = drugSet;
+	}
+
+	/**
+	 * @return the largest number of snapshots to return, or null for all of them
+	 */
+	public Integer getLimit() {
+		return limit;
+	}
+
+	public void setLimit(Integer limit) {
+		this.limit = limit;
+	}
+}
@@ -0,0 +1,66 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+
+package org.openmrs.module.drughistory;
+
+import java.util.Date;
+
+/**
+ * A read-only view of a saved drug snapshot holding plain ids instead of Person, Encounter and Concept references.
+ * These are read with projection queries, so no entities are created, cached in the session or dirty checked for them.
+ */
+public class DrugSnapshotSummary {
+
+	private final Integer drugSnapshotId;
+	private final Integer personId;
+	private final Integer encounterId;
+	private final Date dateTaken;
+	private final ConceptIdSet conceptIds;
+
+	/**
+	 * @param drugSnapshotId the snapshot
+	 * @param personId       the person
+	 * @param encounterId    the encounter, or null
+	 * @param dateTaken      the date of the snapshot
+	 * @param conceptIds     the drugs active at dateTaken; summaries with the same drugs may share one set
+	 */
+	public DrugSnapshotSummary(Integer drugSnapshotId, Integer personId, Integer encounterId, Date dateTaken,
+	                           ConceptIdSet conceptIds) {
+		this.drugSnapshotId = drugSnapshotId;
+		this.personId = personId;
+		this.encounterId = encounterId;
+		this.dateTaken = dateTaken;
+		this.conceptIds = conceptIds;
+	}
+
+	public Integer getDrugSnapshotId() {
+		return drugSnapshotId;
+	}
+
+	public Integer getPersonId() {
+		return personId;
+	}
+
+	public Integer getEncounterId() {
+		return encounterId;
+	}
+
+	public Date getDateTaken() {
+		return dateTaken;
+	}
+
+	public ConceptIdSet getConceptIds() {
+		return conceptIds;
+	}
+}
@@ -0,0 +1,130 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+
+package org.openmrs.module.drughistory;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Outcome of a generation run split into units of work (e.g. one per trigger), recording how many rows each unit
+ * produced, how long it took and whether it failed
+ */
+public class GenerationSummary implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	private final List<Entry> entries = new ArrayList<Entry>();
+	private long elapsedMillis;
+
+	public List<Entry> getEntries() {
+		return Collections.unmodifiableList(entries);
+	}
+
+	public void addEntry(Entry entry) {
+		entries.add(entry);
+	}
+
+	public long getElapsedMillis() {
+		return elapsedMillis;
+	}
+
+	public void setElapsedMillis(long elapsedMillis) {
+		this.elapsedMillis = elapsedMillis;
+	}
+
+	public int getTotalRows() {
+		int total = 0;
+		for (Entry e : entries) {
+			total += e.getRows();
+		}
+		return total;
+	}
+
+	public List<Entry> getFailures() {
+		List<Entry> failures = new ArrayList<Entry>();
+		for (Entry e : entries) {
+			if (e.isFailed()) {
+				failures.add(e);
+			}
+		}
+		return failures;
+	}
+
+	public boolean hasFailures() {
+		return !getFailures().isEmpty();
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		sb.append(entries.size()).append(" unit(s), ").append(getTotalRows()).append(" row(s) in ")
+				.append(elapsedMillis).append(" ms");
+		for (Entry e : entries) {
+			sb.append("\n  ").append(e);
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Result of a single unit of work
+	 */
+	public static class Entry implements Serializable {
+
+		private static final long serialVersionUID = 1L;
+
+		private final String label;
+		private final int rows;
+		private final long elapsedMillis;
+		private final String error;
+
+		public Entry(String label, int rows, long elapsedMillis) {
+			this(label, rows, elapsedMillis, null);
+		}
+
+		public Entry(String label, int rows, long elapsedMillis, String error) {
+			this.label = label;
+			this.rows = rows;
+			this.elapsedMillis = elapsedMillis;
+			this.error = error;
+		}
+
+		public String getLabel() {
+			return label;
+		}
+
+		public int getRows() {
+			return rows;
+		}
+
+		public long getElapsedMillis() {
+			return elapsedMillis;
+		}
+
+		public String getError() {
+			return error;
+		}
+
+		public boolean isFailed() {
+			return error != null;
+		}
+
+		@Override
+		public String toString() {
+			return label + ": " + (isFailed() ? "FAILED (" + error + ")" : rows + " row(s)") + " in " + elapsedMillis + " ms";
+		}
+	}
+}
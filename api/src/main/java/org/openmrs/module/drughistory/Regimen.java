@@ -16,6 +16,7 @@ package org.openmrs.module.drughistory;
 
 import org.openmrs.BaseOpenmrsMetadata;
 import org.openmrs.Concept;
+import org.openmrs.User;
 
 import java.util.HashSet;
 import java.util.Set;
@@ -31,6 +32,7 @@ public class Regimen extends BaseOpenmrsMetadata {
 	private String line = null;
 	private String age = null;
 	private Set<Concept> drugs = null;
+	private Long drugFingerprint = null;
 
 	public Regimen() {
 		// pass
@@ -44,6 +46,39 @@ public class Regimen extends BaseOpenmrsMetadata {
 		this.setDrugs(drugs);
 	}
 
+	/**
+	 * Creates a detached copy of regimen with its own drug set, so the copy can be changed without affecting the
+	 * original. The creator, changedBy and retiredBy users are copied by id only, since the original may hold lazy
+	 * proxies of a session that is already closed.
+	 *
+	 * @param regimen the regimen to copy
+	 */
+	public Regimen(Regimen regimen) {
+		this.setRegimenId(regimen.getRegimenId());
+		this.setUuid(regimen.getUuid());
+		this.setName(regimen.getName());
+		this.setDescription(regimen.getDescription());
+		this.setLine(regimen.getLine());
+		this.setAge(regimen.getAge());
+		this.setDrugs(new HashSet<Concept>(regimen.getDrugs()));
+		this.setDrugFingerprint(regimen.getDrugFingerprint());
+		this.setCreator(copyOfUser(regimen.getCreator()));
+		this.setDateCreated(regimen.getDateCreated());
+		this.setChangedBy(copyOfUser(regimen.getChangedBy()));
+		this.setDateChanged(regimen.getDateChanged());
+		this.setRetired(regimen.isRetired());
+		this.setRetiredBy(copyOfUser(regimen.getRetiredBy()));
+		this.setDateRetired(regimen.getDateRetired());
+		this.setRetireReason(regimen.getRetireReason());
+	}
+
+	/**
+	 * Reading the id of a Hibernate proxy does not initialize it, so this works whether or not its session is open
+	 */
+	private static User copyOfUser(User user) {
+		return user == null ? null : new User(user.getUserId());
+	}
+
 	@Override
 	public Integer getId() {
 		return getRegimenId();
@@ -92,4 +127,15 @@ public class Regimen extends BaseOpenmrsMetadata {
 	public void addDrug(Concept drug) {
 		this.getDrugs().add(drug);
 	}
+
+	/**
+	 * @return the {@link DrugSetFingerprint} of the drugs as of the last save
+	 */
+	public Long getDrugFingerprint() {
+		return drugFingerprint;
+	}
+
+	public void setDrugFingerprint(Long drugFingerprint) {
+		this.drugFingerprint = drugFingerprint;
+	}
 }
@@ -0,0 +1,128 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+
+package org.openmrs.module.drughistory;
+
+import org.openmrs.Concept;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An immutable snapshot of all regimen definitions, with their drug sets loaded, a {@link RegimenMatcher} built over
+ * them and an index of their {@link DrugSetFingerprint}s. The regimens are detached from any Hibernate session and
+ * shared between threads, so the catalog is for read-only use inside the module; RegimenService hands callers copies,
+ * and a regimen to edit is loaded with RegimenService#getRegimen.
+ */
+public class RegimenCatalog {
+
+	private final long version;
+	private final List<Regimen> regimens;
+	private final List<Regimen> nonRetiredRegimens;
+	private final RegimenMatcher matcher;
+	private final Map<Long, List<Regimen>> regimensByFingerprint = new HashMap<Long, List<Regimen>>();
+	private final long drugSetsDigest;
+
+	public RegimenCatalog(long version, List<Regimen> regimens) {
+		this.version = version;
+		this.matcher = new RegimenMatcher(regimens);
+		this.regimens = matcher.getRegimens();
+
+		List<Regimen> nonRetired = new ArrayList<Regimen>();
+		for (Regimen r : this.regimens) {
+			if (!r.isRetired()) {
+				nonRetired.add(r);
+			}
+		}
+		this.nonRetiredRegimens = Collections.unmodifiableList(nonRetired);
+
+		long digest = 0;
+		for (Regimen r : this.regimens) {
+			Long fingerprint = DrugSetFingerprint.of(r.getDrugs());
+			List<Regimen> sameFingerprint = regimensByFingerprint.get(fingerprint);
+			if (sameFingerprint == null) {
+				sameFingerprint = new ArrayList<Regimen>(1);
+				regimensByFingerprint.put(fingerprint, sameFingerprint);
+			}
+			sameFingerprint.add(r);
+
+			// summed so that the order the regimens were loaded in does not matter
+			long id = r.getRegimenId() == null ? 0 : r.getRegimenId();
+			digest += (fingerprint ^ (id * 0x9E3779B97F4A7C15L)) * 0xC2B2AE3D27D4EB4FL;
+		}
+		this.drugSetsDigest = digest;
+	}
+
+	/**
+	 * @return the catalog version this was built for; it changes whenever a regimen is saved, retired, unretired or
+	 *         purged
+	 */
+	public long getVersion() {
+		return version;
+	}
+
+	/**
+	 * @return a digest of the id and drug set of every regimen. Unlike the version it is the same after a restart as
+	 *         long as the regimens are, so it can be stored to tell whether snapshots need re-tagging since then
+	 */
+	public long getDrugSetsDigest() {
+		return drugSetsDigest;
+	}
+
+	/**
+	 * @param includeRetired whether to include retired regimens
+	 * @return the regimens, in database order
+	 */
+	public List<Regimen> getRegimens(boolean includeRetired) {
+		return includeRetired ? regimens : nonRetiredRegimens;
+	}
+
+	/**
+	 * @param drugs the drug set, e.g. a snapshot's concepts
+	 * @return the regimens, retired or not, whose drugs are all contained in drugs
+	 */
+	public List<Regimen> getMatchingRegimens(Collection<Concept> drugs) {
+		return matcher.getMatchingRegimens(drugs);
+	}
+
+	/**
+	 * @param drugs the drug set
+	 * @return the regimens, retired or not, whose drugs are exactly the given set, in database order
+	 */
+	public List<Regimen> getRegimensWithDrugSet(Collection<Concept> drugs) {
+		int[] conceptIds = DrugSetFingerprint.toSortedConceptIds(drugs);
+		List<Regimen> candidates = regimensByFingerprint.get(DrugSetFingerprint.of(conceptIds));
+		if (candidates == null) {
+			return Collections.emptyList();
+		}
+
+		// rule out fingerprint collisions
+		List<Regimen> matches = new ArrayList<Regimen>(candidates.size());
+		for (Regimen r : candidates) {
+			if (Arrays.equals(conceptIds, DrugSetFingerprint.toSortedConceptIds(r.getDrugs()))) {
+				matches.add(r);
+			}
+		}
+		return matches;
+	}
+
+	public RegimenMatcher getMatcher() {
+		return matcher;
+	}
+}
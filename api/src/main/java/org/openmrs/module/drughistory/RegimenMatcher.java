@@ -0,0 +1,186 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+
+package org.openmrs.module.drughistory;
+
+import org.openmrs.Concept;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Answers "which regimens have all of their drugs in this drug set" without copying sets per regimen. Every drug
+ * concept used by a regimen gets a compact index, each regimen's drugs become a bitset over those indexes, and an
+ * inverted index maps each drug to the regimens containing it. A query only checks the regimens that share a drug
+ * with the drug set (plus those without drugs), comparing bitsets a 64-bit word at a time.
+ * <p/>
+ * Results are the same, and in the same order, as checking each regimen's drugs for containment in the drug set.
+ * Instances are immutable once built and safe to share between threads, as long as the regimens are not modified.
+ */
+public class RegimenMatcher {
+
+	private static final int[] NO_REGIMENS = new int[0];
+
+	private final List<Regimen> regimens;
+
+	// concept id -> compact drug index
+	private final Map<Integer, Integer> drugIndexes = new HashMap<Integer, Integer>();
+
+	// compact drug index -> indexes of the regimens containing the drug, ascending
+	private final int[][] regimensByDrug;
+
+	// regimen index -> bitset of its compact drug indexes
+	private final long[][] regimenDrugs;
+
+	// indexes of regimens without drugs, which match any drug set
+	private final int[] emptyRegimens;
+
+	private final int words;
+
+	public RegimenMatcher(List<Regimen> regimens) {
+		this.regimens = Collections.unmodifiableList(new ArrayList<Regimen>(regimens));
+
+		for (Regimen r : this.regimens) {
+			for (Concept c : r.getDrugs()) {
+				if (c != null && !drugIndexes.containsKey(c.getConceptId())) {
+					drugIndexes.put(c.getConceptId(), drugIndexes.size());
+				}
+			}
+		}
+		words = (drugIndexes.size() + 63) >>> 6;
+
+		List<List<Integer>> postings = new ArrayList<List<Integer>>(drugIndexes.size());
+		for (int i = 0; i < drugIndexes.size(); i++) {
+			postings.add(new ArrayList<Integer>());
+		}
+		List<Integer> empty = new ArrayList<Integer>();
+
+		regimenDrugs = new long[this.regimens.size()][];
+		for (int r = 0; r < this.regimens.size(); r++) {
+			long[] bits = new long[words];
+			boolean hasDrugs = false;
+			for (Concept c : this.regimens.get(r).getDrugs()) {
+				if (c == null) {
+					continue;
+				}
+				int drug = drugIndexes.get(c.getConceptId());
+				if ((bits[drug >>> 6] & (1L << drug)) == 0) {
+					bits[drug >>> 6] |= 1L << drug;
+					postings.get(drug).add(r);
+				}
+				hasDrugs = true;
+			}
+			regimenDrugs[r] = bits;
+			if (!hasDrugs) {
+				empty.add(r);
+			}
+		}
+
+		regimensByDrug = new int[postings.size()][];
+		for (int i = 0; i < postings.size(); i++) {
+			regimensByDrug[i] = toArray(postings.get(i));
+		}
+		emptyRegimens = toArray(empty);
+	}
+
+	/**
+	 * @return the regimens this matcher was built from, in their original order
+	 */
+	public List<Regimen> getRegimens() {
+		return regimens;
+	}
+
+	/**
+	 * @param drugs the drug set, e.g. a snapshot's concepts
+	 * @return the regimens whose drugs are all contained in drugs, in their original order
+	 */
+	public List<Regimen> getMatchingRegimens(Collection<Concept> drugs) {
+		int[] conceptIds = new int[drugs.size()];
+		int n = 0;
+		for (Concept c : drugs) {
+			if (c != null && c.getConceptId() != null) {
+				conceptIds[n++] = c.getConceptId();
+			}
+		}
+		return getMatchingRegimens(conceptIds, n);
+	}
+
+	/**
+	 * @param conceptIds the concept ids of the drug set
+	 * @return the regimens whose drugs are all contained in the drug set, in their original order
+	 */
+	public List<Regimen> getMatchingRegimens(int[] conceptIds) {
+		return getMatchingRegimens(conceptIds, conceptIds.length);
+	}
+
+	/**
+	 * @param conceptIds the drug set, e.g. of a snapshot being generated
+	 * @return the regimens whose drugs are all contained in the drug set, in their original order
+	 */
+	public List<Regimen> getMatchingRegimens(ConceptIdSet conceptIds) {
+		return getMatchingRegimens(conceptIds.ids, conceptIds.ids.length);
+	}
+
+	private List<Regimen> getMatchingRegimens(int[] conceptIds, int length) {
+		long[] query = new long[words];
+		boolean[] candidates = new boolean[regimens.size()];
+
+		for (int r : emptyRegimens) {
+			candidates[r] = true;
+		}
+		for (int i = 0; i < length; i++) {
+			Integer drug = drugIndexes.get(conceptIds[i]);
+			if (drug == null) {
+				// no regimen uses this drug
+				continue;
+			}
+			query[drug >>> 6] |= 1L << drug;
+			for (int r : regimensByDrug[drug]) {
+				candidates[r] = true;
+			}
+		}
+
+		List<Regimen> matches = new ArrayList<Regimen>();
+		for (int r = 0; r < candidates.length; r++) {
+			if (candidates[r] && isContained(regimenDrugs[r], query)) {
+				matches.add(regimens.get(r));
+			}
+		}
+		return matches;
+	}
+
+	private static boolean isContained(long[] regimen, long[] query) {
+		for (int w = 0; w < regimen.length; w++) {
+			if ((regimen[w] & ~query[w]) != 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static int[] toArray(List<Integer> list) {
+		if (list.isEmpty()) {
+			return NO_REGIMENS;
+		}
+		int[] a = new int[list.size()];
+		for (int i = 0; i < a.length; i++) {
+			a[i] = list.get(i);
+		}
+		return a;
+	}
+}
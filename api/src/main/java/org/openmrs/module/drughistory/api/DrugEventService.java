@@ -16,7 +16,11 @@ package org.openmrs.module.drughistory.api;
 import org.openmrs.Person;
 import org.openmrs.api.OpenmrsService;
 import org.openmrs.module.drughistory.DrugEvent;
+import org.openmrs.module.drughistory.DrugEventQuery;
+import org.openmrs.module.drughistory.DrugEventRow;
+import org.openmrs.module.drughistory.DrugEventSummary;
 import org.openmrs.module.drughistory.DrugEventTrigger;
+import org.openmrs.module.drughistory.GenerationSummary;
 import org.springframework.transaction.annotation.Transactional;
 
 import java.util.Date;
@@ -32,20 +36,66 @@ public interface DrugEventService extends OpenmrsService {
 	 * If date is null DrugEvent will be generates for the entire period of system existence.
 	 *
 	 * @param sinceWhen Date from which to calculate drug events
+	 * @return a summary of the rows generated by each trigger
 	 * @throws IllegalArgumentException
 	 * @should throw IllegalArgumentException if sinceWhen is greater than today.
 	 */
 	@Transactional(readOnly = false)
-	void generateAllDrugEvents(Date sinceWhen) throws IllegalArgumentException;
+	GenerationSummary generateAllDrugEvents(Date sinceWhen) throws IllegalArgumentException;
 
 	/**
-	 * Generate drug  events for a given a patient from a given date up to now.
+	 * Generate drug  events for a given a patient from a given date up to now, using every non-retired trigger.
+	 * Triggers are processed in parallel as configured by the
+	 * {@link org.openmrs.module.drughistory.DrugHistoryConstants#GP_EVENT_GENERATION_PARALLELISM} global property.
 	 *
 	 * @param person
 	 * @param sinceWhen
+	 * @return a summary of the rows generated by each trigger
 	 */
 	@Transactional(readOnly = false)
-	void generateAllDrugEvents(Person person, Date sinceWhen);
+	GenerationSummary generateAllDrugEvents(Person person, Date sinceWhen);
+
+	/**
+	 * Generate drug events for a given patient (or everyone if null) from a given date up to now, using every
+	 * non-retired trigger. Each trigger runs on one of at most parallelism worker threads, in its own session and
+	 * transaction, so a failing trigger does not undo the work of the others.
+	 *
+	 * @param person    the person to generate events for, or null for everyone
+	 * @param sinceWhen Date from which to calculate drug events, or null for all time
+	 * @param parallelism maximum number of triggers processed at the same time
+	 * @return a summary of the rows generated by each trigger, including failures
+	 * @throws IllegalArgumentException
+	 */
+	@Transactional(readOnly = false)
+	GenerationSummary generateAllDrugEvents(Person person, Date sinceWhen, int parallelism) throws IllegalArgumentException;
+
+	/**
+	 * Generates drug events only for the obs added since the previous incremental run, using every non-retired
+	 * trigger without a custom query. Each trigger keeps a checkpoint (the highest obs_id it has processed) that is
+	 * advanced in the same transaction as the events it generated, so a failed run is simply retried next time. The
+	 * first incremental run of a trigger processes all obs. Obs just below the checkpoint are read again, so obs whose
+	 * transaction committed after the previous run are not missed; events that already exist are not duplicated.
+	 *
+	 * @return a summary of the rows generated by each trigger
+	 */
+	@Transactional(readOnly = false)
+	GenerationSummary generateNewDrugEvents();
+
+	/**
+	 * Same as {@link #generateNewDrugEvents()}, with at most parallelism triggers processed at the same time
+	 *
+	 * @param parallelism maximum number of triggers processed at the same time
+	 * @return a summary of the rows generated by each trigger, including failures
+	 */
+	@Transactional(readOnly = false)
+	GenerationSummary generateNewDrugEvents(int parallelism);
+
+	/**
+	 * @param trigger
+	 * @return the highest obs_id processed by incremental runs of the trigger, or null if it never ran incrementally
+	 */
+	@Transactional(readOnly = true)
+	Integer getDrugEventCheckpoint(DrugEventTrigger trigger);
 
 	/**
 	 * Generate drug events from a trigger
@@ -58,6 +108,8 @@ public interface DrugEventService extends OpenmrsService {
 	 * @should generate drug events with given concept question
 	 * @should generate drug events with obs datetime later than or equal to sinceWhen
 	 * @should fail when trigger event type is unspecified
+	 * @should generate the same events server-side as client-side
+	 * @should not duplicate events that already exist
 	 */
 	@Transactional(readOnly = false)
 	void generateDrugEventsFromTrigger(DrugEventTrigger trigger, Date sinceWhen) throws IllegalArgumentException;
@@ -85,12 +137,87 @@ public interface DrugEventService extends OpenmrsService {
 	List<DrugEvent> getAllDrugEvents(Date sinceWhen) throws IllegalArgumentException;
 
 	/**
+	 * Supported params: "person" (a Person), "since" (a Date), "fromPersonId"/"toPersonId" (an inclusive range of
+	 * person ids) and "limit" (a Number, the largest number of events to return). The result is otherwise not bounded;
+	 * use {@link #getDrugEventPage(Properties, DrugEvent, int)} or
+	 * {@link #visitDrugEvents(Properties, ResultVisitor)} when params may match many events.
 	 */
 	@Transactional(readOnly = true)
 	List<DrugEvent> getDrugEvents(Properties params) throws IllegalArgumentException;
 
 	/**
-	 * purges all drug events
+	 * @param query the filters; queries setting the same fields reuse one compiled statement
+	 * @return the drug events matching query, ordered by date occurred and id
+	 * @should return events matching every field set on the query
+	 */
+	@Transactional(readOnly = true)
+	List<DrugEvent> getDrugEvents(DrugEventQuery query);
+
+	/**
+	 * Reads the same events as {@link #getDrugEvents(DrugEventQuery)} as flat, read-only summaries holding ids rather
+	 * than entities, for timelines and exports. Changes not yet flushed in the current session are not seen.
+	 *
+	 * @param query the filters
+	 * @return summaries of the drug events matching query, ordered by date occurred and id
+	 * @should return summaries of the events matching the query
+	 */
+	@Transactional(readOnly = true)
+	List<DrugEventSummary> getDrugEventSummaries(DrugEventQuery query);
+
+	/**
+	 * Reads the drug events matching params (see {@link #getDrugEvents(Properties)}) a page at a time, ordered by date
+	 * occurred and id. Pass the last event of a page to get the next one.
+	 *
+	 * @param params   the query parameters
+	 * @param after    the last event of the previous page, or null for the first page
+	 * @param pageSize the number of events per page, at most
+	 *                 {@link org.openmrs.module.drughistory.DrugHistoryConstants#MAX_PAGE_SIZE}; a smaller "limit" in
+	 *                 params wins
+	 * @return the next page of events; fewer than pageSize once the last page is reached
+	 * @should return the events after the given one ordered by date occurred and id
+	 * @should cap the page size
+	 * @should not return more events than the limit in params
+	 */
+	@Transactional(readOnly = true)
+	List<DrugEvent> getDrugEventPage(Properties params, DrugEvent after, int pageSize);
+
+	/**
+	 * Streams the drug events matching params (see {@link #getDrugEvents(Properties)}) to visitor, ordered by person
+	 * and then by date occurred, without loading them all into memory. Each event is detached from the session as soon
+	 * as the visitor returns, so changes the visitor makes to it are discarded unless they are saved and flushed (e.g.
+	 * with {@link org.openmrs.api.context.Context#flushSession()}) before it returns.
+	 *
+	 * @param params  the query parameters
+	 * @param visitor receives each event; returning false stops the query
+	 * @should visit events ordered by person and date occurred
+	 */
+	@Transactional(readOnly = true)
+	void visitDrugEvents(Properties params, ResultVisitor<DrugEvent> visitor);
+
+	/**
+	 * Streams the drug events matching params in the same order as {@link #visitDrugEvents(Properties, ResultVisitor)},
+	 * reading only their ids, type and date. The same {@link DrugEventRow} instance is refilled for every event.
+	 *
+	 * @param params  the query parameters
+	 * @param visitor receives each row; returning false stops the query
+	 * @should visit rows ordered by person and date occurred
+	 */
+	@Transactional(readOnly = true)
+	void visitDrugEventRows(Properties params, ResultVisitor<DrugEventRow> visitor);
+
+	/**
+	 * @param sinceWhen only consider events occurring on or after this date, or null for all time
+	 * @return the distinct ids of the people with drug events, in ascending order
+	 * @should return the distinct ids of people with events since the date in ascending order
+	 */
+	@Transactional(readOnly = true)
+	List<Integer> getDrugEventPersonIds(Date sinceWhen);
+
+	/**
+	 * purges all drug events, along with the checkpoints of incremental generation. This also purges every drug
+	 * exposure, by calling {@link DrugExposureService#purgeAllDrugExposures()}, since exposures are built from the
+	 * events and would otherwise outlive them. Drug snapshots are left alone.
+	 * @should purge the drug exposures too
 	 */
 	@Transactional(readOnly = false)
 	void purgeAllDrugEvents();
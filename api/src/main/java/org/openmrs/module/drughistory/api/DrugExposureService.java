@@ -0,0 +1,85 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+
+package org.openmrs.module.drughistory.api;
+
+import org.openmrs.Concept;
+import org.openmrs.Patient;
+import org.openmrs.Person;
+import org.openmrs.module.drughistory.DrugExposure;
+import org.openmrs.module.drughistory.GenerationSummary;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.util.Date;
+import java.util.List;
+import java.util.Properties;
+
+@Transactional
+public interface DrugExposureService {
+
+	/**
+	 * Rebuilds the drug exposures of a person, or of everyone, from their drug events in a single pass over the events
+	 * ordered by person and date. Rebuilding everyone runs as {@link #generateDrugExposures(int)} with the
+	 * {@link org.openmrs.module.drughistory.DrugHistoryConstants#GP_EXPOSURE_GENERATION_PARALLELISM} global property.
+	 *
+	 * @param patient the person to rebuild, or null for everyone
+	 * @return the number of exposures saved
+	 * @should build exposures from START, CONTINUE and STOP events
+	 * @should replace existing exposures
+	 */
+	@Transactional(readOnly = false)
+	public int generateDrugExposures(Patient patient);
+
+	/**
+	 * Rebuilds the drug exposures of everyone, splitting the people with drug events into ranges of person ids. Each
+	 * range runs on one of at most parallelism worker threads, in its own session and transaction, so a full rebuild
+	 * is committed a range at a time and a failing range does not undo the others. The ranges together cover every
+	 * person id, so exposures of people who no longer have drug events are removed too.
+	 *
+	 * @param parallelism maximum number of ranges processed at the same time
+	 * @return a summary of the exposures generated for each range, including failures
+	 * @should rebuild the exposures of everyone a range of people at a time
+	 */
+	@Transactional(readOnly = false)
+	public GenerationSummary generateDrugExposures(int parallelism);
+
+	/**
+	 * purges the drug exposures of everyone; called whenever all drug events are purged
+	 */
+	@Transactional(readOnly = false)
+	public void purgeAllDrugExposures();
+
+	/**
+	 * Supported params: "person" (a Person), "cohort" (a Cohort), "drugs" (a Set of Concepts), and "since" and
+	 * "until" (Dates; only exposures overlapping that window are returned).
+	 *
+	 * @return the matching exposures, ordered by person and start date
+	 */
+	@Transactional(readOnly = true)
+	public List<DrugExposure> getDrugExposures(Properties params);
+
+	/**
+	 * Works out how long a person was on a drug within a window, from the exposures overlapping it. Exposures that are
+	 * still active count up to until, or up to now if until is null.
+	 *
+	 * @param person the person
+	 * @param drug   the drug
+	 * @param since  the start of the window, or null for no lower bound
+	 * @param until  the end of the window, exclusive, or null for now
+	 * @return the number of days on the drug within the window
+	 * @should add up the days of every exposure within the window
+	 */
+	@Transactional(readOnly = true)
+	public long getDaysOnDrug(Person person, Concept drug, Date since, Date until);
+}
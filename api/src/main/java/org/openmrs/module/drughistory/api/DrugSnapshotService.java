@@ -14,22 +14,55 @@
 
 package org.openmrs.module.drughistory.api;
 
+import org.openmrs.Cohort;
+import org.openmrs.Concept;
 import org.openmrs.Patient;
+import org.openmrs.Person;
+import org.openmrs.module.drughistory.ConceptIdSet;
 import org.openmrs.module.drughistory.DrugSnapshot;
+import org.openmrs.module.drughistory.DrugSnapshotQuery;
+import org.openmrs.module.drughistory.DrugSnapshotSummary;
+import org.openmrs.module.drughistory.GenerationSummary;
+import org.openmrs.module.drughistory.Regimen;
 import org.springframework.transaction.annotation.Transactional;
 
+import java.util.Collection;
 import java.util.Date;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
 
 @Transactional
 public interface DrugSnapshotService {
 
+	/**
+	 * generates drug snapshots for everyone. When the
+	 * {@link org.openmrs.module.drughistory.DrugHistoryConstants#GP_SNAPSHOT_GENERATION_PARALLELISM} global property
+	 * is above 1, this runs as {@link #generateDrugSnapshots(Date, int)}.
+	 */
 	@Transactional(readOnly = false)
 	public void generateDrugSnapshots(Date sinceWhen);
 
 	/**
-	 * generates drug snapshots
+	 * generates drug snapshots for everyone, splitting the people with drug events into ranges of person ids. Each
+	 * range runs on one of at most parallelism worker threads, in its own session and transaction, so a failing range
+	 * does not undo the work of the others. The ranges together cover every person id, so the same snapshots are
+	 * replaced as by {@link #generateDrugSnapshots(Patient, Date)} for everyone.
+	 *
+	 * @param sinceWhen   only use events occurring on or after this date, or null for all time
+	 * @param parallelism maximum number of ranges processed at the same time
+	 * @return a summary of the snapshots generated for each range, including failures
+	 * @should generate the same snapshots as the serial generation
+	 */
+	@Transactional(readOnly = false)
+	public GenerationSummary generateDrugSnapshots(Date sinceWhen, int parallelism);
+
+	/**
+	 * generates drug snapshots, replacing any existing ones taken on or after sinceWhen (all of them if null), and
+	 * records the regimens each snapshot contains. A snapshot is written for every date with drug events, or only for
+	 * the dates on which the active drugs change when the
+	 * {@link org.openmrs.module.drughistory.DrugHistoryConstants#GP_SNAPSHOT_GENERATION_CHANGES_ONLY} global property
+	 * is true.
 	 * @should generate snapshots for everyone if no patient specified
 	 * @should generate snapshots for all time if no sinceWhen specified
 	 * @should generate snapshots for just one patient if specified
@@ -37,10 +70,179 @@ public interface DrugSnapshotService {
 	 * @should add concepts to snapshots based on DrugEventType START
 	 * @should add concepts to snapshots based on DrugEventType CONTINUE
 	 * @should remove concepts from snapshots based on DrugEventType STOP
+	 * @should replace existing snapshots taken on or after sinceWhen
+	 * @should seed snapshots with the concepts of the last snapshot before sinceWhen
+	 * @should tag snapshots with the regimens they contain
+	 * @should only write snapshots for dates on which the active drugs change if changes only is set
 	 */
 	@Transactional(readOnly = false)
 	public void generateDrugSnapshots(Patient patient, Date sinceWhen);
 
+	/**
+	 * Supported params: "person" (a Person), "cohort" (a Cohort), "drugs" (a Set of Concepts the snapshots must contain
+	 * at least one of), "allDrugs" (a Collection of Concepts the snapshots must all contain), "drugSet" (a Collection of
+	 * Concepts the snapshots must contain exactly), "since" and "until" (inclusive bounds on the date taken) and "limit"
+	 * (a Number, the largest number of snapshots to return). Each snapshot is returned once. The result is otherwise
+	 * not bounded; use
+	 * {@link #getDrugSnapshotPage(Properties, DrugSnapshot, int)} or
+	 * {@link #visitDrugSnapshots(Properties, ResultVisitor)} when params may match many snapshots.
+	 * @should return only snapshots with exactly the drugSet drugs
+	 * @should return each snapshot containing any of the drugs once
+	 * @should return only snapshots containing all of the allDrugs drugs
+	 */
 	@Transactional(readOnly = true)
 	public List<DrugSnapshot> getDrugSnapshots(Properties params);
+
+	/**
+	 * @param query the filters; queries setting the same fields reuse one compiled statement
+	 * @return the snapshots matching query, ordered by person, date taken and id
+	 * @should return snapshots matching every field set on the query
+	 */
+	@Transactional(readOnly = true)
+	public List<DrugSnapshot> getDrugSnapshots(DrugSnapshotQuery query);
+
+	/**
+	 * Counts the snapshots {@link #getDrugSnapshots(DrugSnapshotQuery)} would return, without loading them
+	 *
+	 * @param query the filters; the limit is ignored
+	 * @return the number of snapshots matching query
+	 * @should count each matching snapshot once
+	 */
+	@Transactional(readOnly = true)
+	public long getDrugSnapshotCount(DrugSnapshotQuery query);
+
+	/**
+	 * Reads the same snapshots as {@link #getDrugSnapshots(DrugSnapshotQuery)} as flat, read-only summaries holding
+	 * ids rather than entities, for timelines and exports. Changes not yet flushed in the current session are not seen.
+	 *
+	 * @param query the filters
+	 * @return summaries of the snapshots matching query, ordered by person, date taken and id
+	 * @should return summaries of the snapshots matching the query
+	 */
+	@Transactional(readOnly = true)
+	public List<DrugSnapshotSummary> getDrugSnapshotSummaries(DrugSnapshotQuery query);
+
+	/**
+	 * Reads the snapshots matching params (see {@link #getDrugSnapshots(Properties)}) a page at a time, ordered by
+	 * person, date taken and id. Pass the last snapshot of a page to get the next one.
+	 *
+	 * @param params   the query parameters
+	 * @param after    the last snapshot of the previous page, or null for the first page
+	 * @param pageSize the number of snapshots per page, at most
+	 *                 {@link org.openmrs.module.drughistory.DrugHistoryConstants#MAX_PAGE_SIZE}; a smaller "limit" in
+	 *                 params wins
+	 * @return the next page of snapshots; fewer than pageSize once the last page is reached
+	 * @should return the snapshots after the given one ordered by person, date taken and id
+	 * @should not return more snapshots than the limit in params
+	 */
+	@Transactional(readOnly = true)
+	public List<DrugSnapshot> getDrugSnapshotPage(Properties params, DrugSnapshot after, int pageSize);
+
+	/**
+	 * Streams the snapshots matching params (see {@link #getDrugSnapshots(Properties)}) to visitor, ordered by person,
+	 * date taken and id, without loading them all into memory. Each snapshot is detached from the session as soon as
+	 * the visitor returns, so changes the visitor makes to it are discarded unless they are saved and flushed (e.g.
+	 * with {@link org.openmrs.api.context.Context#flushSession()}) before it returns.
+	 *
+	 * @param params  the query parameters
+	 * @param visitor receives each snapshot; returning false stops the query
+	 * @should visit snapshots ordered by person, date taken and id
+	 */
+	@Transactional(readOnly = true)
+	public void visitDrugSnapshots(Properties params, ResultVisitor<DrugSnapshot> visitor);
+
+	/**
+	 * Finds the drugs a person was on at a given date: their latest snapshot taken on or before it. This works whether
+	 * or not snapshots were generated for changes only.
+	 *
+	 * @param person the person
+	 * @param date   the date
+	 * @return the person's latest snapshot on or before date, or null if they have none
+	 * @should return the latest snapshot taken on or before the date
+	 */
+	@Transactional(readOnly = true)
+	public DrugSnapshot getDrugSnapshotOnDate(Person person, Date date);
+
+	/**
+	 * Finds the drugs a person was on at a given date, like {@link #getDrugSnapshotOnDate(Person, Date)}, but reads
+	 * only the concept ids of the snapshot instead of loading it and its concepts
+	 *
+	 * @param person the person
+	 * @param date   the date
+	 * @return the concept ids of the drugs active on date; empty if the person has no snapshot on or before it
+	 * @should return the concept ids of the latest snapshot taken on or before the date
+	 * @should return an empty set if the person has no snapshot on or before the date
+	 */
+	@Transactional(readOnly = true)
+	public ConceptIdSet getActiveDrugs(Person person, Date date);
+
+	/**
+	 * Reads the drugs of many snapshots at once, with one query per batch of snapshots, instead of loading the concepts
+	 * of each snapshot
+	 *
+	 * @param drugSnapshotIds the ids of the snapshots
+	 * @return the concept ids of each snapshot keyed by snapshot id, with an empty set for snapshots without concepts
+	 * @should return the concept ids of every snapshot
+	 */
+	@Transactional(readOnly = true)
+	public Map<Integer, ConceptIdSet> getDrugSnapshotConceptIds(Collection<Integer> drugSnapshotIds);
+
+	/**
+	 * Finds the drugs every member of a cohort was on at a given date, with one query per batch of members
+	 *
+	 * @param cohort the people
+	 * @param date   the date
+	 * @return the concept ids of the drugs active on date keyed by person id, with an empty set for members without a
+	 *         snapshot on or before it
+	 * @should return the active drugs of every cohort member
+	 */
+	@Transactional(readOnly = true)
+	public Map<Integer, ConceptIdSet> getActiveDrugs(Cohort cohort, Date date);
+
+	/**
+	 * Finds the people on all of the given drugs at a given date, i.e. whose latest snapshot taken on or before it
+	 * contains every one of them, with a single query in the database
+	 *
+	 * @param drugs the drugs
+	 * @param date  the date
+	 * @return the people on all of the drugs at that date
+	 * @should return people whose latest snapshot on or before the date contains all of the drugs
+	 * @should throw an APIException if no drugs are given
+	 */
+	@Transactional(readOnly = true)
+	public Cohort getCohortOnDrugs(Collection<Concept> drugs, Date date);
+
+	/**
+	 * Finds the people on a regimen at a given date; see {@link #getCohortOnDrugs(java.util.Collection, java.util.Date)}
+	 *
+	 * @param regimen the regimen
+	 * @param date    the date
+	 * @return the people on all of the regimen's drugs at that date
+	 * @should return people whose latest snapshot on or before the date contains all of the regimen drugs
+	 */
+	@Transactional(readOnly = true)
+	public Cohort getCohortOnRegimen(Regimen regimen, Date date);
+
+	/**
+	 * Finds the people who were at some point on exactly the given combination of drugs, through the drug fingerprint
+	 * index; only the snapshots it finds have their concepts compared with the drugs, to rule out collisions
+	 *
+	 * @param drugs the drug combination
+	 * @return the people with at least one snapshot containing exactly those drugs
+	 * @should return people with a snapshot containing exactly the drugs
+	 * @should not return people whose snapshot only shares the fingerprint of the drugs
+	 */
+	@Transactional(readOnly = true)
+	public Cohort getCohortWithDrugSet(Collection<Concept> drugs);
+
+	/**
+	 * Fills in the drug fingerprint of snapshots saved before fingerprints were recorded. Lookups by drug set only
+	 * find snapshots with a fingerprint, so the scheduled re-tag task runs this on every run, off the startup thread.
+	 *
+	 * @return the number of snapshots updated
+	 * @see org.openmrs.module.drughistory.task.RetagDrugSnapshotsTask
+	 * @should fill in the fingerprint of snapshots without one
+	 */
+	@Transactional(readOnly = false)
+	public int updateDrugFingerprints();
 }
@@ -14,28 +14,61 @@
 
 package org.openmrs.module.drughistory.api;
 
+import org.openmrs.Cohort;
+import org.openmrs.Concept;
 import org.openmrs.module.drughistory.DrugSnapshot;
 import org.openmrs.module.drughistory.Regimen;
+import org.openmrs.module.drughistory.RegimenCatalog;
 import org.springframework.transaction.annotation.Transactional;
 
+import java.util.Collection;
+import java.util.Date;
 import java.util.List;
+import java.util.Map;
+import java.util.Properties;
 
 @Transactional
 public interface RegimenService {
 
 	/**
 	 * Returns all persisted regimens, with the option to include retired objects.  By default,
-	 * only non-retired objects are returned unless specified.
+	 * only non-retired objects are returned unless specified. The regimens are detached copies of the ones in the
+	 * cached {@link #getRegimenCatalog() catalog}: changing them has no effect on the catalog and is not saved, even
+	 * within the same transaction, and their creator, changedBy and retiredBy users only carry the user id. Use
+	 * {@link #getRegimen(Integer)} to get a regimen to edit and save.
 	 *
 	 * @param includeRetired specifies whether to include retired regimens in the return data
 	 * @return a list of persisted regimens
 	 * @should not return retired regimens if includeRetired parameter is false
 	 * @should not return retired regimens if includeRetired parameter is null
 	 * @should return retired regimens if includeRetired parameter is true
+	 * @should return copies that can be changed without affecting the catalog
+	 * @should return copies whose audit users are set by id
 	 */
 	@Transactional(readOnly = true)
 	public List<Regimen> getAllRegimens(Boolean includeRetired);
 
+	/**
+	 * Returns the cached catalog of all regimens, loading it if a regimen changed since it was built. The catalog is
+	 * replaced as a whole, so readers never block and always see a consistent set of regimens. It is meant for
+	 * matching inside the module: its regimens are shared by every thread and must not be modified, which is why the
+	 * other methods of this service return copies of them.
+	 *
+	 * @return the current regimen catalog
+	 * @should reflect regimens saved after it was loaded
+	 * @should change the drug sets digest only when regimen drugs change
+	 */
+	@Transactional(readOnly = true)
+	public RegimenCatalog getRegimenCatalog();
+
+	/**
+	 * @return the current catalog version, which changes whenever a regimen is saved, retired, unretired or purged;
+	 *         callers holding a catalog with the same version do not need to fetch it again
+	 * @should change when a regimen is saved
+	 */
+	@Transactional(readOnly = true)
+	public long getRegimenCatalogVersion();
+
 	/**
 	 * Returns a single persisted regimen, based on its database identifier.
 	 *
@@ -47,16 +80,64 @@ public interface RegimenService {
 	@Transactional(readOnly = true)
 	public Regimen getRegimen(Integer regimenId);
 
+	/**
+	 * Supported params: "drugs" (a Set of Concepts; only regimens whose drugs are all among them are returned). The
+	 * drugs are matched against the regimen catalog, and the matching regimens are then loaded in one query, so they
+	 * are entities of the current session.
+	 *
+	 * @param params the query parameters, or null for every regimen
+	 * @return the matching regimens, ordered by id
+	 * @should return the regimens whose drugs are all among the drugs
+	 */
+	@Transactional(readOnly = true)
+	public List<Regimen> getRegimens(Properties params);
+
 	/**
 	 * Returns a list of possible regimens from the drugs in a snapshot
 	 *
 	 * @param snapshot the snapshot to reference for drugs
 	 * @return the matching regimens
 	 * @should only return regimens matching drugs in the snapshot
+	 * @should return every regimen whose drugs are all in the snapshot in regimen order
 	 */
 	@Transactional(readOnly = true)
 	public List<Regimen> getRegimensFromSnapshot(DrugSnapshot snapshot);
 
+	/**
+	 * Returns the regimens whose drugs are exactly the given combination, looked up by drug fingerprint in the
+	 * regimen catalog
+	 *
+	 * @param drugs the drug combination
+	 * @return the matching regimens, retired or not
+	 * @should return only regimens with exactly the given drugs
+	 */
+	@Transactional(readOnly = true)
+	public List<Regimen> getRegimensWithDrugSet(Collection<Concept> drugs);
+
+	/**
+	 * Returns the possible regimens for each of the given snapshots. The regimen catalog is read once for the whole
+	 * call, the drugs of snapshots whose concepts are not loaded yet are read in bulk, and large collections are
+	 * classified on a pool of threads shared by every call.
+	 *
+	 * @param snapshots the snapshots to reference for drugs
+	 * @return the matching regimens of each snapshot, in the order of the snapshots
+	 * @should return the regimens matching each snapshot
+	 */
+	@Transactional(readOnly = true)
+	public Map<DrugSnapshot, List<Regimen>> getRegimensFromSnapshots(Collection<DrugSnapshot> snapshots);
+
+	/**
+	 * Returns the possible regimens for each snapshot of the cohort's members taken within the given dates.
+	 *
+	 * @param cohort   the people whose snapshots to classify
+	 * @param fromDate the earliest date taken, inclusive, or null
+	 * @param toDate   the latest date taken, inclusive, or null
+	 * @return the matching regimens of each snapshot
+	 * @should return the regimens matching each snapshot of the cohort within the dates
+	 */
+	@Transactional(readOnly = true)
+	public Map<DrugSnapshot, List<Regimen>> getRegimensFromSnapshots(Cohort cohort, Date fromDate, Date toDate);
+
 	/**
 	 * Persists a regimen to the database.  If the regimen already exists, it is updated.
 	 *
@@ -100,4 +181,24 @@ public interface RegimenService {
 	 */
 	@Transactional(readOnly = false)
 	public void purgeRegimen(Regimen regimen);
+
+	/**
+	 * Recomputes the regimens recorded against every drug snapshot, e.g. after regimen definitions changed. Snapshots
+	 * are tagged when they are generated, so this is only needed for snapshots generated before the change.
+	 *
+	 * @return the number of snapshot-regimen assignments written
+	 * @see org.openmrs.module.drughistory.task.RetagDrugSnapshotsTask
+	 */
+	@Transactional(readOnly = false)
+	public int retagDrugSnapshots();
+
+	/**
+	 * Recomputes which drug snapshots are recorded as being on the given regimen
+	 *
+	 * @param regimen the regimen to re-tag
+	 * @return the number of snapshots tagged with the regimen
+	 * @should tag every snapshot containing all of the regimen drugs
+	 */
+	@Transactional(readOnly = false)
+	public int retagDrugSnapshots(Regimen regimen);
 }
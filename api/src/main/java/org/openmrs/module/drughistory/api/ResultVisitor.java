@@ -0,0 +1,31 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+
+package org.openmrs.module.drughistory.api;
+
+/**
+ * Receives the results of a streaming query one at a time, so callers never hold the whole result list in memory.
+ * Entities are evicted from the session once visit returns, so a visitor changing one has to save and flush it before
+ * returning; unflushed changes are lost.
+ *
+ * @param <T> the type of result
+ */
+public interface ResultVisitor<T> {
+
+	/**
+	 * @param result the next result
+	 * @return true to continue with the next result, false to stop the query
+	 */
+	boolean visit(T result);
+}
@@ -18,7 +18,11 @@ import org.openmrs.Patient;
 import org.openmrs.Person;
 import org.openmrs.api.db.DAOException;
 import org.openmrs.module.drughistory.DrugEvent;
+import org.openmrs.module.drughistory.DrugEventQuery;
+import org.openmrs.module.drughistory.DrugEventRow;
+import org.openmrs.module.drughistory.DrugEventSummary;
 import org.openmrs.module.drughistory.DrugEventTrigger;
+import org.openmrs.module.drughistory.api.ResultVisitor;
 import org.openmrs.module.drughistory.api.DrugEventService;
 
 import java.util.Date;
@@ -36,7 +40,8 @@ public interface DrugEventDAO {
     void saveDrugEvent(DrugEvent drugEvent) throws DAOException;
 
     /**
-     * saveDrugEvents is used to save multiple drug in a batch
+     * saveDrugEvents is used to save multiple drug in a batch. New events are inserted in JDBC batches, events
+     * that already have an id are saved through the session like {@link #saveDrugEvent(DrugEvent)}
      * @param drugEvents  list of drug events to be saved
      * @throws DAOException
      */
@@ -94,8 +99,95 @@ public interface DrugEventDAO {
      * @param person
      * @param trigger
      * @param sinceWhen
+     * @return the number of drug event rows inserted
      */
-    void generateDrugEventsFromTrigger(Person person,DrugEventTrigger trigger,Date sinceWhen);
+    int generateDrugEventsFromTrigger(Person person,DrugEventTrigger trigger,Date sinceWhen);
+
+    /**
+     * Generates drug events for a trigger with a single INSERT ... SELECT statement, so the matching obs never leave
+     * the database. Only available for triggers without a custom query.
+     *
+     * @param person    the person to generate events for, or null for everyone
+     * @param trigger   a trigger without a custom query
+     * @param sinceWhen the earliest obs datetime to consider, or null for all time
+     * @return the number of drug event rows inserted
+     */
+    int insertDrugEventsFromTrigger(Person person, DrugEventTrigger trigger, Date sinceWhen);
+
+    /**
+     * Generates drug events for the obs created since the trigger's last incremental run, then moves the trigger's
+     * checkpoint (the highest obs_id processed) forward in the same transaction. The first run processes all obs.
+     * The checkpoint row is created before it is locked, so concurrent first runs wait for each other. Each run
+     * also reads again the obs just below the checkpoint, in case they committed after the previous run, skipping
+     * those that already have an event. Only available for triggers without a custom query.
+     *
+     * @param trigger    a trigger without a custom query
+     * @param serverSide whether to generate the events with a single INSERT ... SELECT statement
+     * @return the number of drug event rows inserted
+     */
+    int generateNewDrugEventsFromTrigger(DrugEventTrigger trigger, boolean serverSide);
+
+    /**
+     * @param trigger
+     * @return the highest obs_id processed by the trigger's incremental runs, or null if it never ran incrementally
+     */
+    Integer getDrugEventCheckpoint(DrugEventTrigger trigger);
+
+    /**
+     * Forgets the checkpoints of all triggers, so the next incremental run starts from the first obs again
+     * @return the number of checkpoints removed
+     */
+    int purgeDrugEventCheckpoints();
 
 	List<DrugEvent> getDrugEvents(Properties params);
+
+    /**
+     * @param query the filters
+     * @return the drug events matching query, ordered by date occurred and id
+     */
+    List<DrugEvent> getDrugEvents(DrugEventQuery query);
+
+    /**
+     * Like {@link #getDrugEvents(DrugEventQuery)}, but projects the events into read-only summaries instead of loading
+     * entities
+     *
+     * @param query the filters
+     * @return summaries of the drug events matching query, ordered by date occurred and id
+     */
+    List<DrugEventSummary> getDrugEventSummaries(DrugEventQuery query);
+
+    /**
+     * Reads one page of the drug events matching the same params as {@link #getDrugEvents(Properties)}, ordered by
+     * date occurred and id. The page starts right after the given event, so no rows are skipped with an OFFSET.
+     *
+     * @param params   the query parameters
+     * @param after    the last event of the previous page, or null for the first page
+     * @param pageSize the largest number of events to return; a smaller "limit" in params wins
+     * @return the next events
+     */
+    List<DrugEvent> getDrugEventPage(Properties params, DrugEvent after, int pageSize);
+
+    /**
+     * Streams the drug events matching the same params as {@link #getDrugEvents(Properties)} through a forward-only
+     * cursor, ordered by person, date occurred and id. Each event is evicted from the session once it is visited.
+     *
+     * @param params  the query parameters
+     * @param visitor receives each event; returning false stops the query
+     */
+    void visitDrugEvents(Properties params, ResultVisitor<DrugEvent> visitor);
+
+    /**
+     * Like {@link #visitDrugEvents(Properties, ResultVisitor)}, but reads only the columns needed for snapshots into a
+     * single reused {@link DrugEventRow}
+     *
+     * @param params  the query parameters
+     * @param visitor receives each row; returning false stops the query
+     */
+    void visitDrugEventRows(Properties params, ResultVisitor<DrugEventRow> visitor);
+
+    /**
+     * @param sinceWhen only consider events occurring on or after this date, or null for all time
+     * @return the distinct ids of the people with drug events, in ascending order
+     */
+    List<Integer> getDrugEventPersonIds(Date sinceWhen);
 }
\ No newline at end of file
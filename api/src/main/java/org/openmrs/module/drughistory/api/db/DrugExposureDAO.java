@@ -0,0 +1,47 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+
+package org.openmrs.module.drughistory.api.db;
+
+import org.openmrs.module.drughistory.DrugExposure;
+import org.openmrs.module.drughistory.DrugExposureRecord;
+
+import java.util.List;
+import java.util.Properties;
+
+public interface DrugExposureDAO {
+
+	/**
+	 * Supported params: "person" (a Person), "cohort" (a Cohort), "drugs" (a Set of Concepts), and "since" and
+	 * "until" (Dates; only exposures overlapping that window are returned).
+	 *
+	 * @return the matching exposures, ordered by person and start date
+	 */
+	public List<DrugExposure> getDrugExposures(Properties params);
+
+	/**
+	 * Inserts exposure records without creating entities for them
+	 *
+	 * @return the number of exposures inserted
+	 */
+	public int saveDrugExposureRecords(List<DrugExposureRecord> records);
+
+	/**
+	 * Deletes the exposures selected by params. Supported params are "person" (a Person) and
+	 * "fromPersonId"/"toPersonId" (an inclusive range of person ids).
+	 *
+	 * @return the number of exposures deleted
+	 */
+	public int purgeDrugExposures(Properties params);
+}
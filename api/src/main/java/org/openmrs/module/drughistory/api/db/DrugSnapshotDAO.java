@@ -16,14 +16,164 @@ package org.openmrs.module.drughistory.api.db;
 
 import org.openmrs.Patient;
 import org.openmrs.module.drughistory.DrugSnapshot;
+import org.openmrs.module.drughistory.DrugSnapshotQuery;
+import org.openmrs.module.drughistory.DrugSnapshotRecord;
+import org.openmrs.module.drughistory.DrugSnapshotSummary;
+import org.openmrs.module.drughistory.RegimenMatcher;
+import org.openmrs.module.drughistory.api.ResultVisitor;
 
+import java.util.Collection;
 import java.util.Date;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
 
 public interface DrugSnapshotDAO {
 
 	public List<DrugSnapshot> getDrugSnapshots(Properties properties);
 
+	/**
+	 * @param query the filters
+	 * @return the snapshots matching query, ordered by person, date taken and id
+	 */
+	public List<DrugSnapshot> getDrugSnapshots(DrugSnapshotQuery query);
+
+	/**
+	 * @param query the filters; the limit is ignored
+	 * @return the number of snapshots matching query
+	 */
+	public long getDrugSnapshotCount(DrugSnapshotQuery query);
+
+	/**
+	 * Like {@link #getDrugSnapshots(DrugSnapshotQuery)}, but projects the snapshots into read-only summaries instead
+	 * of loading entities
+	 *
+	 * @param query the filters
+	 * @return summaries of the snapshots matching query, ordered by person, date taken and id
+	 */
+	public List<DrugSnapshotSummary> getDrugSnapshotSummaries(DrugSnapshotQuery query);
+
+	/**
+	 * Reads one page of the snapshots matching the same params as {@link #getDrugSnapshots(Properties)}, ordered by
+	 * person, date taken and id. The page starts right after the given snapshot, so no rows are skipped with an OFFSET.
+	 *
+	 * @param params   the query parameters
+	 * @param after    the last snapshot of the previous page, or null for the first page
+	 * @param pageSize the largest number of snapshots to return; a smaller "limit" in params wins
+	 * @return the next snapshots
+	 */
+	public List<DrugSnapshot> getDrugSnapshotPage(Properties params, DrugSnapshot after, int pageSize);
+
+	/**
+	 * Streams the snapshots matching the same params as {@link #getDrugSnapshots(Properties)} through a forward-only
+	 * cursor, ordered by person, date taken and id. Each snapshot is evicted from the session once it is visited.
+	 *
+	 * @param params  the query parameters
+	 * @param visitor receives each snapshot; returning false stops the query
+	 */
+	public void visitDrugSnapshots(Properties params, ResultVisitor<DrugSnapshot> visitor);
+
 	public void saveSnapshots(List<DrugSnapshot> snapshots);
+
+	/**
+	 * Saves snapshots, recording the regimens matching each new snapshot
+	 *
+	 * @param snapshots the snapshots to save
+	 * @param matcher   the regimens to match against, or null to record none
+	 */
+	public void saveSnapshots(List<DrugSnapshot> snapshots, RegimenMatcher matcher);
+
+	/**
+	 * Inserts snapshot records without creating entities for them, recording the regimens matching each
+	 *
+	 * @param records the snapshots to insert
+	 * @param matcher the regimens to match against, or null to record none
+	 * @return the number of snapshots inserted
+	 */
+	public int saveSnapshotRecords(List<DrugSnapshotRecord> records, RegimenMatcher matcher);
+
+	/**
+	 * @param personId the person
+	 * @param before   an exclusive upper bound on the date taken
+	 * @return the person's latest snapshot taken before the given date, or null if there is none
+	 */
+	public DrugSnapshot getLatestDrugSnapshot(Integer personId, Date before);
+
+	/**
+	 * Like {@link #getLatestDrugSnapshot(Integer, Date)}, but reads only the snapshot's concept ids
+	 *
+	 * @param personId the person
+	 * @param before   an exclusive upper bound on the date taken
+	 * @return the concept ids of the person's latest snapshot taken before the given date, or null if there is none
+	 */
+	public int[] getLatestDrugSnapshotConceptIds(Integer personId, Date before);
+
+	/**
+	 * @param personId the person
+	 * @param date     an inclusive upper bound on the date taken
+	 * @return the person's latest snapshot taken on or before the given date, or null if there is none
+	 */
+	public DrugSnapshot getDrugSnapshotOnDate(Integer personId, Date date);
+
+	/**
+	 * Like {@link #getDrugSnapshotOnDate(Integer, Date)}, but reads only the snapshot's concept ids
+	 *
+	 * @param personId the person
+	 * @param date     an inclusive upper bound on the date taken
+	 * @return the concept ids of the person's latest snapshot taken on or before the given date, or null if there is
+	 *         none
+	 */
+	public int[] getDrugSnapshotConceptIdsOnDate(Integer personId, Date date);
+
+	/**
+	 * Reads the concept ids of many snapshots at once, with one query per batch of snapshots
+	 *
+	 * @param drugSnapshotIds the snapshots
+	 * @return the concept ids keyed by snapshot id; snapshots without concepts are left out
+	 */
+	public Map<Integer, int[]> getDrugSnapshotConceptIds(Collection<Integer> drugSnapshotIds);
+
+	/**
+	 * Reads the concept ids of each person's latest snapshot taken on or before the given date, for many people at once
+	 *
+	 * @param personIds the people
+	 * @param date      an inclusive upper bound on the date taken
+	 * @return the concept ids keyed by person id; people without a snapshot on or before the date are left out
+	 */
+	public Map<Integer, int[]> getDrugSnapshotConceptIdsOnDate(Collection<Integer> personIds, Date date);
+
+	/**
+	 * Finds the people whose latest snapshot taken on or before the given date contains all of the given concepts, in
+	 * a single statement
+	 *
+	 * @param conceptIds distinct concept ids
+	 * @param date       an inclusive upper bound on the date taken
+	 * @return the ids of those people, in ascending order
+	 */
+	public List<Integer> getPersonIdsWithDrugsOnDate(int[] conceptIds, Date date);
+
+	/**
+	 * Looks the snapshots up by the {@link org.openmrs.module.drughistory.DrugSetFingerprint} of the drug set, then
+	 * compares their concepts with it so that fingerprint collisions are ruled out
+	 *
+	 * @param conceptIds the concept ids of the drug set
+	 * @return the ids of the people with at least one snapshot having exactly that drug set, in ascending order
+	 */
+	public List<Integer> getDrugSnapshotPersonIds(int[] conceptIds);
+
+	/**
+	 * Computes and stores the fingerprint of every snapshot that does not have one yet, e.g. snapshots generated
+	 * before fingerprints were introduced
+	 *
+	 * @return the number of snapshots updated
+	 */
+	public int updateDrugFingerprints();
+
+	/**
+	 * Deletes the snapshots selected by params, along with their concepts and regimens. Supported params are "person"
+	 * (a Person), "since" (a Date, inclusive) and "fromPersonId"/"toPersonId" (an inclusive range of person ids).
+	 *
+	 * @return the number of snapshots deleted
+	 */
+	public int purgeDrugSnapshots(Properties params);
 }
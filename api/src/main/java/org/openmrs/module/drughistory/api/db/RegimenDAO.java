@@ -29,5 +29,25 @@ public interface RegimenDAO {
 
 	public void purgeRegimen(Regimen regimen);
 
+	/**
+	 * Supported params: "regimenIds" (a Collection of regimen ids). All the regimens are read in one query.
+	 *
+	 * @return the matching regimens, ordered by id
+	 */
 	public List<Regimen> getRegimens(Properties params);
+
+	/**
+	 * Replaces the regimen's rows in drughistory_snapshot_regimen with one for each snapshot containing all of the
+	 * regimen's drugs, and refreshes the regimen's stored drug fingerprint
+	 *
+	 * @return the number of snapshots tagged with the regimen
+	 */
+	public int retagDrugSnapshots(Regimen regimen);
+
+	/**
+	 * Removes the regimen from all snapshots
+	 *
+	 * @return the number of snapshots untagged
+	 */
+	public int purgeDrugSnapshotTags(Regimen regimen);
 }
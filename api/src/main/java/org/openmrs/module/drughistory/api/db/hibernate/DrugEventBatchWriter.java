@@ -0,0 +1,217 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+
+package org.openmrs.module.drughistory.api.db.hibernate;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.module.drughistory.DrugEvent;
+import org.openmrs.module.drughistory.DrugEventType;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Writes rows to drughistory_drugevent through a single parameterized PreparedStatement using JDBC batching. The
+ * writer works on the connection of the current Hibernate session, so rows become part of the surrounding transaction.
+ * Callers send the rows still waiting in the last batch with {@link #finish()} and must always {@link #close()} the
+ * writer afterwards.
+ * <p/>
+ * With skipDuplicates set, rows whose natural key (person, encounter, concept, event type and date) already exists
+ * are left alone instead of failing the batch, so re-running a trigger does not add rows. This needs the unique key
+ * on drughistory_drugevent and MySQL's ON DUPLICATE KEY UPDATE.
+ */
+public class DrugEventBatchWriter {
+
+	protected final Log log = LogFactory.getLog(this.getClass());
+
+	private static final String INSERT_SQL = "INSERT INTO drughistory_drugevent" +
+			" (person_id, encounter_id, concept_id, concept_reason_id, date_occurred, drug_event_type, uuid)" +
+			" VALUES (?, ?, ?, ?, ?, ?, ?)";
+
+	/**
+	 * suffix turning an insert into drughistory_drugevent into a no-op for rows that are already there
+	 */
+	static final String ON_DUPLICATE_KEY_SQL = " ON DUPLICATE KEY UPDATE drugevent_id = drugevent_id";
+
+	private final PreparedStatement statement;
+	private final int batchSize;
+
+	// entities waiting in the current batch, so their generated ids can be set after it is executed
+	private final List<DrugEvent> pendingEvents = new ArrayList<DrugEvent>();
+
+	private int pending = 0;
+	private int batches = 0;
+	private int rowsWritten = 0;
+
+	public DrugEventBatchWriter(Connection connection, int batchSize) throws SQLException {
+		this(connection, batchSize, false);
+	}
+
+	public DrugEventBatchWriter(Connection connection, int batchSize, boolean skipDuplicates) throws SQLException {
+		if (batchSize < 1) {
+			throw new IllegalArgumentException("batchSize must be at least 1, was " + batchSize);
+		}
+		this.batchSize = batchSize;
+		this.statement = connection.prepareStatement(skipDuplicates ? INSERT_SQL + ON_DUPLICATE_KEY_SQL : INSERT_SQL,
+				Statement.RETURN_GENERATED_KEYS);
+	}
+
+	/**
+	 * Queues a drug event for insertion, sending the batch to the database once it is full. The event's id is set
+	 * from the generated keys if the driver returns them.
+	 *
+	 * @param drugEvent the event to insert; a uuid is assigned if it has none
+	 * @throws SQLException
+	 */
+	public void add(DrugEvent drugEvent) throws SQLException {
+		if (drugEvent.getUuid() == null) {
+			drugEvent.setUuid(UUID.randomUUID().toString());
+		}
+		pendingEvents.add(drugEvent);
+		add(drugEvent.getPerson() == null ? null : drugEvent.getPerson().getPersonId(),
+				drugEvent.getEncounter() == null ? null : drugEvent.getEncounter().getEncounterId(),
+				drugEvent.getConcept() == null ? null : drugEvent.getConcept().getConceptId(),
+				drugEvent.getReason() == null ? null : drugEvent.getReason().getConceptId(),
+				drugEvent.getDateOccurred(), drugEvent.getEventType(), drugEvent.getUuid());
+	}
+
+	/**
+	 * Queues a drug event row for insertion, sending the batch to the database once it is full.
+	 *
+	 * @throws SQLException
+	 */
+	public void add(Integer personId, Integer encounterId, Integer conceptId, Integer reasonId, Date dateOccurred,
+	                DrugEventType eventType, String uuid) throws SQLException {
+		setInteger(1, personId);
+		setInteger(2, encounterId);
+		setInteger(3, conceptId);
+		setInteger(4, reasonId);
+		if (dateOccurred == null) {
+			statement.setNull(5, Types.TIMESTAMP);
+		} else {
+			statement.setTimestamp(5, new Timestamp(dateOccurred.getTime()));
+		}
+		if (eventType == null) {
+			statement.setNull(6, Types.VARCHAR);
+		} else {
+			statement.setString(6, eventType.getValue());
+		}
+		statement.setString(7, uuid == null ? UUID.randomUUID().toString() : uuid);
+		statement.addBatch();
+
+		if (++pending >= batchSize) {
+			flush();
+		}
+	}
+
+	/**
+	 * Sends the rows queued so far to the database.
+	 *
+	 * @return the number of rows written by this batch
+	 * @throws SQLException
+	 */
+	public int flush() throws SQLException {
+		if (pending == 0) {
+			return 0;
+		}
+
+		int written = 0;
+		for (int count : statement.executeBatch()) {
+			// some drivers only report that the statement succeeded; skipped duplicates count as 0
+			written += count == Statement.SUCCESS_NO_INFO ? 1 : Math.max(count, 0);
+		}
+
+		if (!pendingEvents.isEmpty()) {
+			assignGeneratedKeys();
+		}
+
+		batches++;
+		rowsWritten += written;
+		pending = 0;
+
+		if (log.isDebugEnabled()) {
+			log.debug("Drug event batch " + batches + " wrote " + written + " row(s)");
+		}
+		return written;
+	}
+
+	/**
+	 * Flushes any queued rows.
+	 *
+	 * @return the total number of rows written by this writer
+	 * @throws SQLException
+	 */
+	public int finish() throws SQLException {
+		flush();
+		return rowsWritten;
+	}
+
+	/**
+	 * Releases the statement. Rows still queued are discarded, so call {@link #finish()} first.
+	 *
+	 * @throws SQLException
+	 */
+	public void close() throws SQLException {
+		statement.close();
+	}
+
+	public int getRowsWritten() {
+		return rowsWritten;
+	}
+
+	public int getBatchCount() {
+		return batches;
+	}
+
+	private void assignGeneratedKeys() throws SQLException {
+		List<Integer> keys = new ArrayList<Integer>();
+		ResultSet rs = statement.getGeneratedKeys();
+		try {
+			while (rs.next()) {
+				keys.add(rs.getInt(1));
+			}
+		} finally {
+			rs.close();
+		}
+
+		if (keys.size() == pendingEvents.size()) {
+			for (int i = 0; i < keys.size(); i++) {
+				pendingEvents.get(i).setDrugEventId(keys.get(i));
+			}
+		} else {
+			// e.g. when some of the rows were skipped as duplicates
+			log.debug("Driver returned " + keys.size() + " generated key(s) for " + pendingEvents.size() + " drug event(s);"
+					+ " ids were not assigned");
+		}
+		pendingEvents.clear();
+	}
+
+	private void setInteger(int index, Integer value) throws SQLException {
+		if (value == null) {
+			statement.setNull(index, Types.INTEGER);
+		} else {
+			statement.setInt(index, value);
+		}
+	}
+}
@@ -0,0 +1,128 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+
+package org.openmrs.module.drughistory.api.db.hibernate;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.module.drughistory.DrugExposureRecord;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.UUID;
+
+/**
+ * Writes rows to drughistory_drugexposure through a single parameterized PreparedStatement using JDBC batching, on the
+ * connection of the current Hibernate session. Callers send the rows still waiting in the last batch with
+ * {@link #finish()} and must always {@link #close()} the writer afterwards.
+ */
+public class DrugExposureBatchWriter {
+
+	protected final Log log = LogFactory.getLog(this.getClass());
+
+	private static final String INSERT_SQL = "INSERT INTO drughistory_drugexposure" +
+			" (person_id, concept_id, start_date, stop_date, uuid) VALUES (?, ?, ?, ?, ?)";
+
+	private final PreparedStatement statement;
+	private final int batchSize;
+
+	private int pending = 0;
+	private int batches = 0;
+	private int rowsWritten = 0;
+
+	public DrugExposureBatchWriter(Connection connection, int batchSize) throws SQLException {
+		if (batchSize < 1) {
+			throw new IllegalArgumentException("batchSize must be at least 1, was " + batchSize);
+		}
+		this.batchSize = batchSize;
+		this.statement = connection.prepareStatement(INSERT_SQL);
+	}
+
+	/**
+	 * Queues an exposure for insertion, sending the batch to the database once it is full.
+	 *
+	 * @param exposure the exposure to insert
+	 * @throws SQLException
+	 */
+	public void add(DrugExposureRecord exposure) throws SQLException {
+		statement.setInt(1, exposure.getPersonId());
+		statement.setInt(2, exposure.getConceptId());
+		statement.setTimestamp(3, new Timestamp(exposure.getStartDate().getTime()));
+		if (exposure.getStopDate() == null) {
+			statement.setNull(4, Types.TIMESTAMP);
+		} else {
+			statement.setTimestamp(4, new Timestamp(exposure.getStopDate().getTime()));
+		}
+		statement.setString(5, UUID.randomUUID().toString());
+		statement.addBatch();
+
+		if (++pending >= batchSize) {
+			flush();
+		}
+	}
+
+	/**
+	 * Sends the rows queued so far to the database.
+	 *
+	 * @return the number of rows written by this batch
+	 * @throws SQLException
+	 */
+	public int flush() throws SQLException {
+		if (pending == 0) {
+			return 0;
+		}
+
+		statement.executeBatch();
+		int written = pending;
+		batches++;
+		rowsWritten += written;
+		pending = 0;
+
+		if (log.isDebugEnabled()) {
+			log.debug("Drug exposure batch " + batches + " wrote " + written + " row(s)");
+		}
+		return written;
+	}
+
+	/**
+	 * Flushes any queued rows.
+	 *
+	 * @return the total number of rows written by this writer
+	 * @throws SQLException
+	 */
+	public int finish() throws SQLException {
+		flush();
+		return rowsWritten;
+	}
+
+	/**
+	 * Releases the statement. Rows still queued are discarded, so call {@link #finish()} first.
+	 *
+	 * @throws SQLException
+	 */
+	public void close() throws SQLException {
+		statement.close();
+	}
+
+	public int getRowsWritten() {
+		return rowsWritten;
+	}
+
+	public int getBatchCount() {
+		return batches;
+	}
+}
@@ -0,0 +1,345 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+
+package org.openmrs.module.drughistory.api.db.hibernate;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.module.drughistory.ConceptIdSet;
+import org.openmrs.module.drughistory.DrugSetFingerprint;
+import org.openmrs.module.drughistory.DrugSnapshot;
+import org.openmrs.module.drughistory.DrugSnapshotRecord;
+import org.openmrs.module.drughistory.Regimen;
+import org.openmrs.module.drughistory.RegimenMatcher;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Writes new drug snapshots, either entities or {@link DrugSnapshotRecord}s, to drughistory_drugsnapshot and
+ * drughistory_drugsnapshot_concept through JDBC batches on the connection of the current Hibernate session. Snapshot
+ * headers are inserted a batch at a time; their generated ids are then used to insert all of the batch's concept rows
+ * in a second batch. Each snapshot's {@link DrugSetFingerprint} is computed and stored with its header. When given a
+ * {@link RegimenMatcher}, the regimens matching each snapshot are recorded in drughistory_snapshot_regimen as well.
+ * Callers send the last batch with {@link #finish()} and must always {@link #close()} the writer afterwards.
+ */
+public class DrugSnapshotBatchWriter {
+
+	protected final Log log = LogFactory.getLog(this.getClass());
+
+	private static final String INSERT_SNAPSHOT_SQL = "INSERT INTO drughistory_drugsnapshot" +
+			" (person_id, encounter_id, date_taken, drug_fingerprint, uuid) VALUES (?, ?, ?, ?, ?)";
+
+	private static final String INSERT_CONCEPT_SQL = "INSERT INTO drughistory_drugsnapshot_concept" +
+			" (drugsnapshot_id, concept_id) VALUES (?, ?)";
+
+	private static final String INSERT_REGIMEN_SQL = "INSERT INTO drughistory_snapshot_regimen" +
+			" (drugsnapshot_id, regimen_id) VALUES (?, ?)";
+
+	private final Connection connection;
+	private final PreparedStatement snapshotStatement;
+	private final PreparedStatement conceptStatement;
+	private final PreparedStatement regimenStatement;
+	private final RegimenMatcher matcher;
+	private final int batchSize;
+
+	private final List<PendingSnapshot> pending = new ArrayList<PendingSnapshot>();
+
+	private int batches = 0;
+	private int rowsWritten = 0;
+
+	public DrugSnapshotBatchWriter(Connection connection, int batchSize) throws SQLException {
+		this(connection, batchSize, null);
+	}
+
+	/**
+	 * @param connection the connection to write with
+	 * @param batchSize  the number of snapshots per batch
+	 * @param matcher    used to record the regimens of each snapshot, or null to leave them out
+	 * @throws SQLException
+	 */
+	public DrugSnapshotBatchWriter(Connection connection, int batchSize, RegimenMatcher matcher) throws SQLException {
+		if (batchSize < 1) {
+			throw new IllegalArgumentException("batchSize must be at least 1, was " + batchSize);
+		}
+		this.connection = connection;
+		this.batchSize = batchSize;
+		this.matcher = matcher;
+		this.snapshotStatement = connection.prepareStatement(INSERT_SNAPSHOT_SQL, Statement.RETURN_GENERATED_KEYS);
+		this.conceptStatement = connection.prepareStatement(INSERT_CONCEPT_SQL);
+		this.regimenStatement = matcher == null ? null : connection.prepareStatement(INSERT_REGIMEN_SQL);
+	}
+
+	/**
+	 * Queues a new snapshot for insertion, sending the batch to the database once it is full.
+	 *
+	 * @param snapshot the snapshot to insert; a uuid is assigned if it has none
+	 * @throws SQLException
+	 */
+	public void add(DrugSnapshot snapshot) throws SQLException {
+		if (snapshot.getUuid() == null) {
+			snapshot.setUuid(UUID.randomUUID().toString());
+		}
+		ConceptIdSet conceptIds = ConceptIdSet.of(snapshot.getConcepts());
+		snapshot.setDrugFingerprint(conceptIds.getFingerprint());
+
+		add(new PendingSnapshot(snapshot, snapshot.getUuid(), conceptIds),
+				snapshot.getPerson() == null ? null : snapshot.getPerson().getPersonId(),
+				snapshot.getEncounter() == null ? null : snapshot.getEncounter().getEncounterId(),
+				snapshot.getDateTaken(), snapshot.getDrugFingerprint());
+	}
+
+	/**
+	 * Queues a snapshot record for insertion, sending the batch to the database once it is full. No entity is
+	 * created for it.
+	 *
+	 * @param record the snapshot to insert
+	 * @throws SQLException
+	 */
+	public void add(DrugSnapshotRecord record) throws SQLException {
+		add(new PendingSnapshot(null, UUID.randomUUID().toString(), record.getConceptIds()), record.getPersonId(),
+				record.getEncounterId(), record.getDateTaken(), record.getConceptIds().getFingerprint());
+	}
+
+	private void add(PendingSnapshot snapshot, Integer personId, Integer encounterId, Date dateTaken,
+	                 long drugFingerprint) throws SQLException {
+		setInteger(1, personId);
+		setInteger(2, encounterId);
+		if (dateTaken == null) {
+			snapshotStatement.setNull(3, Types.TIMESTAMP);
+		} else {
+			snapshotStatement.setTimestamp(3, new Timestamp(dateTaken.getTime()));
+		}
+		snapshotStatement.setLong(4, drugFingerprint);
+		snapshotStatement.setString(5, snapshot.uuid);
+		snapshotStatement.addBatch();
+		pending.add(snapshot);
+
+		if (pending.size() >= batchSize) {
+			flush();
+		}
+	}
+
+	/**
+	 * Sends the snapshots queued so far, and then their concepts, to the database.
+	 *
+	 * @return the number of snapshots written by this batch
+	 * @throws SQLException
+	 */
+	public int flush() throws SQLException {
+		if (pending.isEmpty()) {
+			return 0;
+		}
+
+		snapshotStatement.executeBatch();
+		assignIds();
+
+		int concepts = 0;
+		for (PendingSnapshot snapshot : pending) {
+			for (int i = 0; i < snapshot.conceptIds.size(); i++) {
+				conceptStatement.setInt(1, snapshot.id);
+				conceptStatement.setInt(2, snapshot.conceptIds.get(i));
+				conceptStatement.addBatch();
+				concepts++;
+			}
+		}
+		if (concepts > 0) {
+			conceptStatement.executeBatch();
+		}
+
+		if (matcher != null) {
+			writeRegimens();
+		}
+
+		int written = pending.size();
+		batches++;
+		rowsWritten += written;
+		pending.clear();
+
+		if (log.isDebugEnabled()) {
+			log.debug("Drug snapshot batch " + batches + " wrote " + written + " snapshot(s) with " + concepts
+					+ " concept(s)");
+		}
+		return written;
+	}
+
+	/**
+	 * Flushes any queued snapshots.
+	 *
+	 * @return the total number of snapshots written by this writer
+	 * @throws SQLException
+	 */
+	public int finish() throws SQLException {
+		flush();
+		return rowsWritten;
+	}
+
+	/**
+	 * Releases the statements. Snapshots still queued are discarded, so call {@link #finish()} first.
+	 *
+	 * @throws SQLException
+	 */
+	public void close() throws SQLException {
+		try {
+			snapshotStatement.close();
+		} finally {
+			try {
+				conceptStatement.close();
+			} finally {
+				if (regimenStatement != null) {
+					regimenStatement.close();
+				}
+			}
+		}
+	}
+
+	public int getRowsWritten() {
+		return rowsWritten;
+	}
+
+	public int getBatchCount() {
+		return batches;
+	}
+
+	/**
+	 * Records the regimens matching each pending snapshot, which must already have its id
+	 */
+	private void writeRegimens() throws SQLException {
+		int rows = 0;
+		ConceptIdSet previousIds = null;
+		List<Regimen> regimens = null;
+		for (PendingSnapshot snapshot : pending) {
+			// a person's consecutive snapshots often share the same set, and therefore the same regimens
+			if (snapshot.conceptIds != previousIds) {
+				regimens = matcher.getMatchingRegimens(snapshot.conceptIds);
+				previousIds = snapshot.conceptIds;
+			}
+			for (Regimen r : regimens) {
+				regimenStatement.setInt(1, snapshot.id);
+				regimenStatement.setInt(2, r.getRegimenId());
+				regimenStatement.addBatch();
+				rows++;
+			}
+			if (snapshot.entity != null) {
+				snapshot.entity.setRegimens(new HashSet<Regimen>(regimens));
+			}
+		}
+		if (rows > 0) {
+			regimenStatement.executeBatch();
+		}
+	}
+
+	/**
+	 * Sets the generated ids on the pending snapshots. Drivers that do not return a key per batched row (e.g. H2) are
+	 * handled by looking the ids up by uuid.
+	 */
+	private void assignIds() throws SQLException {
+		List<Integer> keys = new ArrayList<Integer>();
+		ResultSet rs = snapshotStatement.getGeneratedKeys();
+		try {
+			while (rs.next()) {
+				keys.add(rs.getInt(1));
+			}
+		} finally {
+			rs.close();
+		}
+
+		if (keys.size() == pending.size()) {
+			for (int i = 0; i < keys.size(); i++) {
+				pending.get(i).setId(keys.get(i));
+			}
+			return;
+		}
+
+		Map<String, Integer> ids = selectIdsByUuid();
+		for (PendingSnapshot snapshot : pending) {
+			Integer id = ids.get(snapshot.uuid);
+			if (id == null) {
+				throw new SQLException("Unable to find the id of drug snapshot " + snapshot.uuid);
+			}
+			snapshot.setId(id);
+		}
+	}
+
+	private Map<String, Integer> selectIdsByUuid() throws SQLException {
+		StringBuilder sql = new StringBuilder("SELECT uuid, drugsnapshot_id FROM drughistory_drugsnapshot WHERE uuid IN (");
+		for (int i = 0; i < pending.size(); i++) {
+			sql.append(i == 0 ? "?" : ", ?");
+		}
+		sql.append(")");
+
+		Map<String, Integer> ids = new HashMap<String, Integer>();
+		PreparedStatement select = connection.prepareStatement(sql.toString());
+		try {
+			for (int i = 0; i < pending.size(); i++) {
+				select.setString(i + 1, pending.get(i).uuid);
+			}
+			ResultSet rs = select.executeQuery();
+			try {
+				while (rs.next()) {
+					ids.put(rs.getString(1), rs.getInt(2));
+				}
+			} finally {
+				rs.close();
+			}
+		} finally {
+			select.close();
+		}
+		return ids;
+	}
+
+	private void setInteger(int index, Integer value) throws SQLException {
+		if (value == null) {
+			snapshotStatement.setNull(index, Types.INTEGER);
+		} else {
+			snapshotStatement.setInt(index, value);
+		}
+	}
+
+	/**
+	 * a queued snapshot: either an entity, whose id and regimens are set once written, or a plain record
+	 */
+	private static class PendingSnapshot {
+
+		private final DrugSnapshot entity;
+		private final String uuid;
+		private final ConceptIdSet conceptIds;
+		private int id;
+
+		private PendingSnapshot(DrugSnapshot entity, String uuid, ConceptIdSet conceptIds) {
+			this.entity = entity;
+			this.uuid = uuid;
+			this.conceptIds = conceptIds;
+		}
+
+		private void setId(int id) {
+			this.id = id;
+			if (entity != null) {
+				entity.setDrugSnapshotId(id);
+			}
+		}
+	}
+}
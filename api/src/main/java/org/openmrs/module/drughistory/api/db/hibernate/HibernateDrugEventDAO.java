@@ -13,32 +13,48 @@
  */
 package org.openmrs.module.drughistory.api.db.hibernate;
 
-import liquibase.util.StringUtils;
+import org.apache.commons.lang.time.DateUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.hibernate.Criteria;
+import org.hibernate.FlushMode;
 import org.hibernate.Query;
+import org.hibernate.ScrollMode;
+import org.hibernate.ScrollableResults;
+import org.hibernate.Session;
 import org.hibernate.SessionFactory;
-import org.hibernate.criterion.Order;
 import org.hibernate.criterion.Restrictions;
+import org.hibernate.dialect.H2Dialect;
+import org.hibernate.dialect.MySQLDialect;
+import org.hibernate.engine.SessionFactoryImplementor;
 import org.openmrs.Cohort;
+import org.openmrs.Concept;
 import org.openmrs.Encounter;
 import org.openmrs.Person;
 import org.openmrs.api.context.Context;
 import org.openmrs.api.db.DAOException;
 import org.openmrs.module.drughistory.DrugEvent;
+import org.openmrs.module.drughistory.DrugEventQuery;
+import org.openmrs.module.drughistory.DrugEventRow;
+import org.openmrs.module.drughistory.DrugEventSummary;
 import org.openmrs.module.drughistory.DrugEventTrigger;
+import org.openmrs.module.drughistory.DrugEventType;
+import org.openmrs.module.drughistory.api.ResultVisitor;
 import org.openmrs.module.drughistory.api.db.DrugEventDAO;
 
-import java.text.SimpleDateFormat;
+import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.Calendar;
 import java.util.Collection;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
-import java.util.UUID;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 /**
  * It is a default implementation of  {@link DrugEventDAO}.
@@ -46,8 +62,69 @@ import java.util.UUID;
 public class HibernateDrugEventDAO implements DrugEventDAO {
 	protected final Log log = LogFactory.getLog(this.getClass());
 
+	/**
+	 * default number of rows sent to the database per JDBC batch while generating drug events
+	 */
+	public static final int DEFAULT_BATCH_SIZE = 1000;
+
+	/**
+	 * default number of obs rows fetched per round trip while generating drug events
+	 */
+	public static final int DEFAULT_FETCH_SIZE = 1000;
+
+	/**
+	 * default number of obs ids below the checkpoint that incremental generation reads again
+	 */
+	public static final int DEFAULT_CHECKPOINT_OVERLAP = 1000;
+
+	// the fields set on a DrugEventQuery, one bit each; together with the form they select a cached HQL statement
+	private static final int PERSON = 1;
+	private static final int COHORT = 1 << 1;
+	private static final int SINCE = 1 << 2;
+	private static final int UNTIL = 1 << 3;
+	private static final int FROM_PERSON = 1 << 4;
+	private static final int TO_PERSON = 1 << 5;
+	private static final int EVENT_TYPES = 1 << 6;
+	private static final int CONCEPTS = 1 << 7;
+	private static final int AFTER = 1 << 8;
+
+	private static final ConcurrentMap<Integer, String> HQL_CACHE = new ConcurrentHashMap<Integer, String>();
+
+	/**
+	 * what a drug event query selects and how it is ordered
+	 */
+	private enum EventQueryForm {
+
+		EVENTS_BY_DATE("select de from DrugEvent de", "de.dateOccurred, de.drugEventId"),
+
+		EVENTS_BY_PERSON("select de from DrugEvent de", "de.person.personId, de.dateOccurred, de.drugEventId"),
+
+		ROWS_BY_PERSON("select de.person.personId, de.encounter.encounterId, de.concept.conceptId, de.eventType," +
+				" de.dateOccurred from DrugEvent de", "de.person.personId, de.dateOccurred, de.drugEventId"),
+
+		SUMMARIES_BY_DATE("select de.drugEventId, de.person.personId, de.encounter.encounterId, de.concept.conceptId," +
+				" de.eventType, de.dateOccurred from DrugEvent de", "de.dateOccurred, de.drugEventId");
+
+		private final String select;
+		private final String orderBy;
+
+		EventQueryForm(String select, String orderBy) {
+			this.select = select;
+			this.orderBy = orderBy;
+		}
+	}
+
 	private SessionFactory sessionFactory;
 
+	private int fetchSize = DEFAULT_FETCH_SIZE;
+
+	private int batchSize = DEFAULT_BATCH_SIZE;
+
+	private int checkpointOverlap = DEFAULT_CHECKPOINT_OVERLAP;
+
+	// whether the connection was already found to ignore the fetch size, so the warning is only logged once
+	private volatile boolean fetchSizeWarned;
+
 	/**
 	 * @param sessionFactory the sessionFactory to set
 	 */
@@ -62,6 +139,49 @@ public class HibernateDrugEventDAO implements DrugEventDAO {
 		return sessionFactory;
 	}
 
+	public int getFetchSize() {
+		return fetchSize;
+	}
+
+	/**
+	 * Sets the JDBC fetch size used when reading obs for a trigger. Rows are then pulled from the database a fetch at a
+	 * time instead of all at once. Note that MySQL Connector/J only honours this with a server-side cursor, i.e. when
+	 * useCursorFetch=true is set on the connection URL; otherwise the driver buffers the whole result set, and a
+	 * warning is logged the first time events are generated.
+	 *
+	 * @param fetchSize the number of rows to fetch per round trip
+	 */
+	public void setFetchSize(int fetchSize) {
+		this.fetchSize = fetchSize;
+	}
+
+	public int getBatchSize() {
+		return batchSize;
+	}
+
+	/**
+	 * @param batchSize the number of drug event rows sent to the database per JDBC batch while generating events
+	 */
+	public void setBatchSize(int batchSize) {
+		this.batchSize = batchSize;
+	}
+
+	public int getCheckpointOverlap() {
+		return checkpointOverlap;
+	}
+
+	/**
+	 * Sets how many obs ids below its checkpoint an incremental run reads again. Obs ids are assigned before the
+	 * transactions creating them commit, so an obs may become visible after a run has moved the checkpoint past its
+	 * id; it is still picked up as long as fewer than checkpointOverlap obs were created while its transaction was
+	 * open.
+	 *
+	 * @param checkpointOverlap the number of obs ids to read again, 0 or more
+	 */
+	public void setCheckpointOverlap(int checkpointOverlap) {
+		this.checkpointOverlap = checkpointOverlap;
+	}
+
 	@Override
 	public void saveDrugEvent(DrugEvent drugEvent) throws DAOException {
 		if (drugEvent != null) {
@@ -71,9 +191,29 @@ public class HibernateDrugEventDAO implements DrugEventDAO {
 
 	@Override
 	public void saveDrugEvents(List<DrugEvent> drugEvents, int batchSize) throws DAOException {
-		//TODO To be implemented with Hibernate batch processing.
-		for (DrugEvent de : drugEvents) {
-			saveDrugEvent(de);
+		if (drugEvents == null || drugEvents.isEmpty()) {
+			return;
+		}
+
+		// make sure anything the events depend on has reached the database first
+		getSessionFactory().getCurrentSession().flush();
+
+		try {
+			DrugEventBatchWriter writer = newBatchWriter(batchSize);
+			try {
+				for (DrugEvent de : drugEvents) {
+					if (de.getDrugEventId() == null) {
+						writer.add(de);
+					} else {
+						saveDrugEvent(de);
+					}
+				}
+				writer.finish();
+			} finally {
+				writer.close();
+			}
+		} catch (SQLException e) {
+			throw new DAOException("Unable to save drug events", e);
 		}
 	}
 
@@ -121,23 +261,224 @@ public class HibernateDrugEventDAO implements DrugEventDAO {
 	}
 
 	@Override
-	public void generateDrugEventsFromTrigger(Person person, DrugEventTrigger trigger, Date sinceWhen) {
-		Query query;
-
-		if (trigger.getCustomQuery() != null) {
+	public int generateDrugEventsFromTrigger(Person person, DrugEventTrigger trigger, Date sinceWhen) {
+		if (trigger.hasCustomQuery()) {
 
 			//The query generates and inserts the drug events.
-			query = getSessionFactory().getCurrentSession().createSQLQuery(trigger.getCustomQuery());
-			query.executeUpdate();
+			Query query = getSessionFactory().getCurrentSession().createSQLQuery(trigger.getCustomQuery());
+			return query.executeUpdate();
+		}
 
-			return;
+		checkEventType(trigger);
+		return generateDrugEvents(person, trigger, sinceWhen, null, null);
+	}
+
+	@Override
+	public int insertDrugEventsFromTrigger(Person person, DrugEventTrigger trigger, Date sinceWhen) {
+		if (trigger.hasCustomQuery()) {
+			throw new IllegalArgumentException("Server-side generation is not available for triggers with a custom query");
 		}
 
+		checkEventType(trigger);
+		return insertDrugEvents(person, trigger, sinceWhen, null, null);
+	}
+
+	@Override
+	public int generateNewDrugEventsFromTrigger(DrugEventTrigger trigger, boolean serverSide) {
+		if (trigger.hasCustomQuery()) {
+			throw new IllegalArgumentException("Incremental generation is not available for triggers with a custom query");
+		}
+		checkEventType(trigger);
+
+		Session session = getSessionFactory().getCurrentSession();
+
+		// make sure the checkpoint row exists, so the lock below has something to lock even on the first run
+		String seedSql;
+		if (isUpsertSupported()) {
+			seedSql = "INSERT INTO drughistory_drugeventtrigger_checkpoint (last_obs_id, date_updated, drugeventtrigger_id)" +
+					" VALUES (0, :dateUpdated, :triggerId) ON DUPLICATE KEY UPDATE drugeventtrigger_id = drugeventtrigger_id";
+		} else {
+			seedSql = "INSERT INTO drughistory_drugeventtrigger_checkpoint (last_obs_id, date_updated, drugeventtrigger_id)" +
+					" SELECT 0, :dateUpdated, t.drugeventtrigger_id FROM drughistory_drugeventtrigger t" +
+					" WHERE t.drugeventtrigger_id = :triggerId AND NOT EXISTS (SELECT 1 FROM drughistory_drugeventtrigger_checkpoint c" +
+					" WHERE c.drugeventtrigger_id = :triggerId)";
+		}
+		session.createSQLQuery(seedSql)
+				.setTimestamp("dateUpdated", new Date())
+				.setInteger("triggerId", trigger.getId())
+				.executeUpdate();
+
+		// lock the checkpoint so concurrent runs of the same trigger cannot process the same obs twice
+		Number lastObsId = (Number) session.createSQLQuery("SELECT last_obs_id FROM drughistory_drugeventtrigger_checkpoint" +
+				" WHERE drugeventtrigger_id = :triggerId FOR UPDATE")
+				.setInteger("triggerId", trigger.getId())
+				.uniqueResult();
+		Number maxObsId = (Number) session.createSQLQuery("SELECT MAX(obs_id) FROM obs").uniqueResult();
+		if (maxObsId == null) {
+			return 0;
+		}
+
+		// obs ids are handed out before their transactions commit, so an obs with an id below the previous maximum
+		// may only have become visible since; re-read the last checkpointOverlap ids and skip the events that exist
+		int checkpoint = lastObsId == null ? 0 : lastObsId.intValue();
+		int afterObsId = Math.max(0, checkpoint - checkpointOverlap);
+
+		int rows;
+		if (serverSide) {
+			rows = insertDrugEvents(null, trigger, null, afterObsId, maxObsId.intValue());
+		} else {
+			rows = generateDrugEvents(null, trigger, null, afterObsId, maxObsId.intValue());
+		}
+
+		session.createSQLQuery("UPDATE drughistory_drugeventtrigger_checkpoint SET last_obs_id = :lastObsId," +
+				" date_updated = :dateUpdated WHERE drugeventtrigger_id = :triggerId")
+				.setInteger("lastObsId", Math.max(checkpoint, maxObsId.intValue()))
+				.setTimestamp("dateUpdated", new Date())
+				.setInteger("triggerId", trigger.getId())
+				.executeUpdate();
+
+		return rows;
+	}
+
+	@Override
+	public Integer getDrugEventCheckpoint(DrugEventTrigger trigger) {
+		Number lastObsId = (Number) getSessionFactory().getCurrentSession()
+				.createSQLQuery("SELECT last_obs_id FROM drughistory_drugeventtrigger_checkpoint WHERE drugeventtrigger_id = :triggerId")
+				.setInteger("triggerId", trigger.getId())
+				.uniqueResult();
+		return lastObsId == null ? null : lastObsId.intValue();
+	}
+
+	@Override
+	public int purgeDrugEventCheckpoints() {
+		return getSessionFactory().getCurrentSession()
+				.createSQLQuery("DELETE FROM drughistory_drugeventtrigger_checkpoint")
+				.executeUpdate();
+	}
+
+	/**
+	 * Reads the obs firing a trigger through a forward-only cursor and writes a drug event for each of them
+	 */
+	private int generateDrugEvents(Person person, DrugEventTrigger trigger, Date sinceWhen, Integer afterObsId,
+	                               Integer upToObsId) {
+		Map<String, Object> m = new HashMap<String, Object>();
 		String sql = "SELECT person_id, encounter_id, obs_datetime" +
-				" FROM obs o" +
-				" where o.concept_id in (:conceptList)";
+				buildObsCriteria(person, trigger, sinceWhen, afterObsId, upToObsId, m);
+
+		Query query = sessionFactory.getCurrentSession().createSQLQuery(sql);
+		mapIntoQuery(query, m);
+		query.setFetchSize(fetchSize);
+		warnIfFetchSizeIgnored();
+
+		//Create drug event for each obs as it is read from the cursor and save them in batches.
+
+		Integer conceptId = trigger.getEventConcept() == null ? null : trigger.getEventConcept().getConceptId();
+		Integer reasonId = trigger.getEventReason() == null ? null : trigger.getEventReason().getConceptId();
+
+		ScrollableResults obs = query.scroll(ScrollMode.FORWARD_ONLY);
+		try {
+			DrugEventBatchWriter writer = newBatchWriter(batchSize);
+			try {
+				while (obs.next()) {
+					Object[] ob = obs.get();
+
+					Integer personId = (Integer) ob[0];
+					Integer encounterId = (Integer) ob[1];
+					Date dateOccurred = (Date) ob[2];
+
+					// drug events are recorded by day
+					writer.add(personId, encounterId, conceptId, reasonId,
+							dateOccurred == null ? null : DateUtils.truncate(dateOccurred, Calendar.DATE),
+							trigger.getEventType(), null);
+				}
+				return writer.finish();
+			} finally {
+				writer.close();
+			}
+		} catch (SQLException e) {
+			throw new DAOException("Unable to save drug events for trigger " + trigger.getId(), e);
+		} finally {
+			obs.close();
+		}
+	}
+
+	/**
+	 * MySQL Connector/J reads the whole result set into memory unless useCursorFetch=true is set on the connection URL.
+	 * Streaming the rows instead (a fetch size of Integer.MIN_VALUE) would block the batch writer, which shares the
+	 * connection, so the driver setting is left to the deployment and only reported here.
+	 */
+	private void warnIfFetchSizeIgnored() {
+		if (fetchSizeWarned || !isUpsertSupported()) {
+			return;
+		}
+		try {
+			String url = sessionFactory.getCurrentSession().connection().getMetaData().getURL();
+			if (url != null && !url.toLowerCase().contains("usecursorfetch=true")) {
+				log.warn("The database connection does not set useCursorFetch=true, so the MySQL driver reads all the"
+						+ " obs of a trigger into memory while generating drug events; add it to connection.url in the"
+						+ " OpenMRS runtime properties to read them " + fetchSize + " at a time");
+			}
+		} catch (SQLException e) {
+			log.debug("Unable to check whether the connection fetches with a cursor", e);
+		}
+		fetchSizeWarned = true;
+	}
 
+	/**
+	 * Writes a drug event for each obs firing a trigger with a single INSERT ... SELECT statement
+	 */
+	private int insertDrugEvents(Person person, DrugEventTrigger trigger, Date sinceWhen, Integer afterObsId,
+	                             Integer upToObsId) {
 		Map<String, Object> m = new HashMap<String, Object>();
+		String sql = "INSERT INTO drughistory_drugevent" +
+				" (person_id, encounter_id, concept_id, concept_reason_id, date_occurred, drug_event_type, uuid)" +
+				" SELECT o.person_id, o.encounter_id, " +
+				(trigger.getEventConcept() == null ? "NULL" : trigger.getEventConcept().getId().toString()) + ", " +
+				(trigger.getEventReason() == null ? "NULL" : trigger.getEventReason().getId().toString()) + ", " +
+				"CAST(o.obs_datetime AS DATE), :eventType, " + getUuidFunction() +
+				buildObsCriteria(person, trigger, sinceWhen, afterObsId, upToObsId, m);
+		m.put("eventType", trigger.getEventType().getValue());
+
+		if (isUpsertSupported()) {
+			// events already generated for the same obs are left as they are
+			sql += DrugEventBatchWriter.ON_DUPLICATE_KEY_SQL;
+		}
+
+		Query query = sessionFactory.getCurrentSession().createSQLQuery(sql);
+		mapIntoQuery(query, m);
+		return query.executeUpdate();
+	}
+
+	/**
+	 * Events are written with the trigger's event type, so a trigger without one cannot generate any
+	 */
+	private void checkEventType(DrugEventTrigger trigger) {
+		if (trigger.getEventType() == null) {
+			throw new IllegalArgumentException("Trigger " + trigger.getId() + " has no event type");
+		}
+	}
+
+	/**
+	 * H2, used by the tests, names its UUID function differently from MySQL
+	 */
+	private String getUuidFunction() {
+		if (getSessionFactory() instanceof SessionFactoryImplementor
+				&& ((SessionFactoryImplementor) getSessionFactory()).getDialect() instanceof H2Dialect) {
+			return "RANDOM_UUID()";
+		}
+		return "UUID()";
+	}
+
+	/**
+	 * Builds the FROM and WHERE clauses selecting the obs that fire a trigger, adding the parameter values to m. The
+	 * obs id bounds are optional and select the obs in (afterObsId, upToObsId]. Obs that already have an event with
+	 * the same natural key are left out on incremental runs, on every run where the key is not enforced, and always for
+	 * obs without an encounter, which the key cannot catch.
+	 */
+	private String buildObsCriteria(Person person, DrugEventTrigger trigger, Date sinceWhen, Integer afterObsId,
+	                                Integer upToObsId, Map<String, Object> m) {
+		String sql = " FROM obs o" +
+				" where o.concept_id in (:conceptList)";
 		m.put("conceptList", trigger.getQuestions());
 
 		if (!trigger.getAnswers().isEmpty()) {
@@ -147,7 +488,7 @@ public class HibernateDrugEventDAO implements DrugEventDAO {
 
 		if (person != null) {
 			sql += " and o.person_id = :personId";
-			m.put("personId", person);
+			m.put("personId", person.getPersonId());
 		}
 
 		if (sinceWhen != null) {
@@ -155,50 +496,54 @@ public class HibernateDrugEventDAO implements DrugEventDAO {
 			m.put("sinceWhen", sinceWhen);
 		}
 
-		query = sessionFactory.getCurrentSession().createSQLQuery(sql);
-		mapIntoQuery(query, m);
-
-		List<Object[]> obsList = query.list();
-
-		//Create drug event for each obs returned and save them.
+		if (afterObsId != null) {
+			sql += " and o.obs_id > :afterObsId";
+			m.put("afterObsId", afterObsId);
+		}
 
-		String insertPrefix = "INSERT INTO drughistory_drugevent" +
-				" (person_id, encounter_id, concept_id, concept_reason_id, date_occurred, drug_event_type, uuid)" +
-				" VALUES ";
-		List<String> inserts = new ArrayList<String>();
-
-		int i = 0;
-		SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd");
-
-		for (Object[] ob : obsList) {
-
-			Integer personId = (Integer) ob[0];
-			Integer encounterId = (Integer) ob[1];
-			Date dateOccurred = (Date) ob[2];
-
-			List<String> parts = new ArrayList<String>();
-			parts.add(personId == null ? "NULL" : personId.toString());
-			parts.add(encounterId == null ? "NULL" : encounterId.toString());
-			parts.add(trigger.getEventConcept() == null ? "NULL" : trigger.getEventConcept().getId().toString());
-			parts.add(trigger.getEventReason() == null ? "NULL" : trigger.getEventReason().getId().toString());
-			parts.add(dateOccurred == null ? "NULL" : "'" + sdf.format(dateOccurred) + "'");
-			parts.add("'" + (trigger.getEventType() == null ? "NULL" : trigger.getEventType().getValue()) + "'");
-			parts.add("'" + UUID.randomUUID().toString() + "'");
-
-			inserts.add("(" + StringUtils.join(parts, ", ") + ")");
-
-			if (i++ > 1000) {
-				String insertStatement = insertPrefix + StringUtils.join(inserts, ",");
-				sessionFactory.getCurrentSession().createSQLQuery(insertStatement).executeUpdate();
-				i = 0;
-				inserts.clear();
-			}
+		// incremental runs re-read obs they may already have turned into events, and without the natural key the
+		// insert cannot skip them itself; leave those out. The key treats a null encounter as distinct, so obs without
+		// an encounter are always checked.
+		String notExists = "not exists (select 1 from drughistory_drugevent e" +
+				" where e.person_id = o.person_id" +
+				" and (e.encounter_id = o.encounter_id or (e.encounter_id is null and o.encounter_id is null))" +
+				" and " + (trigger.getEventConcept() == null ? "e.concept_id is null" : "e.concept_id = :eventConceptId") +
+				" and e.drug_event_type = :existingEventType" +
+				" and e.date_occurred = CAST(o.obs_datetime AS DATE))";
+		if (afterObsId != null || !isUpsertSupported()) {
+			sql += " and " + notExists;
+		} else {
+			sql += " and (o.encounter_id is not null or " + notExists + ")";
 		}
+		if (trigger.getEventConcept() != null) {
+			m.put("eventConceptId", trigger.getEventConcept().getConceptId());
+		}
+		m.put("existingEventType", trigger.getEventType().getValue());
 
-		if (!inserts.isEmpty()) {
-			String insertStatement = insertPrefix + StringUtils.join(inserts, ",");
-			sessionFactory.getCurrentSession().createSQLQuery(insertStatement).executeUpdate();
+		if (upToObsId != null) {
+			sql += " and o.obs_id <= :upToObsId";
+			m.put("upToObsId", upToObsId);
 		}
+
+		return sql;
+	}
+
+	/**
+	 * Creates a batch writer on the JDBC connection of the current session
+	 */
+	private DrugEventBatchWriter newBatchWriter(int batchSize) throws SQLException {
+		return new DrugEventBatchWriter(getSessionFactory().getCurrentSession().connection(), batchSize,
+				isUpsertSupported());
+	}
+
+	/**
+	 * The unique key on the natural key of drughistory_drugevent is only added on MySQL, which is also where ON
+	 * DUPLICATE KEY UPDATE is available to skip rows that already exist. Elsewhere generation leaves out existing
+	 * events in its query instead.
+	 */
+	private boolean isUpsertSupported() {
+		return getSessionFactory() instanceof SessionFactoryImplementor
+				&& ((SessionFactoryImplementor) getSessionFactory()).getDialect() instanceof MySQLDialect;
 	}
 
 	private void mapIntoQuery(Query q, Map<String, Object> parameterValues) {
@@ -217,23 +562,233 @@ public class HibernateDrugEventDAO implements DrugEventDAO {
 
 	@Override
 	public List<DrugEvent> getDrugEvents(Properties params) {
+		return getDrugEvents(DrugEventQuery.fromProperties(params));
+	}
+
+	@Override
+	public List<DrugEvent> getDrugEvents(DrugEventQuery query) {
+		return createDrugEventQuery(EventQueryForm.EVENTS_BY_DATE, query, null).list();
+	}
+
+	/**
+	 * Runs with the session in manual flush mode, so pending changes are neither flushed nor seen by the query and the
+	 * projection creates nothing for the session to track; the previous mode is restored afterwards
+	 */
+	@Override
+	public List<DrugEventSummary> getDrugEventSummaries(DrugEventQuery query) {
+		Session session = getSessionFactory().getCurrentSession();
+		FlushMode flushMode = session.getFlushMode();
+		session.setFlushMode(FlushMode.MANUAL);
+		try {
+			List<Object[]> rows = createDrugEventQuery(EventQueryForm.SUMMARIES_BY_DATE, query, null).list();
+			List<DrugEventSummary> summaries = new ArrayList<DrugEventSummary>(rows.size());
+			for (Object[] row : rows) {
+				summaries.add(new DrugEventSummary((Integer) row[0], (Integer) row[1], (Integer) row[2],
+						(Integer) row[3], (DrugEventType) row[4], (Date) row[5]));
+			}
+			return summaries;
+		} finally {
+			session.setFlushMode(flushMode);
+		}
+	}
 
-		if (params == null) {
-			params = new Properties();
+	/**
+	 * Continues from the (date_occurred, drugevent_id) of the last event, which the date_occurred index serves
+	 * directly
+	 */
+	@Override
+	public List<DrugEvent> getDrugEventPage(Properties params, DrugEvent after, int pageSize) {
+		DrugEventQuery query = DrugEventQuery.fromProperties(params);
+		if (query.getLimit() != null) {
+			pageSize = Math.min(pageSize, query.getLimit());
 		}
+		return createDrugEventQuery(EventQueryForm.EVENTS_BY_DATE, query, after)
+				.setMaxResults(pageSize)
+				.list();
+	}
 
-		Criteria criteria = getSessionFactory().getCurrentSession().createCriteria(DrugEvent.class);
+	@Override
+	public void visitDrugEvents(Properties params, ResultVisitor<DrugEvent> visitor) {
+		Session session = getSessionFactory().getCurrentSession();
+		Query query = createDrugEventQuery(EventQueryForm.EVENTS_BY_PERSON, DrugEventQuery.fromProperties(params), null);
+		query.setFetchSize(fetchSize);
+
+		ScrollableResults results = query.scroll(ScrollMode.FORWARD_ONLY);
+		try {
+			while (results.next()) {
+				DrugEvent drugEvent = (DrugEvent) results.get(0);
+				boolean more = visitor.visit(drugEvent);
+				// otherwise the session keeps every event visited so far
+				session.evict(drugEvent);
+				if (!more) {
+					break;
+				}
+			}
+		} finally {
+			results.close();
+		}
+	}
 
-		if (params.containsKey("person")) {
-			criteria.add(Restrictions.eq("person", params.get("person")));
+	/**
+	 * Selects the columns straight from drughistory_drugevent, so no DrugEvent, Person, Encounter or Concept is
+	 * created; only the ids of the many-to-one associations are read
+	 */
+	@Override
+	public void visitDrugEventRows(Properties params, ResultVisitor<DrugEventRow> visitor) {
+		Query query = createDrugEventQuery(EventQueryForm.ROWS_BY_PERSON, DrugEventQuery.fromProperties(params), null);
+		query.setFetchSize(fetchSize);
+
+		DrugEventRow row = new DrugEventRow();
+		ScrollableResults results = query.scroll(ScrollMode.FORWARD_ONLY);
+		try {
+			while (results.next()) {
+				row.setPersonId((Integer) results.get(0));
+				row.setEncounterId((Integer) results.get(1));
+				row.setConceptId((Integer) results.get(2));
+				row.setEventType((DrugEventType) results.get(3));
+				row.setDateOccurred((Date) results.get(4));
+				if (!visitor.visit(row)) {
+					break;
+				}
+			}
+		} finally {
+			results.close();
 		}
+	}
 
-		if (params.containsKey("since")) {
-			criteria.add(Restrictions.ge("dateOccurred", params.get("since")));
+	@Override
+	public List<Integer> getDrugEventPersonIds(Date sinceWhen) {
+		String hql = "select distinct de.person.personId from DrugEvent de where de.person is not null";
+		if (sinceWhen != null) {
+			hql += " and de.dateOccurred >= :since";
 		}
+		hql += " order by de.person.personId";
 
-		criteria.addOrder(Order.asc("dateOccurred"));
+		Query query = getSessionFactory().getCurrentSession().createQuery(hql);
+		if (sinceWhen != null) {
+			query.setTimestamp("since", sinceWhen);
+		}
+		return query.list();
+	}
 
-		return criteria.list();
+	/**
+	 * Creates the HQL query of the given form for the fields set on query, continuing after the given event if there is
+	 * one. The HQL of each combination of form and fields is built once and cached; as the text is then identical
+	 * from call to call, Hibernate's query plan cache also parses it only once.
+	 */
+	private Query createDrugEventQuery(EventQueryForm form, DrugEventQuery query, DrugEvent after) {
+		int shape = getShape(query, after);
+		Integer key = (form.ordinal() << 16) | shape;
+		String hql = HQL_CACHE.get(key);
+		if (hql == null) {
+			hql = buildHql(form, shape);
+			HQL_CACHE.putIfAbsent(key, hql);
+		}
+
+		Query q = getSessionFactory().getCurrentSession().createQuery(hql);
+		if ((shape & PERSON) != 0) {
+			q.setInteger("personId", query.getPerson().getPersonId());
+		}
+		if ((shape & COHORT) != 0) {
+			q.setParameterList("cohort", query.getCohort().getMemberIds());
+		}
+		if ((shape & SINCE) != 0) {
+			q.setTimestamp("since", query.getSince());
+		}
+		if ((shape & UNTIL) != 0) {
+			q.setTimestamp("until", query.getUntil());
+		}
+		if ((shape & FROM_PERSON) != 0) {
+			q.setInteger("fromPersonId", query.getFromPersonId());
+		}
+		if ((shape & TO_PERSON) != 0) {
+			q.setInteger("toPersonId", query.getToPersonId());
+		}
+		if ((shape & EVENT_TYPES) != 0) {
+			// bound with the mapped type of eventType, as Hibernate cannot guess a custom type from the values
+			q.setParameterList("eventTypes", query.getEventTypes(),
+					getSessionFactory().getClassMetadata(DrugEvent.class).getPropertyType("eventType"));
+		}
+		if ((shape & CONCEPTS) != 0) {
+			Set<Integer> conceptIds = new HashSet<Integer>();
+			for (Concept c : query.getConcepts()) {
+				conceptIds.add(c.getConceptId());
+			}
+			q.setParameterList("conceptIds", conceptIds);
+		}
+		if ((shape & AFTER) != 0) {
+			q.setTimestamp("afterDate", after.getDateOccurred());
+			q.setInteger("afterId", after.getDrugEventId());
+		}
+		if (query.getLimit() != null) {
+			q.setMaxResults(query.getLimit());
+		}
+		return q;
+	}
+
+	private static int getShape(DrugEventQuery query, DrugEvent after) {
+		int shape = 0;
+		if (query.getPerson() != null) {
+			shape |= PERSON;
+		}
+		if (query.getCohort() != null) {
+			shape |= COHORT;
+		}
+		if (query.getSince() != null) {
+			shape |= SINCE;
+		}
+		if (query.getUntil() != null) {
+			shape |= UNTIL;
+		}
+		// an inclusive range of person ids, used to split generation across workers
+		if (query.getFromPersonId() != null) {
+			shape |= FROM_PERSON;
+		}
+		if (query.getToPersonId() != null) {
+			shape |= TO_PERSON;
+		}
+		if (query.getEventTypes() != null && !query.getEventTypes().isEmpty()) {
+			shape |= EVENT_TYPES;
+		}
+		if (query.getConcepts() != null && !query.getConcepts().isEmpty()) {
+			shape |= CONCEPTS;
+		}
+		if (after != null) {
+			shape |= AFTER;
+		}
+		return shape;
+	}
+
+	private static String buildHql(EventQueryForm form, int shape) {
+		StringBuilder hql = new StringBuilder(form.select).append(" where 1 = 1");
+		if ((shape & PERSON) != 0) {
+			hql.append(" and de.person.personId = :personId");
+		}
+		if ((shape & COHORT) != 0) {
+			hql.append(" and de.person.personId in (:cohort)");
+		}
+		if ((shape & SINCE) != 0) {
+			hql.append(" and de.dateOccurred >= :since");
+		}
+		if ((shape & UNTIL) != 0) {
+			hql.append(" and de.dateOccurred <= :until");
+		}
+		if ((shape & FROM_PERSON) != 0) {
+			hql.append(" and de.person.personId >= :fromPersonId");
+		}
+		if ((shape & TO_PERSON) != 0) {
+			hql.append(" and de.person.personId <= :toPersonId");
+		}
+		if ((shape & EVENT_TYPES) != 0) {
+			hql.append(" and de.eventType in (:eventTypes)");
+		}
+		if ((shape & CONCEPTS) != 0) {
+			hql.append(" and de.concept.conceptId in (:conceptIds)");
+		}
+		if ((shape & AFTER) != 0) {
+			hql.append(" and (de.dateOccurred > :afterDate")
+					.append(" or (de.dateOccurred = :afterDate and de.drugEventId > :afterId))");
+		}
+		return hql.append(" order by ").append(form.orderBy).toString();
 	}
 }
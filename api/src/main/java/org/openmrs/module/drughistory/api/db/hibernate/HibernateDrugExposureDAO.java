@@ -0,0 +1,158 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+
+package org.openmrs.module.drughistory.api.db.hibernate;
+
+import org.hibernate.Criteria;
+import org.hibernate.Query;
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.hibernate.criterion.Order;
+import org.hibernate.criterion.Restrictions;
+import org.hibernate.engine.SessionFactoryImplementor;
+import org.openmrs.Cohort;
+import org.openmrs.Concept;
+import org.openmrs.Person;
+import org.openmrs.api.db.DAOException;
+import org.openmrs.module.drughistory.DrugExposure;
+import org.openmrs.module.drughistory.DrugExposureRecord;
+import org.openmrs.module.drughistory.api.db.DrugExposureDAO;
+
+import java.sql.SQLException;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+
+public class HibernateDrugExposureDAO implements DrugExposureDAO {
+
+	/**
+	 * number of exposures sent to the database per JDBC batch when hibernate.jdbc.batch_size is not set
+	 */
+	public static final int DEFAULT_BATCH_SIZE = 500;
+
+	private SessionFactory sessionFactory;
+
+	public void setSessionFactory(SessionFactory sessionFactory) {
+		this.sessionFactory = sessionFactory;
+	}
+
+	public SessionFactory getSessionFactory() {
+		return sessionFactory;
+	}
+
+	/**
+	 * An exposure overlaps the since/until window when it starts on or before until and is still active or stops after
+	 * since; the (concept_id, start_date, stop_date) and (person_id, concept_id, start_date) indexes serve both bounds
+	 * as range scans
+	 */
+	@Override
+	public List<DrugExposure> getDrugExposures(Properties params) {
+		Criteria criteria = getSessionFactory().getCurrentSession().createCriteria(DrugExposure.class);
+
+		if (params != null) {
+			if (params.get("person") instanceof Person) {
+				criteria.add(Restrictions.eq("person", params.get("person")));
+			}
+			if (params.get("cohort") instanceof Cohort) {
+				criteria.add(Restrictions.in("person.personId", ((Cohort) params.get("cohort")).getMemberIds()));
+			}
+			if (params.get("drugs") instanceof Set) {
+				Set<Integer> drugIds = new HashSet<Integer>();
+				for (Concept c : (Set<Concept>) params.get("drugs")) {
+					drugIds.add(c.getConceptId());
+				}
+				criteria.add(Restrictions.in("concept.conceptId", drugIds));
+			}
+			if (params.get("since") instanceof Date) {
+				criteria.add(Restrictions.or(Restrictions.isNull("stopDate"),
+						Restrictions.gt("stopDate", params.get("since"))));
+			}
+			if (params.get("until") instanceof Date) {
+				criteria.add(Restrictions.le("startDate", params.get("until")));
+			}
+		}
+
+		criteria.addOrder(Order.asc("person"));
+		criteria.addOrder(Order.asc("startDate"));
+		criteria.addOrder(Order.asc("drugExposureId"));
+		return criteria.list();
+	}
+
+	@Override
+	public int saveDrugExposureRecords(List<DrugExposureRecord> records) {
+		if (records == null || records.isEmpty()) {
+			return 0;
+		}
+
+		try {
+			DrugExposureBatchWriter writer = new DrugExposureBatchWriter(getSessionFactory().getCurrentSession()
+					.connection(), getBatchSize());
+			try {
+				for (DrugExposureRecord record : records) {
+					writer.add(record);
+				}
+				return writer.finish();
+			} finally {
+				writer.close();
+			}
+		} catch (SQLException e) {
+			throw new DAOException("Unable to save drug exposures", e);
+		}
+	}
+
+	@Override
+	public int purgeDrugExposures(Properties params) {
+		Map<String, Object> m = new HashMap<String, Object>();
+		String where = " WHERE 1 = 1";
+
+		if (params != null) {
+			if (params.get("person") instanceof Person) {
+				where += " AND person_id = :personId";
+				m.put("personId", ((Person) params.get("person")).getPersonId());
+			}
+			if (params.containsKey("fromPersonId")) {
+				where += " AND person_id >= :fromPersonId";
+				m.put("fromPersonId", params.get("fromPersonId"));
+			}
+			if (params.containsKey("toPersonId")) {
+				where += " AND person_id <= :toPersonId";
+				m.put("toPersonId", params.get("toPersonId"));
+			}
+		}
+
+		// the delete bypasses the session, so push pending changes out first
+		Session session = getSessionFactory().getCurrentSession();
+		session.flush();
+
+		Query query = session.createSQLQuery("DELETE FROM drughistory_drugexposure" + where);
+		for (Map.Entry<String, Object> e : m.entrySet()) {
+			query.setParameter(e.getKey(), e.getValue());
+		}
+		return query.executeUpdate();
+	}
+
+	private int getBatchSize() {
+		if (getSessionFactory() instanceof SessionFactoryImplementor) {
+			int hibernateBatchSize = ((SessionFactoryImplementor) getSessionFactory()).getSettings().getJdbcBatchSize();
+			if (hibernateBatchSize > 0) {
+				return hibernateBatchSize;
+			}
+		}
+		return DEFAULT_BATCH_SIZE;
+	}
+}
@@ -16,31 +16,76 @@ package org.openmrs.module.drughistory.api.db.hibernate;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
-import org.hibernate.Criteria;
+import org.hibernate.FlushMode;
+import org.hibernate.Hibernate;
+import org.hibernate.Query;
+import org.hibernate.ScrollMode;
+import org.hibernate.ScrollableResults;
+import org.hibernate.Session;
 import org.hibernate.SessionFactory;
 import org.hibernate.criterion.ProjectionList;
 import org.hibernate.criterion.Projections;
-import org.hibernate.criterion.Restrictions;
-import org.openmrs.Cohort;
-import org.openmrs.Concept;
+import org.hibernate.engine.SessionFactoryImplementor;
 import org.openmrs.Patient;
+import org.openmrs.Person;
+import org.openmrs.api.db.DAOException;
+import org.openmrs.module.drughistory.ConceptIdSet;
+import org.openmrs.module.drughistory.DrugSetFingerprint;
 import org.openmrs.module.drughistory.DrugSnapshot;
+import org.openmrs.module.drughistory.DrugSnapshotQuery;
+import org.openmrs.module.drughistory.DrugSnapshotRecord;
+import org.openmrs.module.drughistory.DrugSnapshotSummary;
+import org.openmrs.module.drughistory.RegimenMatcher;
+import org.openmrs.module.drughistory.api.ResultVisitor;
 import org.openmrs.module.drughistory.api.db.DrugSnapshotDAO;
 
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Date;
-import java.util.HashSet;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
-import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 public class HibernateDrugSnapshotDAO implements DrugSnapshotDAO {
 
 	protected final Log log = LogFactory.getLog(this.getClass());
 
+	/**
+	 * number of snapshots sent to the database per JDBC batch when hibernate.jdbc.batch_size is not set
+	 */
+	public static final int DEFAULT_BATCH_SIZE = 500;
+
+	// the fields set on a DrugSnapshotQuery, one bit each, and whether the count or summaries are selected instead of
+	// snapshots, selecting a cached HQL statement
+	private static final int PERSON = 1;
+	private static final int COHORT = 1 << 1;
+	private static final int DRUGS = 1 << 2;
+	private static final int DRUG_SET = 1 << 3;
+	private static final int SINCE = 1 << 4;
+	private static final int UNTIL = 1 << 5;
+	private static final int AFTER = 1 << 6;
+	private static final int ALL_DRUGS = 1 << 7;
+	private static final int COUNT = 1 << 8;
+	private static final int SUMMARIES = 1 << 9;
+	private static final int EMPTY_DRUG_SET = 1 << 10;
+
+	// rules out fingerprint collisions by comparing the snapshot's concepts with the drug set itself
+	private static final String EXACT_DRUG_SET_HQL = " and size(ds.concepts) = :drugSetSize" +
+			" and :drugSetSize = (select count(c.conceptId) from DrugSnapshot s join s.concepts c" +
+			" where s.drugSnapshotId = ds.drugSnapshotId and c.conceptId in (:drugSetIds))";
+
+	private static final ConcurrentMap<Integer, String> HQL_CACHE = new ConcurrentHashMap<Integer, String>();
+
 	private SessionFactory sessionFactory;
 
+	private Integer batchSize;
+
 	/**
 	 * @param sessionFactory the sessionFactory to set
 	 */
@@ -55,39 +100,619 @@ public class HibernateDrugSnapshotDAO implements DrugSnapshotDAO {
 		return sessionFactory;
 	}
 
+	/**
+	 * @return the number of snapshots written per JDBC batch: the configured batch size, otherwise Hibernate's
+	 *         hibernate.jdbc.batch_size, otherwise {@link #DEFAULT_BATCH_SIZE}
+	 */
+	public int getBatchSize() {
+		if (batchSize != null) {
+			return batchSize;
+		}
+		if (getSessionFactory() instanceof SessionFactoryImplementor) {
+			int hibernateBatchSize = ((SessionFactoryImplementor) getSessionFactory()).getSettings().getJdbcBatchSize();
+			if (hibernateBatchSize > 0) {
+				return hibernateBatchSize;
+			}
+		}
+		return DEFAULT_BATCH_SIZE;
+	}
+
+	/**
+	 * @param batchSize the number of snapshots written per JDBC batch, or null to follow hibernate.jdbc.batch_size
+	 */
+	public void setBatchSize(Integer batchSize) {
+		this.batchSize = batchSize;
+	}
+
 	@Override
 	public List<DrugSnapshot> getDrugSnapshots(Properties params) {
-		Criteria criteria = getSessionFactory().getCurrentSession().createCriteria(DrugSnapshot.class);
+		return getDrugSnapshots(DrugSnapshotQuery.fromProperties(params));
+	}
 
-		if (params != null) {
-			if (params.containsKey("cohort") && params.get("cohort") instanceof Cohort) {
-				// only retrieve snapshots for these person Ids
-				Cohort cohort = (Cohort) params.get("cohort");
-				criteria.add(Restrictions.in("person.personId", cohort.getMemberIds()));
+	@Override
+	public List<DrugSnapshot> getDrugSnapshots(DrugSnapshotQuery query) {
+		return createDrugSnapshotQuery(query, null, 0).list();
+	}
+
+	/**
+	 * Projects the snapshot columns, then reads the concepts of a batch of snapshots at a time. Runs with the session in
+	 * manual flush mode, so pending changes are neither flushed nor seen by the queries and nothing is created for the
+	 * session to track; the previous mode is restored afterwards.
+	 */
+	@Override
+	public List<DrugSnapshotSummary> getDrugSnapshotSummaries(DrugSnapshotQuery query) {
+		Session session = getSessionFactory().getCurrentSession();
+		FlushMode flushMode = session.getFlushMode();
+		session.setFlushMode(FlushMode.MANUAL);
+		try {
+			List<Object[]> rows = createDrugSnapshotQuery(query, null, SUMMARIES).list();
+
+			Map<Integer, List<Integer>> conceptIds = new HashMap<Integer, List<Integer>>();
+			for (int from = 0; from < rows.size(); from += getBatchSize()) {
+				List<Integer> snapshotIds = new ArrayList<Integer>();
+				for (Object[] row : rows.subList(from, Math.min(from + getBatchSize(), rows.size()))) {
+					snapshotIds.add((Integer) row[0]);
+					conceptIds.put((Integer) row[0], new ArrayList<Integer>());
+				}
+				List<Object[]> concepts = session.createSQLQuery("SELECT drugsnapshot_id, concept_id" +
+						" FROM drughistory_drugsnapshot_concept WHERE drugsnapshot_id IN (:ids)")
+						.addScalar("drugsnapshot_id", Hibernate.INTEGER)
+						.addScalar("concept_id", Hibernate.INTEGER)
+						.setParameterList("ids", snapshotIds)
+						.list();
+				for (Object[] concept : concepts) {
+					conceptIds.get((Integer) concept[0]).add((Integer) concept[1]);
+				}
 			}
-			if (params.containsKey("drugs") && params.get("drugs") instanceof Set) {
-				// only get back snapshots related to these drugs
-				Set<Integer> drugIds = new HashSet<Integer>();
-				for (Concept c : (Set<Concept>) params.get("drugs")) {
-					drugIds.add(c.getConceptId());
+
+			// people tend to stay on the same drugs, so summaries with equal sets share one instance
+			Map<ConceptIdSet, ConceptIdSet> sets = new HashMap<ConceptIdSet, ConceptIdSet>();
+			List<DrugSnapshotSummary> summaries = new ArrayList<DrugSnapshotSummary>(rows.size());
+			for (Object[] row : rows) {
+				ConceptIdSet set = ConceptIdSet.of(toIntArray(conceptIds.get((Integer) row[0])));
+				ConceptIdSet shared = sets.get(set);
+				if (shared == null) {
+					sets.put(set, set);
+					shared = set;
 				}
-				criteria.createAlias("concepts", "ack");
-				criteria.add(Restrictions.in("ack.conceptId", drugIds));
+				summaries.add(new DrugSnapshotSummary((Integer) row[0], (Integer) row[1], (Integer) row[2],
+						(Date) row[3], shared));
 			}
+			return summaries;
+		} finally {
+			session.setFlushMode(flushMode);
+		}
+	}
+
+	@Override
+	public long getDrugSnapshotCount(DrugSnapshotQuery query) {
+		return ((Number) createDrugSnapshotQuery(query, null, COUNT).uniqueResult()).longValue();
+	}
+
+	/**
+	 * Continues from the (person_id, date_taken, drugsnapshot_id) of the last snapshot, which the
+	 * (person_id, date_taken) index serves directly
+	 */
+	@Override
+	public List<DrugSnapshot> getDrugSnapshotPage(Properties params, DrugSnapshot after, int pageSize) {
+		DrugSnapshotQuery query = DrugSnapshotQuery.fromProperties(params);
+		if (query.getLimit() != null) {
+			pageSize = Math.min(pageSize, query.getLimit());
 		}
+		return createDrugSnapshotQuery(query, after, 0)
+				.setMaxResults(pageSize)
+				.list();
+	}
+
+	@Override
+	public void visitDrugSnapshots(Properties params, ResultVisitor<DrugSnapshot> visitor) {
+		Session session = getSessionFactory().getCurrentSession();
+		Query query = createDrugSnapshotQuery(DrugSnapshotQuery.fromProperties(params), null, 0);
+		query.setFetchSize(getBatchSize());
 
-		return criteria.list();
+		ScrollableResults results = query.scroll(ScrollMode.FORWARD_ONLY);
+		try {
+			while (results.next()) {
+				DrugSnapshot snapshot = (DrugSnapshot) results.get(0);
+				boolean more = visitor.visit(snapshot);
+				// otherwise the session keeps every snapshot visited so far
+				session.evict(snapshot);
+				if (!more) {
+					break;
+				}
+			}
+		} finally {
+			results.close();
+		}
 	}
 
+	/**
+	 * Snapshots that already have an id are updated through the session; new ones are inserted, along with their
+	 * concepts, through JDBC batches
+	 */
 	@Override
 	public void saveSnapshots(List<DrugSnapshot> snapshots) {
-		// TODO do this better
-		for (DrugSnapshot snapshot : snapshots) {
-			saveSnapshot(snapshot);
+		saveSnapshots(snapshots, null);
+	}
+
+	@Override
+	public void saveSnapshots(List<DrugSnapshot> snapshots, RegimenMatcher matcher) {
+		if (snapshots == null || snapshots.isEmpty()) {
+			return;
+		}
+
+		Session session = getSessionFactory().getCurrentSession();
+		try {
+			DrugSnapshotBatchWriter writer = new DrugSnapshotBatchWriter(session.connection(), getBatchSize(), matcher);
+			try {
+				for (DrugSnapshot snapshot : snapshots) {
+					if (snapshot.getDrugSnapshotId() == null) {
+						writer.add(snapshot);
+					} else {
+						saveSnapshot(snapshot);
+					}
+				}
+				writer.finish();
+			} finally {
+				writer.close();
+			}
+		} catch (SQLException e) {
+			throw new DAOException("Unable to save drug snapshots", e);
+		}
+	}
+
+	@Override
+	public int saveSnapshotRecords(List<DrugSnapshotRecord> records, RegimenMatcher matcher) {
+		if (records == null || records.isEmpty()) {
+			return 0;
+		}
+
+		try {
+			DrugSnapshotBatchWriter writer = new DrugSnapshotBatchWriter(getSessionFactory().getCurrentSession()
+					.connection(), getBatchSize(), matcher);
+			try {
+				for (DrugSnapshotRecord record : records) {
+					writer.add(record);
+				}
+				return writer.finish();
+			} finally {
+				writer.close();
+			}
+		} catch (SQLException e) {
+			throw new DAOException("Unable to save drug snapshots", e);
+		}
+	}
+
+	@Override
+	public DrugSnapshot getLatestDrugSnapshot(Integer personId, Date before) {
+		return (DrugSnapshot) createLatestSnapshotQuery("from DrugSnapshot ds", personId, before, false).uniqueResult();
+	}
+
+	@Override
+	public DrugSnapshot getDrugSnapshotOnDate(Integer personId, Date date) {
+		return (DrugSnapshot) createLatestSnapshotQuery("from DrugSnapshot ds", personId, date, true).uniqueResult();
+	}
+
+	@Override
+	public int[] getLatestDrugSnapshotConceptIds(Integer personId, Date before) {
+		return getSnapshotConceptIds(personId, before, false);
+	}
+
+	@Override
+	public int[] getDrugSnapshotConceptIdsOnDate(Integer personId, Date date) {
+		return getSnapshotConceptIds(personId, date, true);
+	}
+
+	@Override
+	public Map<Integer, int[]> getDrugSnapshotConceptIds(Collection<Integer> drugSnapshotIds) {
+		Map<Integer, List<Integer>> conceptIds = new HashMap<Integer, List<Integer>>();
+		if (drugSnapshotIds == null || drugSnapshotIds.isEmpty()) {
+			return new HashMap<Integer, int[]>();
+		}
+
+		Session session = getSessionFactory().getCurrentSession();
+		List<Integer> ids = new ArrayList<Integer>(drugSnapshotIds);
+		for (int from = 0; from < ids.size(); from += getBatchSize()) {
+			List<Object[]> rows = session.createSQLQuery("SELECT dc.drugsnapshot_id, dc.concept_id" +
+					" FROM drughistory_drugsnapshot_concept dc WHERE dc.drugsnapshot_id IN (:drugSnapshotIds)")
+					.addScalar("drugsnapshot_id", Hibernate.INTEGER)
+					.addScalar("concept_id", Hibernate.INTEGER)
+					.setParameterList("drugSnapshotIds", ids.subList(from, Math.min(from + getBatchSize(), ids.size())))
+					.list();
+			for (Object[] row : rows) {
+				List<Integer> snapshotConceptIds = conceptIds.get((Integer) row[0]);
+				if (snapshotConceptIds == null) {
+					snapshotConceptIds = new ArrayList<Integer>();
+					conceptIds.put((Integer) row[0], snapshotConceptIds);
+				}
+				snapshotConceptIds.add((Integer) row[1]);
+			}
+		}
+
+		Map<Integer, int[]> results = new HashMap<Integer, int[]>();
+		for (Map.Entry<Integer, List<Integer>> e : conceptIds.entrySet()) {
+			results.put(e.getKey(), toIntArray(e.getValue()));
+		}
+		return results;
+	}
+
+	/**
+	 * Picks each person's latest snapshot with a NOT EXISTS on a later one rather than a window function, which MySQL
+	 * 5 does not have; both sides are served by the (person_id, date_taken) index. People are looked up a batch at a
+	 * time to keep the IN list bounded.
+	 */
+	@Override
+	public Map<Integer, int[]> getDrugSnapshotConceptIdsOnDate(Collection<Integer> personIds, Date date) {
+		if (personIds == null || personIds.isEmpty()) {
+			return new HashMap<Integer, int[]>();
+		}
+
+		Map<Integer, List<Integer>> conceptIds = new HashMap<Integer, List<Integer>>();
+		Session session = getSessionFactory().getCurrentSession();
+		List<Integer> ids = new ArrayList<Integer>(personIds);
+		for (int from = 0; from < ids.size(); from += getBatchSize()) {
+			List<Object[]> rows = session.createSQLQuery("SELECT ds.person_id, dc.concept_id" +
+					" FROM drughistory_drugsnapshot ds" +
+					" LEFT JOIN drughistory_drugsnapshot_concept dc ON dc.drugsnapshot_id = ds.drugsnapshot_id" +
+					" WHERE ds.person_id IN (:personIds) AND ds.date_taken <= :date" +
+					" AND NOT EXISTS (SELECT 1 FROM drughistory_drugsnapshot later" +
+					" WHERE later.person_id = ds.person_id AND later.date_taken <= :date" +
+					" AND (later.date_taken > ds.date_taken" +
+					" OR (later.date_taken = ds.date_taken AND later.drugsnapshot_id > ds.drugsnapshot_id)))")
+					.addScalar("person_id", Hibernate.INTEGER)
+					.addScalar("concept_id", Hibernate.INTEGER)
+					.setParameterList("personIds", ids.subList(from, Math.min(from + getBatchSize(), ids.size())))
+					.setTimestamp("date", date)
+					.list();
+			for (Object[] row : rows) {
+				List<Integer> personConceptIds = conceptIds.get((Integer) row[0]);
+				if (personConceptIds == null) {
+					personConceptIds = new ArrayList<Integer>();
+					conceptIds.put((Integer) row[0], personConceptIds);
+				}
+				// an empty snapshot joins to a single row without a concept
+				if (row[1] != null) {
+					personConceptIds.add((Integer) row[1]);
+				}
+			}
+		}
+
+		Map<Integer, int[]> results = new HashMap<Integer, int[]>();
+		for (Map.Entry<Integer, List<Integer>> e : conceptIds.entrySet()) {
+			results.put(e.getKey(), toIntArray(e.getValue()));
+		}
+		return results;
+	}
+
+	/**
+	 * Uses the same NOT EXISTS form of "latest snapshot per person" as
+	 * {@link #getDrugSnapshotConceptIdsOnDate(java.util.Collection, java.util.Date)}; a snapshot contains the drugs
+	 * when as many of its concepts are among them as there are drugs
+	 */
+	@Override
+	public List<Integer> getPersonIdsWithDrugsOnDate(int[] conceptIds, Date date) {
+		List<Integer> ids = toIntegerList(conceptIds);
+		return getSessionFactory().getCurrentSession().createSQLQuery("SELECT ds.person_id" +
+				" FROM drughistory_drugsnapshot ds" +
+				" WHERE ds.date_taken <= :date" +
+				" AND NOT EXISTS (SELECT 1 FROM drughistory_drugsnapshot later" +
+				" WHERE later.person_id = ds.person_id AND later.date_taken <= :date" +
+				" AND (later.date_taken > ds.date_taken" +
+				" OR (later.date_taken = ds.date_taken AND later.drugsnapshot_id > ds.drugsnapshot_id)))" +
+				" AND (SELECT COUNT(*) FROM drughistory_drugsnapshot_concept dc" +
+				" WHERE dc.drugsnapshot_id = ds.drugsnapshot_id AND dc.concept_id IN (:conceptIds)) = :drugCount" +
+				" ORDER BY ds.person_id")
+				.addScalar("person_id", Hibernate.INTEGER)
+				.setTimestamp("date", date)
+				.setParameterList("conceptIds", ids)
+				.setInteger("drugCount", ids.size())
+				.list();
+	}
+
+	@Override
+	public List<Integer> getDrugSnapshotPersonIds(int[] conceptIds) {
+		int[] sorted = DrugSetFingerprint.toSortedConceptIds(conceptIds);
+		Query q = getSessionFactory().getCurrentSession().createQuery("select distinct ds.person.personId" +
+				" from DrugSnapshot ds where ds.drugFingerprint = :drugFingerprint" +
+				(sorted.length == 0 ? " and size(ds.concepts) = 0" : EXACT_DRUG_SET_HQL) +
+				" order by ds.person.personId")
+				.setLong("drugFingerprint", DrugSetFingerprint.ofSorted(sorted));
+		if (sorted.length > 0) {
+			setDrugSetParameters(q, sorted);
+		}
+		return q.list();
+	}
+
+	/**
+	 * Works through the snapshots without a fingerprint a batch at a time, reading their concept ids and writing the
+	 * fingerprints back through a JDBC batch
+	 */
+	@Override
+	public int updateDrugFingerprints() {
+		Session session = getSessionFactory().getCurrentSession();
+		session.flush();
+
+		int updated = 0;
+		try {
+			PreparedStatement update = session.connection().prepareStatement(
+					"UPDATE drughistory_drugsnapshot SET drug_fingerprint = ? WHERE drugsnapshot_id = ?");
+			try {
+				List<Integer> ids;
+				do {
+					ids = session.createSQLQuery("SELECT drugsnapshot_id FROM drughistory_drugsnapshot" +
+							" WHERE drug_fingerprint IS NULL ORDER BY drugsnapshot_id")
+							.addScalar("drugsnapshot_id", Hibernate.INTEGER)
+							.setMaxResults(getBatchSize())
+							.list();
+					if (ids.isEmpty()) {
+						break;
+					}
+
+					Map<Integer, List<Integer>> conceptIds = new HashMap<Integer, List<Integer>>();
+					for (Integer id : ids) {
+						conceptIds.put(id, new ArrayList<Integer>());
+					}
+					List<Object[]> rows = session.createSQLQuery("SELECT drugsnapshot_id, concept_id" +
+							" FROM drughistory_drugsnapshot_concept WHERE drugsnapshot_id IN (:ids)")
+							.addScalar("drugsnapshot_id", Hibernate.INTEGER)
+							.addScalar("concept_id", Hibernate.INTEGER)
+							.setParameterList("ids", ids)
+							.list();
+					for (Object[] row : rows) {
+						conceptIds.get((Integer) row[0]).add((Integer) row[1]);
+					}
+
+					for (Map.Entry<Integer, List<Integer>> e : conceptIds.entrySet()) {
+						update.setLong(1, DrugSetFingerprint.of(toIntArray(e.getValue())));
+						update.setInt(2, e.getKey());
+						update.addBatch();
+					}
+					update.executeBatch();
+					updated += ids.size();
+				} while (ids.size() == getBatchSize());
+			} finally {
+				update.close();
+			}
+		} catch (SQLException e) {
+			throw new DAOException("Unable to update drug snapshot fingerprints", e);
+		}
+		return updated;
+	}
+
+	@Override
+	public int purgeDrugSnapshots(Properties params) {
+		Map<String, Object> m = new HashMap<String, Object>();
+		String where = " WHERE 1 = 1";
+
+		if (params != null) {
+			if (params.get("person") instanceof Person) {
+				where += " AND person_id = :personId";
+				m.put("personId", ((Person) params.get("person")).getPersonId());
+			}
+			if (params.get("since") instanceof Date) {
+				where += " AND date_taken >= :since";
+				m.put("since", params.get("since"));
+			}
+			if (params.containsKey("fromPersonId")) {
+				where += " AND person_id >= :fromPersonId";
+				m.put("fromPersonId", params.get("fromPersonId"));
+			}
+			if (params.containsKey("toPersonId")) {
+				where += " AND person_id <= :toPersonId";
+				m.put("toPersonId", params.get("toPersonId"));
+			}
+		}
+
+		// the deletes bypass the session, so push pending changes out first
+		Session session = getSessionFactory().getCurrentSession();
+		session.flush();
+
+		Query regimens = session.createSQLQuery("DELETE FROM drughistory_snapshot_regimen WHERE drugsnapshot_id IN" +
+				" (SELECT drugsnapshot_id FROM drughistory_drugsnapshot" + where + ")");
+		setParameters(regimens, m);
+		regimens.executeUpdate();
+
+		Query concepts = session.createSQLQuery("DELETE FROM drughistory_drugsnapshot_concept WHERE drugsnapshot_id IN" +
+				" (SELECT drugsnapshot_id FROM drughistory_drugsnapshot" + where + ")");
+		setParameters(concepts, m);
+		concepts.executeUpdate();
+
+		Query snapshots = session.createSQLQuery("DELETE FROM drughistory_drugsnapshot" + where);
+		setParameters(snapshots, m);
+		return snapshots.executeUpdate();
+	}
+
+	/**
+	 * Creates the HQL query for the fields set on query, ordered by person, date taken and id and continuing after the
+	 * given snapshot if there is one. The select is the snapshots, their COUNT or the columns of their SUMMARIES. The
+	 * HQL of each combination of fields is built once and cached; as the text is then identical from call to call,
+	 * Hibernate's query plan cache also parses it only once.
+	 */
+	private Query createDrugSnapshotQuery(DrugSnapshotQuery query, DrugSnapshot after, int select) {
+		int shape = getShape(query, after) | select;
+		String hql = HQL_CACHE.get(shape);
+		if (hql == null) {
+			hql = buildHql(shape);
+			HQL_CACHE.putIfAbsent(shape, hql);
+		}
+
+		Query q = getSessionFactory().getCurrentSession().createQuery(hql);
+		if ((shape & PERSON) != 0) {
+			q.setInteger("personId", query.getPerson().getPersonId());
+		}
+		if ((shape & COHORT) != 0) {
+			q.setParameterList("cohort", query.getCohort().getMemberIds());
+		}
+		if ((shape & DRUGS) != 0) {
+			q.setParameterList("drugIds", toIntegerList(DrugSetFingerprint.toSortedConceptIds(query.getDrugs())));
+		}
+		if ((shape & ALL_DRUGS) != 0) {
+			List<Integer> allDrugIds = toIntegerList(DrugSetFingerprint.toSortedConceptIds(query.getAllDrugs()));
+			q.setParameterList("allDrugIds", allDrugIds);
+			q.setLong("allDrugCount", allDrugIds.size());
+		}
+		if ((shape & DRUG_SET) != 0) {
+			int[] drugSetIds = DrugSetFingerprint.toSortedConceptIds(query.getDrugSet());
+			q.setLong("drugFingerprint", DrugSetFingerprint.ofSorted(drugSetIds));
+			setDrugSetParameters(q, drugSetIds);
+		}
+		if ((shape & SINCE) != 0) {
+			q.setTimestamp("since", query.getSince());
+		}
+		if ((shape & UNTIL) != 0) {
+			q.setTimestamp("until", query.getUntil());
+		}
+		if ((shape & AFTER) != 0) {
+			q.setInteger("afterPersonId", after.getPerson().getPersonId());
+			q.setTimestamp("afterDate", after.getDateTaken());
+			q.setInteger("afterId", after.getDrugSnapshotId());
+		}
+		if (query.getLimit() != null && select != COUNT) {
+			q.setMaxResults(query.getLimit());
+		}
+		return q;
+	}
+
+	private static int getShape(DrugSnapshotQuery query, DrugSnapshot after) {
+		int shape = 0;
+		if (query.getPerson() != null) {
+			shape |= PERSON;
+		}
+		if (query.getCohort() != null) {
+			shape |= COHORT;
+		}
+		if (query.getDrugs() != null && !query.getDrugs().isEmpty()) {
+			shape |= DRUGS;
+		}
+		if (query.getAllDrugs() != null && !query.getAllDrugs().isEmpty()) {
+			shape |= ALL_DRUGS;
+		}
+		if (query.getDrugSet() != null) {
+			shape |= query.getDrugSet().isEmpty() ? EMPTY_DRUG_SET : DRUG_SET;
+		}
+		if (query.getSince() != null) {
+			shape |= SINCE;
+		}
+		if (query.getUntil() != null) {
+			shape |= UNTIL;
+		}
+		if (after != null) {
+			shape |= AFTER;
+		}
+		return shape;
+	}
+
+	/**
+	 * The drug filters are correlated subqueries on the snapshot's concepts rather than a join, so each snapshot is
+	 * returned (and counted) once however many of the drugs it contains
+	 */
+	private static String buildHql(int shape) {
+		StringBuilder hql = new StringBuilder();
+		if ((shape & COUNT) != 0) {
+			hql.append("select count(ds.drugSnapshotId)");
+		} else if ((shape & SUMMARIES) != 0) {
+			hql.append("select ds.drugSnapshotId, ds.person.personId, ds.encounter.encounterId, ds.dateTaken");
+		} else {
+			hql.append("select ds");
+		}
+		hql.append(" from DrugSnapshot ds where 1 = 1");
+		if ((shape & DRUGS) != 0) {
+			// contains at least one of the drugs
+			hql.append(" and exists (select s.drugSnapshotId from DrugSnapshot s join s.concepts c")
+					.append(" where s.drugSnapshotId = ds.drugSnapshotId and c.conceptId in (:drugIds))");
+		}
+		if ((shape & ALL_DRUGS) != 0) {
+			// contains every one of the drugs
+			hql.append(" and :allDrugCount = (select count(c.conceptId) from DrugSnapshot s join s.concepts c")
+					.append(" where s.drugSnapshotId = ds.drugSnapshotId and c.conceptId in (:allDrugIds))");
+		}
+		if ((shape & PERSON) != 0) {
+			hql.append(" and ds.person.personId = :personId");
+		}
+		if ((shape & COHORT) != 0) {
+			hql.append(" and ds.person.personId in (:cohort)");
+		}
+		if ((shape & DRUG_SET) != 0) {
+			// only get back snapshots with exactly these drugs, narrowed down through the fingerprint index
+			hql.append(" and ds.drugFingerprint = :drugFingerprint").append(EXACT_DRUG_SET_HQL);
+		}
+		if ((shape & EMPTY_DRUG_SET) != 0) {
+			hql.append(" and size(ds.concepts) = 0");
+		}
+		if ((shape & SINCE) != 0) {
+			hql.append(" and ds.dateTaken >= :since");
+		}
+		if ((shape & UNTIL) != 0) {
+			hql.append(" and ds.dateTaken <= :until");
+		}
+		if ((shape & AFTER) != 0) {
+			hql.append(" and (ds.person.personId > :afterPersonId or (ds.person.personId = :afterPersonId")
+					.append(" and (ds.dateTaken > :afterDate or (ds.dateTaken = :afterDate")
+					.append(" and ds.drugSnapshotId > :afterId))))");
+		}
+		if ((shape & COUNT) != 0) {
+			return hql.toString();
+		}
+		return hql.append(" order by ds.person.personId, ds.dateTaken, ds.drugSnapshotId").toString();
+	}
+
+	private int[] getSnapshotConceptIds(Integer personId, Date date, boolean inclusive) {
+		Integer snapshotId = (Integer) createLatestSnapshotQuery("select ds.drugSnapshotId from DrugSnapshot ds",
+				personId, date, inclusive).uniqueResult();
+		if (snapshotId == null) {
+			return null;
+		}
+
+		List<Integer> conceptIds = getSessionFactory().getCurrentSession().createSQLQuery("SELECT concept_id" +
+				" FROM drughistory_drugsnapshot_concept WHERE drugsnapshot_id = :snapshotId")
+				.addScalar("concept_id", Hibernate.INTEGER)
+				.setInteger("snapshotId", snapshotId)
+				.list();
+		return toIntArray(conceptIds);
+	}
+
+	/**
+	 * selects the person's latest snapshot taken before date, or on or before it if inclusive, using the
+	 * (person_id, date_taken) order
+	 */
+	private Query createLatestSnapshotQuery(String selectFrom, Integer personId, Date date, boolean inclusive) {
+		return getSessionFactory().getCurrentSession().createQuery(selectFrom +
+				" where ds.person.personId = :personId and ds.dateTaken " + (inclusive ? "<=" : "<") + " :date" +
+				" order by ds.dateTaken desc, ds.drugSnapshotId desc")
+				.setInteger("personId", personId)
+				.setTimestamp("date", date)
+				.setMaxResults(1);
+	}
+
+	private static void setDrugSetParameters(Query query, int[] sortedConceptIds) {
+		query.setLong("drugSetSize", sortedConceptIds.length);
+		query.setParameterList("drugSetIds", toIntegerList(sortedConceptIds));
+	}
+
+	private void setParameters(Query query, Map<String, Object> parameterValues) {
+		for (Map.Entry<String, Object> e : parameterValues.entrySet()) {
+			query.setParameter(e.getKey(), e.getValue());
+		}
+	}
+
+	private static List<Integer> toIntegerList(int[] values) {
+		List<Integer> integers = new ArrayList<Integer>(values.length);
+		for (int value : values) {
+			integers.add(value);
+		}
+		return integers;
+	}
+
+	private static int[] toIntArray(List<Integer> values) {
+		int[] ints = new int[values.size()];
+		for (int i = 0; i < ints.length; i++) {
+			ints[i] = values.get(i);
 		}
+		return ints;
 	}
 
 	private void saveSnapshot(DrugSnapshot snapshot) {
+		snapshot.setDrugFingerprint(DrugSetFingerprint.of(snapshot.getConcepts()));
 		getSessionFactory().getCurrentSession().saveOrUpdate(snapshot);
 	}
 }
@@ -15,13 +15,17 @@
 package org.openmrs.module.drughistory.api.db.hibernate;
 
 import org.hibernate.Criteria;
+import org.hibernate.Query;
 import org.hibernate.SessionFactory;
+import org.hibernate.criterion.Order;
 import org.hibernate.criterion.Restrictions;
 import org.openmrs.Concept;
+import org.openmrs.module.drughistory.DrugSetFingerprint;
 import org.openmrs.module.drughistory.Regimen;
 import org.openmrs.module.drughistory.api.db.RegimenDAO;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Properties;
@@ -54,6 +58,7 @@ public class HibernateRegimenDAO implements RegimenDAO {
 
 	@Override
 	public Regimen saveRegimen(Regimen regimen) {
+		regimen.setDrugFingerprint(DrugSetFingerprint.of(regimen.getDrugs()));
 		sessionFactory.getCurrentSession().saveOrUpdate(regimen);
 		return regimen;
 	}
@@ -81,24 +86,57 @@ public class HibernateRegimenDAO implements RegimenDAO {
 //			c.add(Restrictions.in("ack.conceptId", drugIds));
 //		}
 
-		List<Regimen> regimens = (List<Regimen>) c.list();
+		if (params.get("regimenIds") instanceof Collection) {
+			Collection<Integer> regimenIds = (Collection<Integer>) params.get("regimenIds");
+			if (regimenIds.isEmpty()) {
+				return new ArrayList<Regimen>();
+			}
+			c.add(Restrictions.in("regimenId", regimenIds));
+		}
+		c.addOrder(Order.asc("regimenId"));
 
-		if (params.containsKey("drugs") && params.get("drugs") instanceof Set) {
-			// only get regimens related to these drugs
-			Set<Concept> drugs = (Set<Concept>) params.get("drugs");
-			List<Regimen> res = new ArrayList<Regimen>();
+		return (List<Regimen>) c.list();
+	}
 
-			for (Regimen r : regimens) {
-				// if the drugs in the regimen are all contained in the incoming parameter ...
-				Set<Concept> s = new HashSet<Concept>(r.getDrugs());
-				if (!s.retainAll(drugs)) {
-					// we have a match!
-					res.add(r);
-				}
-			}
-			return res;
+	@Override
+	public int retagDrugSnapshots(Regimen regimen) {
+		purgeDrugSnapshotTags(regimen);
+
+		Set<Integer> drugIds = new HashSet<Integer>();
+		for (Concept drug : regimen.getDrugs()) {
+			drugIds.add(drug.getConceptId());
 		}
 
-		return regimens;
+		Query query;
+		if (drugIds.isEmpty()) {
+			// a regimen without drugs is contained in every snapshot
+			query = sessionFactory.getCurrentSession().createSQLQuery("INSERT INTO drughistory_snapshot_regimen" +
+					" (drugsnapshot_id, regimen_id) SELECT drugsnapshot_id, :regimenId FROM drughistory_drugsnapshot");
+		} else {
+			query = sessionFactory.getCurrentSession().createSQLQuery("INSERT INTO drughistory_snapshot_regimen" +
+					" (drugsnapshot_id, regimen_id) SELECT sc.drugsnapshot_id, :regimenId" +
+					" FROM drughistory_drugsnapshot_concept sc WHERE sc.concept_id IN (:drugIds)" +
+					" GROUP BY sc.drugsnapshot_id HAVING COUNT(DISTINCT sc.concept_id) = :drugCount");
+			query.setParameterList("drugIds", drugIds);
+			query.setInteger("drugCount", drugIds.size());
+		}
+		query.setInteger("regimenId", regimen.getRegimenId());
+		int rows = query.executeUpdate();
+
+		// regimens saved before fingerprints were recorded get theirs here; the update leaves the session alone
+		sessionFactory.getCurrentSession()
+				.createSQLQuery("UPDATE drughistory_regimen SET drug_fingerprint = :drugFingerprint WHERE regimen_id = :regimenId")
+				.setLong("drugFingerprint", DrugSetFingerprint.of(regimen.getDrugs()))
+				.setInteger("regimenId", regimen.getRegimenId())
+				.executeUpdate();
+		return rows;
+	}
+
+	@Override
+	public int purgeDrugSnapshotTags(Regimen regimen) {
+		return sessionFactory.getCurrentSession()
+				.createSQLQuery("DELETE FROM drughistory_snapshot_regimen WHERE regimen_id = :regimenId")
+				.setInteger("regimenId", regimen.getRegimenId())
+				.executeUpdate();
 	}
 }
@@ -16,13 +16,24 @@ package org.openmrs.module.drughistory.api.impl;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.openmrs.Person;
+import org.openmrs.api.context.Context;
 import org.openmrs.api.impl.BaseOpenmrsService;
 import org.openmrs.module.drughistory.DrugEvent;
+import org.openmrs.module.drughistory.DrugEventQuery;
+import org.openmrs.module.drughistory.DrugEventRow;
+import org.openmrs.module.drughistory.DrugEventSummary;
 import org.openmrs.module.drughistory.DrugEventTrigger;
+import org.openmrs.module.drughistory.DrugHistoryConstants;
+import org.openmrs.module.drughistory.DrugHistoryUtil;
+import org.openmrs.module.drughistory.GenerationSummary;
 import org.openmrs.module.drughistory.api.DrugEventService;
+import org.openmrs.module.drughistory.api.DrugExposureService;
+import org.openmrs.module.drughistory.api.ResultVisitor;
 import org.openmrs.module.drughistory.api.db.DrugEventDAO;
 import org.openmrs.module.drughistory.api.db.DrugEventTriggerDAO;
+import org.springframework.transaction.PlatformTransactionManager;
 
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
 import java.util.Properties;
@@ -36,6 +47,7 @@ public class DrugEventServiceImpl extends BaseOpenmrsService implements DrugEven
 
 	private DrugEventDAO dao;
 	private DrugEventTriggerDAO triggerDAO;
+	private PlatformTransactionManager transactionManager;
 
 	/**
 	 * @param dao the dao to set
@@ -59,24 +71,97 @@ public class DrugEventServiceImpl extends BaseOpenmrsService implements DrugEven
 		this.triggerDAO = triggerDAO;
 	}
 
+	public PlatformTransactionManager getTransactionManager() {
+		return transactionManager;
+	}
+
+	/**
+	 * @param transactionManager used to give each generation worker its own transaction
+	 */
+	public void setTransactionManager(PlatformTransactionManager transactionManager) {
+		this.transactionManager = transactionManager;
+	}
+
 	@Override
-	public void generateAllDrugEvents(final Date sinceWhen) {
-		generateAllDrugEvents(null, sinceWhen);
+	public GenerationSummary generateAllDrugEvents(final Date sinceWhen) {
+		return generateAllDrugEvents(null, sinceWhen);
 	}
 
 	@Override
-	public void generateAllDrugEvents(Person person, Date sinceWhen) {
-		if (sinceWhen != null) {
-			if (sinceWhen.compareTo(new Date()) > 0) {
-				throw new IllegalArgumentException("Date: " + sinceWhen + " should be greater than the date of today");
-			} else {
+	public GenerationSummary generateAllDrugEvents(Person person, Date sinceWhen) {
+		int parallelism = DrugHistoryUtil.getPositiveIntegerGlobalProperty(
+				DrugHistoryConstants.GP_EVENT_GENERATION_PARALLELISM, Runtime.getRuntime().availableProcessors());
+		return generateAllDrugEvents(person, sinceWhen, parallelism);
+	}
+
+	@Override
+	public GenerationSummary generateAllDrugEvents(final Person person, final Date sinceWhen, int parallelism) {
+		if (sinceWhen != null && sinceWhen.compareTo(new Date()) > 0) {
+			throw new IllegalArgumentException("Date: " + sinceWhen + " should be earlier than or equal to today");
+		}
+
+		final boolean serverSide = isServerSideGeneration();
 
+		// workers reload their trigger in their own session, so only hand them the id
+		List<ParallelTransactionExecutor.Task> tasks = new ArrayList<ParallelTransactionExecutor.Task>();
+		for (DrugEventTrigger trigger : triggerDAO.getAllDrugEventTriggers(false)) {
+			if (trigger.getEventType() == null) {
+				log.warn("Skipping trigger " + trigger.getId() + " because it has no event type");
+				continue;
 			}
-		} else {
-			//All drug events.
+			final Integer triggerId = trigger.getId();
+			tasks.add(new ParallelTransactionExecutor.Task("trigger " + triggerId) {
+				@Override
+				public int run() {
+					return generateDrugEvents(person, triggerDAO.getDrugEventTrigger(triggerId), sinceWhen, serverSide);
+				}
+			});
 		}
+
+		GenerationSummary summary = new ParallelTransactionExecutor(transactionManager, parallelism).execute(tasks);
+		log.info("Generated drug events: " + summary);
+		return summary;
+	}
+
+	@Override
+	public GenerationSummary generateNewDrugEvents() {
+		int parallelism = DrugHistoryUtil.getPositiveIntegerGlobalProperty(
+				DrugHistoryConstants.GP_EVENT_GENERATION_PARALLELISM, Runtime.getRuntime().availableProcessors());
+		return generateNewDrugEvents(parallelism);
+	}
+
+	@Override
+	public GenerationSummary generateNewDrugEvents(int parallelism) {
+		final boolean serverSide = isServerSideGeneration();
+
+		List<ParallelTransactionExecutor.Task> tasks = new ArrayList<ParallelTransactionExecutor.Task>();
+		for (DrugEventTrigger trigger : triggerDAO.getAllDrugEventTriggers(false)) {
+			if (trigger.getEventType() == null) {
+				log.warn("Skipping trigger " + trigger.getId() + " because it has no event type");
+				continue;
+			}
+			if (trigger.hasCustomQuery()) {
+				log.warn("Skipping trigger " + trigger.getId() + " because triggers with a custom query cannot run incrementally");
+				continue;
+			}
+			final Integer triggerId = trigger.getId();
+			tasks.add(new ParallelTransactionExecutor.Task("trigger " + triggerId) {
+				@Override
+				public int run() {
+					return dao.generateNewDrugEventsFromTrigger(triggerDAO.getDrugEventTrigger(triggerId), serverSide);
+				}
+			});
+		}
+
+		GenerationSummary summary = new ParallelTransactionExecutor(transactionManager, parallelism).execute(tasks);
+		log.info("Generated new drug events: " + summary);
+		return summary;
 	}
 
+	@Override
+	public Integer getDrugEventCheckpoint(DrugEventTrigger trigger) {
+		return dao.getDrugEventCheckpoint(trigger);
+	}
 
 	@Override
 	public void generateDrugEventsFromTrigger(final DrugEventTrigger trigger, final Date sinceWhen) {
@@ -94,7 +179,21 @@ public class DrugEventServiceImpl extends BaseOpenmrsService implements DrugEven
 		if (sinceWhen != null && sinceWhen.compareTo(new Date()) > 0) {
 			throw new IllegalArgumentException("Date: " + sinceWhen + " should be earlier than or equal to today");
 		}
-		dao.generateDrugEventsFromTrigger(person, trigger, sinceWhen);
+		generateDrugEvents(person, trigger, sinceWhen, isServerSideGeneration());
+	}
+
+	/**
+	 * Generates the events for one trigger, inside the database if serverSide is set and the trigger allows it
+	 */
+	private int generateDrugEvents(Person person, DrugEventTrigger trigger, Date sinceWhen, boolean serverSide) {
+		if (serverSide && !trigger.hasCustomQuery()) {
+			return dao.insertDrugEventsFromTrigger(person, trigger, sinceWhen);
+		}
+		return dao.generateDrugEventsFromTrigger(person, trigger, sinceWhen);
+	}
+
+	private boolean isServerSideGeneration() {
+		return DrugHistoryUtil.getBooleanGlobalProperty(DrugHistoryConstants.GP_EVENT_GENERATION_SERVER_SIDE, false);
 	}
 
 
@@ -122,8 +221,47 @@ public class DrugEventServiceImpl extends BaseOpenmrsService implements DrugEven
 		return dao.getDrugEvents(params);
 	}
 
+	@Override
+	public List<DrugEvent> getDrugEvents(DrugEventQuery query) {
+		if (query == null) {
+			throw new IllegalArgumentException("query cannot be null");
+		}
+		return dao.getDrugEvents(query);
+	}
+
+	@Override
+	public List<DrugEventSummary> getDrugEventSummaries(DrugEventQuery query) {
+		if (query == null) {
+			throw new IllegalArgumentException("query cannot be null");
+		}
+		return dao.getDrugEventSummaries(query);
+	}
+
+	@Override
+	public List<DrugEvent> getDrugEventPage(Properties params, DrugEvent after, int pageSize) {
+		return dao.getDrugEventPage(params, after, DrugHistoryUtil.getPageSize(pageSize));
+	}
+
+	@Override
+	public void visitDrugEvents(Properties params, ResultVisitor<DrugEvent> visitor) {
+		dao.visitDrugEvents(params, visitor);
+	}
+
+	@Override
+	public void visitDrugEventRows(Properties params, ResultVisitor<DrugEventRow> visitor) {
+		dao.visitDrugEventRows(params, visitor);
+	}
+
+	@Override
+	public List<Integer> getDrugEventPersonIds(Date sinceWhen) {
+		return dao.getDrugEventPersonIds(sinceWhen);
+	}
+
 	@Override
 	public void purgeAllDrugEvents() {
 		dao.purgeAllDrugEvents();
+		dao.purgeDrugEventCheckpoints();
+		// exposures are built from the events, so they would otherwise outlive them
+		Context.getService(DrugExposureService.class).purgeAllDrugExposures();
 	}
 }
@@ -0,0 +1,120 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+
+package org.openmrs.module.drughistory.api.impl;
+
+import org.openmrs.module.drughistory.DrugEventRow;
+import org.openmrs.module.drughistory.DrugEventType;
+import org.openmrs.module.drughistory.DrugExposureRecord;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Builds drug exposures from a stream of drug event rows ordered by person and then by date occurred, in a single
+ * pass. Like {@link DrugSnapshotBuilder}, only the current person is held in memory and their exposures are handed back
+ * once an event for the next person arrives.
+ * <p/>
+ * A START or CONTINUE for a drug that is not active opens an exposure on the event's date; a STOP closes the open one
+ * on its date. A drug stopped and restarted on the same date stays in one exposure, and one started and stopped on the
+ * same date leaves none, matching the drugs the date's snapshot would hold.
+ */
+public class DrugExposureBuilder {
+
+	private boolean started = false;
+	private Integer personId;
+
+	// the person's exposures so far, and the latest one of each drug
+	private final List<DrugExposureRecord> exposures = new ArrayList<DrugExposureRecord>();
+	private final Map<Integer, DrugExposureRecord> latest = new HashMap<Integer, DrugExposureRecord>();
+
+	/**
+	 * Applies the next event of the stream
+	 *
+	 * @param row the next drug event, in (person, date occurred) order; it is not kept, so it may be reused
+	 * @return the exposures of the previous person if row starts a new person, otherwise an empty list
+	 */
+	public List<DrugExposureRecord> add(DrugEventRow row) {
+		List<DrugExposureRecord> finished = Collections.emptyList();
+
+		if (!started || !same(personId, row.getPersonId())) {
+			finished = finish();
+			started = true;
+			personId = row.getPersonId();
+		}
+
+		Integer conceptId = row.getConceptId();
+		if (personId == null || conceptId == null || row.getDateOccurred() == null) {
+			return finished;
+		}
+
+		DrugExposureRecord exposure = latest.get(conceptId);
+		boolean active = exposure != null && exposure.getStopDate() == null;
+		if (row.getEventType() == DrugEventType.START || row.getEventType() == DrugEventType.CONTINUE) {
+			if (!active) {
+				if (exposure != null && sameDate(exposure.getStopDate(), row.getDateOccurred())) {
+					// restarted on the date it was stopped
+					exposure.setStopDate(null);
+				} else {
+					exposure = new DrugExposureRecord(personId, conceptId, row.getDateOccurred());
+					exposures.add(exposure);
+					latest.put(conceptId, exposure);
+				}
+			}
+		} else if (row.getEventType() == DrugEventType.STOP && active) {
+			exposure.setStopDate(row.getDateOccurred());
+		}
+
+		return finished;
+	}
+
+	/**
+	 * Ends the stream
+	 *
+	 * @return the exposures of the last person seen, if any
+	 */
+	public List<DrugExposureRecord> finish() {
+		if (!started) {
+			return Collections.emptyList();
+		}
+
+		List<DrugExposureRecord> finished = new ArrayList<DrugExposureRecord>(exposures.size());
+		for (DrugExposureRecord exposure : exposures) {
+			// started and stopped on the same date
+			if (!sameDate(exposure.getStartDate(), exposure.getStopDate())) {
+				finished.add(exposure);
+			}
+		}
+		exposures.clear();
+		latest.clear();
+		started = false;
+		personId = null;
+		return finished;
+	}
+
+	private static boolean same(Integer a, Integer b) {
+		return a == null ? b == null : a.equals(b);
+	}
+
+	/**
+	 * compares by time, since Timestamp.equals(Date) is always false
+	 */
+	private static boolean sameDate(Date a, Date b) {
+		return a == null ? b == null : b != null && a.getTime() == b.getTime();
+	}
+}
@@ -0,0 +1,185 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+
+package org.openmrs.module.drughistory.api.impl;
+
+import org.apache.commons.lang.time.DateUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.Concept;
+import org.openmrs.Patient;
+import org.openmrs.Person;
+import org.openmrs.api.APIException;
+import org.openmrs.api.context.Context;
+import org.openmrs.api.impl.BaseOpenmrsService;
+import org.openmrs.module.drughistory.DrugEventRow;
+import org.openmrs.module.drughistory.DrugExposure;
+import org.openmrs.module.drughistory.DrugExposureRecord;
+import org.openmrs.module.drughistory.DrugHistoryConstants;
+import org.openmrs.module.drughistory.DrugHistoryUtil;
+import org.openmrs.module.drughistory.GenerationSummary;
+import org.openmrs.module.drughistory.api.DrugEventService;
+import org.openmrs.module.drughistory.api.DrugExposureService;
+import org.openmrs.module.drughistory.api.ResultVisitor;
+import org.openmrs.module.drughistory.api.db.DrugExposureDAO;
+import org.springframework.transaction.PlatformTransactionManager;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Properties;
+
+public class DrugExposureServiceImpl extends BaseOpenmrsService implements DrugExposureService {
+
+	protected final Log log = LogFactory.getLog(this.getClass());
+
+	/**
+	 * number of person id ranges created per worker, so a worker that gets small ranges can pick up more of them
+	 */
+	private static final int RANGES_PER_WORKER = 4;
+
+	private DrugExposureDAO dao;
+	private PlatformTransactionManager transactionManager;
+
+	public void setDao(DrugExposureDAO dao) {
+		this.dao = dao;
+	}
+
+	public PlatformTransactionManager getTransactionManager() {
+		return transactionManager;
+	}
+
+	/**
+	 * @param transactionManager used to give each generation worker its own transaction
+	 */
+	public void setTransactionManager(PlatformTransactionManager transactionManager) {
+		this.transactionManager = transactionManager;
+	}
+
+	@Override
+	public int generateDrugExposures(Patient patient) {
+		if (patient == null) {
+			int parallelism = DrugHistoryUtil.getPositiveIntegerGlobalProperty(
+					DrugHistoryConstants.GP_EXPOSURE_GENERATION_PARALLELISM, 1);
+			return generateDrugExposures(parallelism).getTotalRows();
+		}
+
+		Properties params = new Properties();
+		params.put("person", patient);
+		return generateDrugExposures(params);
+	}
+
+	@Override
+	public GenerationSummary generateDrugExposures(int parallelism) {
+		List<Integer> personIds = Context.getService(DrugEventService.class).getDrugEventPersonIds(null);
+		if (personIds.isEmpty()) {
+			dao.purgeDrugExposures(null);
+			return new GenerationSummary();
+		}
+
+		// split the people into contiguous ranges of about the same number of people; the first and last ranges are
+		// left open so the purge of each range also covers people without drug events
+		int ranges = Math.max(1, parallelism * RANGES_PER_WORKER);
+		int rangeSize = Math.max(1, (personIds.size() + ranges - 1) / ranges);
+
+		List<ParallelTransactionExecutor.Task> tasks = new ArrayList<ParallelTransactionExecutor.Task>();
+		for (int i = 0; i < personIds.size(); i += rangeSize) {
+			final Integer fromPersonId = i == 0 ? null : personIds.get(i);
+			final Integer toPersonId = i + rangeSize >= personIds.size() ? null : personIds.get(i + rangeSize) - 1;
+			tasks.add(new ParallelTransactionExecutor.Task("persons " + personIds.get(i) + "-"
+					+ personIds.get(Math.min(i + rangeSize, personIds.size()) - 1)) {
+				@Override
+				public int run() {
+					Properties params = new Properties();
+					if (fromPersonId != null) {
+						params.put("fromPersonId", fromPersonId);
+					}
+					if (toPersonId != null) {
+						params.put("toPersonId", toPersonId);
+					}
+					return generateDrugExposures(params);
+				}
+			});
+		}
+
+		GenerationSummary summary = new ParallelTransactionExecutor(transactionManager, parallelism).execute(tasks);
+		log.info("Generated drug exposures: " + summary);
+		return summary;
+	}
+
+	/**
+	 * Replaces the exposures selected by params with ones built from the drug events matching params
+	 *
+	 * @return the number of exposures saved
+	 */
+	private int generateDrugExposures(Properties params) {
+		dao.purgeDrugExposures(params);
+
+		final DrugExposureBuilder builder = new DrugExposureBuilder();
+		final int[] saved = new int[1];
+		Context.getService(DrugEventService.class).visitDrugEventRows(params, new ResultVisitor<DrugEventRow>() {
+			@Override
+			public boolean visit(DrugEventRow row) {
+				saved[0] += dao.saveDrugExposureRecords(builder.add(row));
+				return true;
+			}
+		});
+		saved[0] += dao.saveDrugExposureRecords(builder.finish());
+		return saved[0];
+	}
+
+	@Override
+	public void purgeAllDrugExposures() {
+		dao.purgeDrugExposures(null);
+	}
+
+	@Override
+	public List<DrugExposure> getDrugExposures(Properties params) {
+		return dao.getDrugExposures(params);
+	}
+
+	@Override
+	public long getDaysOnDrug(Person person, Concept drug, Date since, Date until) {
+		if (person == null || drug == null) {
+			throw new APIException("A person and a drug are required to count the days on a drug.");
+		}
+		if (until == null) {
+			until = new Date();
+		}
+
+		Properties params = new Properties();
+		params.put("person", person);
+		params.put("drugs", Collections.singleton(drug));
+		if (since != null) {
+			params.put("since", since);
+		}
+		params.put("until", until);
+
+		long millis = 0;
+		for (DrugExposure exposure : dao.getDrugExposures(params)) {
+			long start = exposure.getStartDate().getTime();
+			if (since != null) {
+				start = Math.max(start, since.getTime());
+			}
+			long stop = exposure.getStopDate() == null ? until.getTime()
+					: Math.min(exposure.getStopDate().getTime(), until.getTime());
+			if (stop > start) {
+				millis += stop - start;
+			}
+		}
+		// rounded, so a daylight saving change inside an exposure does not lose a day
+		return Math.round((double) millis / DateUtils.MILLIS_PER_DAY);
+	}
+}
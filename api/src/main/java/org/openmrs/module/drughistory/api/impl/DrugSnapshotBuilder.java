@@ -0,0 +1,161 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+
+package org.openmrs.module.drughistory.api.impl;
+
+import org.openmrs.module.drughistory.ConceptIdSet;
+import org.openmrs.module.drughistory.DrugEventRow;
+import org.openmrs.module.drughistory.DrugEventType;
+import org.openmrs.module.drughistory.DrugSnapshotRecord;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Builds drug snapshots from a stream of drug event rows ordered by person and then by date occurred. Only the current
+ * person's snapshots are held in memory: they are handed back as soon as an event for the next person arrives.
+ * <p/>
+ * For every date with events a snapshot is produced holding the drugs active after that date's events: START and
+ * CONTINUE add the event's concept, STOP removes it. The snapshot's encounter is the one from the date's last event.
+ * Each person starts from the concepts returned by {@link #getInitialConceptIds(Integer)}, which is empty unless
+ * overridden, e.g. to continue from the person's last snapshot before an incremental window.
+ * <p/>
+ * In changes-only mode, a date is skipped when the active drugs end up the same as in the person's previous snapshot
+ * (including the one the person was continued from), so the drugs active on any date are those of the latest snapshot
+ * on or before it.
+ * <p/>
+ * The active drugs are tracked as an immutable {@link ConceptIdSet} of primitive ids, so no Concept is hashed or
+ * loaded while building, and a date that leaves the drugs unchanged allocates no new set. The snapshots come out as
+ * {@link DrugSnapshotRecord}s for the DAO to write.
+ */
+public class DrugSnapshotBuilder {
+
+	private final boolean changesOnly;
+
+	private boolean started = false;
+	private Integer personId;
+	private Integer encounterId;
+	private Date currentDate;
+	private ConceptIdSet active;
+	// the drugs of the person's last snapshot, or null if they have none yet
+	private ConceptIdSet lastEmitted;
+	private final List<DrugSnapshotRecord> snapshots = new ArrayList<DrugSnapshotRecord>();
+
+	public DrugSnapshotBuilder() {
+		this(false);
+	}
+
+	/**
+	 * @param changesOnly whether to skip dates on which the active drugs end up the same as in the person's previous
+	 *                    snapshot
+	 */
+	public DrugSnapshotBuilder(boolean changesOnly) {
+		this.changesOnly = changesOnly;
+	}
+
+	/**
+	 * Applies the next event of the stream
+	 *
+	 * @param row the next drug event, in (person, date occurred) order; it is not kept, so it may be reused
+	 * @return the snapshots of the previous person if row starts a new person, otherwise an empty list
+	 */
+	public List<DrugSnapshotRecord> add(DrugEventRow row) {
+		List<DrugSnapshotRecord> finished = Collections.emptyList();
+
+		if (!started || !same(personId, row.getPersonId())) {
+			finished = finish();
+			start(row.getPersonId());
+		} else if (!sameDate(currentDate, row.getDateOccurred())) {
+			emit();
+		}
+
+		currentDate = row.getDateOccurred();
+		if (row.getConceptId() != null) {
+			if (row.getEventType() == DrugEventType.START || row.getEventType() == DrugEventType.CONTINUE) {
+				active = active.with(row.getConceptId());
+			} else if (row.getEventType() == DrugEventType.STOP) {
+				active = active.without(row.getConceptId());
+			}
+		}
+
+		// the snapshot's encounter will be the one from the last-added observation
+		encounterId = row.getEncounterId();
+
+		return finished;
+	}
+
+	/**
+	 * Ends the stream
+	 *
+	 * @return the snapshots of the last person seen, if any
+	 */
+	public List<DrugSnapshotRecord> finish() {
+		if (!started) {
+			return Collections.emptyList();
+		}
+		emit();
+		List<DrugSnapshotRecord> finished = new ArrayList<DrugSnapshotRecord>(snapshots);
+		snapshots.clear();
+		started = false;
+		personId = null;
+		encounterId = null;
+		currentDate = null;
+		active = null;
+		lastEmitted = null;
+		return finished;
+	}
+
+	/**
+	 * @param personId the person whose events are about to be applied
+	 * @return the concept ids of the person's last snapshot before their first event in the stream, or null if they
+	 *         have none
+	 */
+	protected int[] getInitialConceptIds(Integer personId) {
+		return null;
+	}
+
+	private void start(Integer personId) {
+		this.started = true;
+		this.personId = personId;
+
+		int[] initial = getInitialConceptIds(personId);
+		this.active = ConceptIdSet.of(initial);
+		this.lastEmitted = initial == null ? null : active;
+	}
+
+	/**
+	 * records the drugs active on the current date; the set is immutable, so the record shares it with the running
+	 * state, and with the next record if the next date changes nothing
+	 */
+	private void emit() {
+		if (changesOnly && active.equals(lastEmitted)) {
+			return;
+		}
+		snapshots.add(new DrugSnapshotRecord(personId, encounterId, currentDate, active));
+		lastEmitted = active;
+	}
+
+	private static boolean same(Integer a, Integer b) {
+		return a == null ? b == null : a.equals(b);
+	}
+
+	/**
+	 * compares by time, since Timestamp.equals(Date) is always false
+	 */
+	private static boolean sameDate(Date a, Date b) {
+		return a == null ? b == null : b != null && a.getTime() == b.getTime();
+	}
+}
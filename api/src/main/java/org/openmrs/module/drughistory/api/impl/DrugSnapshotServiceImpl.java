@@ -16,45 +16,135 @@ package org.openmrs.module.drughistory.api.impl;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.openmrs.Cohort;
+import org.openmrs.Concept;
 import org.openmrs.Patient;
 import org.openmrs.Person;
+import org.openmrs.api.APIException;
 import org.openmrs.api.context.Context;
 import org.openmrs.api.impl.BaseOpenmrsService;
-import org.openmrs.module.drughistory.DrugEvent;
-import org.openmrs.module.drughistory.DrugEventType;
+import org.openmrs.module.drughistory.ConceptIdSet;
+import org.openmrs.module.drughistory.DrugEventRow;
+import org.openmrs.module.drughistory.DrugHistoryConstants;
+import org.openmrs.module.drughistory.DrugHistoryUtil;
+import org.openmrs.module.drughistory.DrugSetFingerprint;
 import org.openmrs.module.drughistory.DrugSnapshot;
+import org.openmrs.module.drughistory.DrugSnapshotQuery;
+import org.openmrs.module.drughistory.DrugSnapshotRecord;
+import org.openmrs.module.drughistory.DrugSnapshotSummary;
+import org.openmrs.module.drughistory.GenerationSummary;
+import org.openmrs.module.drughistory.Regimen;
+import org.openmrs.module.drughistory.RegimenMatcher;
 import org.openmrs.module.drughistory.api.DrugEventService;
 import org.openmrs.module.drughistory.api.DrugSnapshotService;
+import org.openmrs.module.drughistory.api.RegimenService;
+import org.openmrs.module.drughistory.api.ResultVisitor;
 import org.openmrs.module.drughistory.api.db.DrugSnapshotDAO;
+import org.springframework.transaction.PlatformTransactionManager;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
-import java.util.SortedMap;
-import java.util.TreeMap;
-import java.util.UUID;
 
 public class DrugSnapshotServiceImpl extends BaseOpenmrsService implements DrugSnapshotService {
 
 	protected final Log log = LogFactory.getLog(this.getClass());
 
+	/**
+	 * number of person id ranges created per worker, so a worker that gets small ranges can pick up more of them
+	 */
+	private static final int RANGES_PER_WORKER = 4;
+
 	private DrugSnapshotDAO dao;
+	private PlatformTransactionManager transactionManager;
 
 	public void setDao(DrugSnapshotDAO dao) {
 		this.dao = dao;
 	}
 
+	public PlatformTransactionManager getTransactionManager() {
+		return transactionManager;
+	}
+
+	/**
+	 * @param transactionManager used to give each generation worker its own transaction
+	 */
+	public void setTransactionManager(PlatformTransactionManager transactionManager) {
+		this.transactionManager = transactionManager;
+	}
+
 	@Override
 	public void generateDrugSnapshots(Date sinceWhen) {
-		generateDrugSnapshots(null, sinceWhen);
+		int parallelism = DrugHistoryUtil.getPositiveIntegerGlobalProperty(
+				DrugHistoryConstants.GP_SNAPSHOT_GENERATION_PARALLELISM, 1);
+		if (parallelism > 1) {
+			generateDrugSnapshots(sinceWhen, parallelism);
+		} else {
+			generateDrugSnapshots(null, sinceWhen);
+		}
+	}
+
+	@Override
+	public GenerationSummary generateDrugSnapshots(final Date sinceWhen, int parallelism) {
+		List<Integer> personIds = Context.getService(DrugEventService.class).getDrugEventPersonIds(sinceWhen);
+		final RegimenMatcher matcher = Context.getService(RegimenService.class).getRegimenCatalog().getMatcher();
+		final boolean changesOnly = isChangesOnly();
+
+		if (personIds.isEmpty()) {
+			// nobody has events to snapshot, so only the purge of the serial path is left to do
+			Properties params = new Properties();
+			if (sinceWhen != null) {
+				params.put("since", sinceWhen);
+			}
+			dao.purgeDrugSnapshots(params);
+			return new GenerationSummary();
+		}
+
+		// split the people into contiguous ranges of about the same number of people; the first and last ranges are
+		// left open and each range runs up to the next one, so together they purge the same snapshots as the serial
+		// path, including those of people without events
+		int ranges = Math.max(1, parallelism * RANGES_PER_WORKER);
+		int rangeSize = Math.max(1, (personIds.size() + ranges - 1) / ranges);
+
+		List<ParallelTransactionExecutor.Task> tasks = new ArrayList<ParallelTransactionExecutor.Task>();
+		for (int i = 0; i < personIds.size(); i += rangeSize) {
+			final Integer fromPersonId = i == 0 ? null : personIds.get(i);
+			final Integer toPersonId = i + rangeSize >= personIds.size() ? null : personIds.get(i + rangeSize) - 1;
+			tasks.add(new ParallelTransactionExecutor.Task("persons " + personIds.get(i) + "-"
+					+ personIds.get(Math.min(i + rangeSize, personIds.size()) - 1)) {
+				@Override
+				public int run() {
+					Properties params = new Properties();
+					if (fromPersonId != null) {
+						params.put("fromPersonId", fromPersonId);
+					}
+					if (toPersonId != null) {
+						params.put("toPersonId", toPersonId);
+					}
+					if (sinceWhen != null) {
+						params.put("since", sinceWhen);
+					}
+					return generateDrugSnapshots(params, matcher, changesOnly);
+				}
+			});
+		}
+
+		GenerationSummary summary = new ParallelTransactionExecutor(transactionManager, parallelism).execute(tasks);
+		log.info("Generated drug snapshots: " + summary);
+		return summary;
 	}
 
 	/**
-	 * Plow through drug events and create snapshots from them
-	 * TODO find a way to batch or use a cursor
+	 * Plow through drug events and create snapshots from them. Events are streamed in (person, date) order, so only
+	 * one person's history is held in memory; each person's snapshots are saved as soon as their events are done.
+	 * Events and snapshots are handled as plain ids, so generation creates no Hibernate entities.
+	 * <p/>
+	 * Existing snapshots taken on or after sinceWhen are replaced, and each person's state is seeded from their last
+	 * snapshot before sinceWhen, so an incremental run gives the same result as a full rebuild.
 	 */
 	@Override
 	public void generateDrugSnapshots(Patient patient, Date sinceWhen) {
@@ -67,75 +157,162 @@ public class DrugSnapshotServiceImpl extends BaseOpenmrsService implements DrugS
 			params.put("since", sinceWhen);
 		}
 
-		// get the drug events
-		List<DrugEvent> events = Context.getService(DrugEventService.class).getDrugEvents(params);
+		generateDrugSnapshots(params, Context.getService(RegimenService.class).getRegimenCatalog().getMatcher(),
+				isChangesOnly());
+	}
 
-		// order events by person and date
-		Map<Person, SortedMap<Date, List<DrugEvent>>> byPersonAndDate = groupByPersonAndDate(events);
+	/**
+	 * Replaces the snapshots selected by params with ones built from the drug events matching params, tagging each
+	 * with the regimens it matches
+	 *
+	 * @param changesOnly whether to only write snapshots for dates on which the active drugs change
+	 * @return the number of snapshots saved
+	 */
+	private int generateDrugSnapshots(Properties params, final RegimenMatcher matcher, boolean changesOnly) {
+		dao.purgeDrugSnapshots(params);
 
-		// create snapshots and save after processing each person
-		List<DrugSnapshot> snapshots = new ArrayList<DrugSnapshot>();
-		for (Person p : byPersonAndDate.keySet()) {
+		final Date sinceWhen = (Date) params.get("since");
+		final DrugSnapshotBuilder builder = new DrugSnapshotBuilder(changesOnly) {
+			@Override
+			protected int[] getInitialConceptIds(Integer personId) {
+				if (sinceWhen == null || personId == null) {
+					return super.getInitialConceptIds(personId);
+				}
+				// continue from the drugs active just before the window
+				return dao.getLatestDrugSnapshotConceptIds(personId, sinceWhen);
+			}
+		};
+		final int[] saved = new int[1];
+		Context.getService(DrugEventService.class).visitDrugEventRows(params, new ResultVisitor<DrugEventRow>() {
+			@Override
+			public boolean visit(DrugEventRow row) {
+				saved[0] += saveSnapshots(builder.add(row), matcher);
+				return true;
+			}
+		});
+		saved[0] += saveSnapshots(builder.finish(), matcher);
+		return saved[0];
+	}
 
-			DrugSnapshot s = new DrugSnapshot();
-			s.setPerson(p);
+	/**
+	 * saves one person's snapshots; they are written straight to the database, so the session stays empty
+	 */
+	private int saveSnapshots(List<DrugSnapshotRecord> snapshots, RegimenMatcher matcher) {
+		if (snapshots.isEmpty()) {
+			return 0;
+		}
+		return dao.saveSnapshotRecords(snapshots, matcher);
+	}
 
-			// for each date, calculate the new set of relevant concepts
-			SortedMap<Date, List<DrugEvent>> dateListMap = byPersonAndDate.get(p);
+	@Override
+	public List<DrugSnapshot> getDrugSnapshots(Properties properties) {
+		return dao.getDrugSnapshots(properties);
+	}
 
-			for (Date d : dateListMap.keySet()) {
-				s.setDateTaken(d);
-				for (DrugEvent de : dateListMap.get(d)) {
-					if (de.getEventType() == DrugEventType.START || de.getEventType() == DrugEventType.CONTINUE) {
-						s.addConcept(de.getConcept());
-					} else if (de.getEventType() == DrugEventType.STOP) {
-						s.removeConcept(de.getConcept());
-					}
+	@Override
+	public List<DrugSnapshot> getDrugSnapshots(DrugSnapshotQuery query) {
+		if (query == null) {
+			throw new APIException("A query is required to get drug snapshots.");
+		}
+		return dao.getDrugSnapshots(query);
+	}
 
-					// the snapshot's encounter will be the one from the last-added observation
-					s.setEncounter(de.getEncounter());
-				}
+	@Override
+	public long getDrugSnapshotCount(DrugSnapshotQuery query) {
+		if (query == null) {
+			throw new APIException("A query is required to count drug snapshots.");
+		}
+		return dao.getDrugSnapshotCount(query);
+	}
+
+	@Override
+	public List<DrugSnapshotSummary> getDrugSnapshotSummaries(DrugSnapshotQuery query) {
+		if (query == null) {
+			throw new APIException("A query is required to get drug snapshots.");
+		}
+		return dao.getDrugSnapshotSummaries(query);
+	}
 
-				// add a copy to snapshots, since we want to reuse this one
-				DrugSnapshot ds = s.copy();
+	@Override
+	public List<DrugSnapshot> getDrugSnapshotPage(Properties params, DrugSnapshot after, int pageSize) {
+		return dao.getDrugSnapshotPage(params, after, DrugHistoryUtil.getPageSize(pageSize));
+	}
 
-				// ... and give it a UUID
-				ds.setUuid(UUID.randomUUID().toString());
+	@Override
+	public void visitDrugSnapshots(Properties params, ResultVisitor<DrugSnapshot> visitor) {
+		dao.visitDrugSnapshots(params, visitor);
+	}
 
-				snapshots.add(ds);
-			}
+	@Override
+	public DrugSnapshot getDrugSnapshotOnDate(Person person, Date date) {
+		if (person == null || date == null) {
+			throw new APIException("A person and a date are required to find a drug snapshot.");
+		}
+		return dao.getDrugSnapshotOnDate(person.getPersonId(), date);
+	}
+
+	@Override
+	public ConceptIdSet getActiveDrugs(Person person, Date date) {
+		if (person == null || date == null) {
+			throw new APIException("A person and a date are required to find active drugs.");
+		}
+		return ConceptIdSet.of(dao.getDrugSnapshotConceptIdsOnDate(person.getPersonId(), date));
+	}
 
-			// save and clear snapshots
-			saveSnapshots(snapshots);
-			snapshots.clear();
+	@Override
+	public Map<Integer, ConceptIdSet> getDrugSnapshotConceptIds(Collection<Integer> drugSnapshotIds) {
+		if (drugSnapshotIds == null) {
+			throw new APIException("Snapshot ids are required to read their drugs.");
+		}
+		Map<Integer, int[]> conceptIds = dao.getDrugSnapshotConceptIds(drugSnapshotIds);
+		Map<Integer, ConceptIdSet> drugs = new HashMap<Integer, ConceptIdSet>();
+		for (Integer drugSnapshotId : drugSnapshotIds) {
+			drugs.put(drugSnapshotId, ConceptIdSet.of(conceptIds.get(drugSnapshotId)));
+		}
+		return drugs;
+	}
 
-			// flush the context so we don't run into memory issues
-			Context.flushSession();
-			Context.clearSession();
+	@Override
+	public Map<Integer, ConceptIdSet> getActiveDrugs(Cohort cohort, Date date) {
+		if (cohort == null || date == null) {
+			throw new APIException("A cohort and a date are required to find active drugs.");
+		}
+		Map<Integer, int[]> conceptIds = dao.getDrugSnapshotConceptIdsOnDate(cohort.getMemberIds(), date);
+		Map<Integer, ConceptIdSet> activeDrugs = new HashMap<Integer, ConceptIdSet>();
+		for (Integer personId : cohort.getMemberIds()) {
+			activeDrugs.put(personId, ConceptIdSet.of(conceptIds.get(personId)));
 		}
+		return activeDrugs;
 	}
 
-	private void saveSnapshots(List<DrugSnapshot> snapshots) {
-		dao.saveSnapshots(snapshots);
+	@Override
+	public Cohort getCohortOnDrugs(Collection<Concept> drugs, Date date) {
+		int[] conceptIds = DrugSetFingerprint.toSortedConceptIds(drugs);
+		if (conceptIds.length == 0 || date == null) {
+			throw new APIException("At least one drug and a date are required to find the people on them.");
+		}
+		return new Cohort(dao.getPersonIdsWithDrugsOnDate(conceptIds, date));
 	}
 
-	private Map<Person, SortedMap<Date, List<DrugEvent>>> groupByPersonAndDate(List<DrugEvent> events) {
-		Map<Person, SortedMap<Date, List<DrugEvent>>> m = new HashMap<Person, SortedMap<Date, List<DrugEvent>>>();
-		for (DrugEvent de : events) {
-			if (!m.containsKey(de.getPerson())) {
-				m.put(de.getPerson(), new TreeMap<Date, List<DrugEvent>>());
-			}
-			SortedMap<Date, List<DrugEvent>> mm = m.get(de.getPerson());
-			if (!mm.containsKey(de.getDateOccurred())) {
-				mm.put(de.getDateOccurred(), new ArrayList<DrugEvent>());
-			}
-			mm.get(de.getDateOccurred()).add(de);
+	@Override
+	public Cohort getCohortOnRegimen(Regimen regimen, Date date) {
+		if (regimen == null) {
+			throw new APIException("A regimen is required to find the people on it.");
 		}
-		return m;
+		return getCohortOnDrugs(regimen.getDrugs(), date);
 	}
 
 	@Override
-	public List<DrugSnapshot> getDrugSnapshots(Properties properties) {
-		return dao.getDrugSnapshots(properties);
+	public Cohort getCohortWithDrugSet(Collection<Concept> drugs) {
+		return new Cohort(dao.getDrugSnapshotPersonIds(DrugSetFingerprint.toSortedConceptIds(drugs)));
+	}
+
+	@Override
+	public int updateDrugFingerprints() {
+		return dao.updateDrugFingerprints();
+	}
+
+	private boolean isChangesOnly() {
+		return DrugHistoryUtil.getBooleanGlobalProperty(DrugHistoryConstants.GP_SNAPSHOT_GENERATION_CHANGES_ONLY, false);
 	}
 }
@@ -0,0 +1,184 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+
+package org.openmrs.module.drughistory.api.impl;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.api.APIException;
+import org.openmrs.api.context.Context;
+import org.openmrs.api.context.UserContext;
+import org.openmrs.module.drughistory.GenerationSummary;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.TransactionCallback;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs independent units of work on a bounded pool of worker threads. Each worker opens its own OpenMRS/Hibernate
+ * session and runs every unit in a new transaction, so one failing unit neither rolls back nor blocks the others.
+ */
+public class ParallelTransactionExecutor {
+
+	protected final Log log = LogFactory.getLog(this.getClass());
+
+	private static final AtomicInteger POOL_COUNT = new AtomicInteger();
+
+	private final PlatformTransactionManager transactionManager;
+	private final int parallelism;
+
+	public ParallelTransactionExecutor(PlatformTransactionManager transactionManager, int parallelism) {
+		if (transactionManager == null) {
+			throw new IllegalArgumentException("transactionManager cannot be null");
+		}
+		if (parallelism < 1) {
+			throw new IllegalArgumentException("parallelism must be at least 1, was " + parallelism);
+		}
+		this.transactionManager = transactionManager;
+		this.parallelism = parallelism;
+	}
+
+	/**
+	 * Runs all tasks and waits for them to finish.
+	 *
+	 * @param tasks the units of work
+	 * @return a summary with one entry per task, in the same order as the tasks
+	 */
+	public GenerationSummary execute(List<? extends Task> tasks) {
+		long start = System.currentTimeMillis();
+		GenerationSummary summary = new GenerationSummary();
+
+		if (tasks == null || tasks.isEmpty()) {
+			return summary;
+		}
+
+		final UserContext userContext = getCurrentUserContext();
+		final String poolName = "drughistory-" + POOL_COUNT.incrementAndGet() + "-worker-";
+
+		ExecutorService pool = Executors.newFixedThreadPool(Math.min(parallelism, tasks.size()), new ThreadFactory() {
+			private final AtomicInteger threadCount = new AtomicInteger();
+
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, poolName + threadCount.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		});
+
+		try {
+			List<Future<GenerationSummary.Entry>> futures = new ArrayList<Future<GenerationSummary.Entry>>();
+			for (final Task task : tasks) {
+				futures.add(pool.submit(new Callable<GenerationSummary.Entry>() {
+					@Override
+					public GenerationSummary.Entry call() {
+						return runInNewSession(task, userContext);
+					}
+				}));
+			}
+
+			for (int i = 0; i < futures.size(); i++) {
+				summary.addEntry(getEntry(tasks.get(i), futures.get(i)));
+			}
+		} finally {
+			pool.shutdownNow();
+		}
+
+		summary.setElapsedMillis(System.currentTimeMillis() - start);
+		return summary;
+	}
+
+	private GenerationSummary.Entry runInNewSession(final Task task, UserContext userContext) {
+		long start = System.currentTimeMillis();
+		Context.openSession();
+		try {
+			if (userContext != null) {
+				Context.setUserContext(userContext);
+			}
+
+			TransactionTemplate transactionTemplate = new TransactionTemplate(transactionManager);
+			transactionTemplate.setPropagationBehavior(TransactionDefinition.PROPAGATION_REQUIRES_NEW);
+			Integer rows = transactionTemplate.execute(new TransactionCallback<Integer>() {
+				@Override
+				public Integer doInTransaction(TransactionStatus status) {
+					return task.run();
+				}
+			});
+
+			long elapsed = System.currentTimeMillis() - start;
+			if (log.isDebugEnabled()) {
+				log.debug(task.getLabel() + " produced " + rows + " row(s) in " + elapsed + " ms");
+			}
+			return new GenerationSummary.Entry(task.getLabel(), rows == null ? 0 : rows, elapsed);
+		} catch (RuntimeException e) {
+			log.error("Failed to run " + task.getLabel(), e);
+			return new GenerationSummary.Entry(task.getLabel(), 0, System.currentTimeMillis() - start, e.toString());
+		} finally {
+			Context.closeSession();
+		}
+	}
+
+	private GenerationSummary.Entry getEntry(Task task, Future<GenerationSummary.Entry> future) {
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new APIException("Interrupted while waiting for " + task.getLabel(), e);
+		} catch (ExecutionException e) {
+			log.error("Failed to run " + task.getLabel(), e.getCause());
+			return new GenerationSummary.Entry(task.getLabel(), 0, 0, String.valueOf(e.getCause()));
+		}
+	}
+
+	private UserContext getCurrentUserContext() {
+		try {
+			return Context.getUserContext();
+		} catch (APIException e) {
+			// no user context on this thread; workers will run with a fresh one
+			return null;
+		}
+	}
+
+	/**
+	 * A unit of work, executed inside its own transaction on a worker thread
+	 */
+	public abstract static class Task {
+
+		private final String label;
+
+		protected Task(String label) {
+			this.label = label;
+		}
+
+		public String getLabel() {
+			return label;
+		}
+
+		/**
+		 * @return the number of rows produced
+		 */
+		public abstract int run();
+	}
+}
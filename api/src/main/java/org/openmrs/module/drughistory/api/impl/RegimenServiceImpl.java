@@ -16,25 +16,63 @@ package org.openmrs.module.drughistory.api.impl;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.hibernate.Hibernate;
+import org.openmrs.Cohort;
 import org.openmrs.Concept;
 import org.openmrs.api.APIException;
 import org.openmrs.api.context.Context;
 import org.openmrs.api.impl.BaseOpenmrsService;
+import org.openmrs.module.drughistory.ConceptIdSet;
 import org.openmrs.module.drughistory.DrugSnapshot;
 import org.openmrs.module.drughistory.Regimen;
+import org.openmrs.module.drughistory.RegimenCatalog;
+import org.openmrs.module.drughistory.RegimenMatcher;
+import org.openmrs.module.drughistory.api.DrugSnapshotService;
 import org.openmrs.module.drughistory.api.RegimenService;
 import org.openmrs.module.drughistory.api.db.RegimenDAO;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 public class RegimenServiceImpl extends BaseOpenmrsService implements RegimenService {
 
+	/**
+	 * below this many snapshots, bulk classification runs on the caller's thread
+	 */
+	private static final int PARALLEL_CLASSIFICATION_THRESHOLD = 5000;
+
 	RegimenDAO dao;
 	private final Log log = LogFactory.getLog(getClass());
 
+	// the cached catalog, replaced as a whole; a catalog whose version is behind catalogVersion is stale
+	private final AtomicReference<RegimenCatalog> catalog = new AtomicReference<RegimenCatalog>();
+	private final AtomicLong catalogVersion = new AtomicLong();
+
+	// bound to a transaction that changed regimens, so catalogs built from its uncommitted state are not shared
+	private final Object catalogChangeKey = new Object();
+
+	// shared by bulk classifications above PARALLEL_CLASSIFICATION_THRESHOLD, shut down with the service
+	private ExecutorService classificationPool;
+
 	public RegimenDAO getDao() {
 		return dao;
 	}
@@ -45,7 +83,61 @@ public class RegimenServiceImpl extends BaseOpenmrsService implements RegimenSer
 
 	@Override
 	public List<Regimen> getAllRegimens(Boolean includeRetired) {
-		return dao.getAllRegimens(includeRetired);
+		return copyOf(getRegimenCatalog().getRegimens(includeRetired != null && includeRetired));
+	}
+
+	@Override
+	public RegimenCatalog getRegimenCatalog() {
+		long version = catalogVersion.get();
+		RegimenCatalog current = catalog.get();
+		if (current != null && current.getVersion() == version) {
+			return current;
+		}
+
+		List<Regimen> regimens = dao.getAllRegimens(true);
+		for (Regimen r : regimens) {
+			// the catalog outlives the session, so load everything readers are expected to use
+			Hibernate.initialize(r.getDrugs());
+			for (Concept c : r.getDrugs()) {
+				Hibernate.initialize(c.getNames());
+			}
+		}
+		RegimenCatalog built = new RegimenCatalog(version, regimens);
+
+		if (!TransactionSynchronizationManager.hasResource(catalogChangeKey)) {
+			// a concurrent invalidation makes this catalog stale, and readers will ignore it
+			catalog.compareAndSet(current, built);
+		}
+		return built;
+	}
+
+	@Override
+	public long getRegimenCatalogVersion() {
+		return catalogVersion.get();
+	}
+
+	/**
+	 * Marks the cached catalog as stale, now and again once the current transaction completes, so that a catalog
+	 * rebuilt by another thread before the change was committed is not kept either
+	 */
+	private void invalidateRegimenCatalog() {
+		catalogVersion.incrementAndGet();
+		catalog.set(null);
+
+		if (TransactionSynchronizationManager.isSynchronizationActive()
+				&& !TransactionSynchronizationManager.hasResource(catalogChangeKey)) {
+			TransactionSynchronizationManager.bindResource(catalogChangeKey, Boolean.TRUE);
+			TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+				@Override
+				public void afterCompletion(int status) {
+					if (TransactionSynchronizationManager.hasResource(catalogChangeKey)) {
+						TransactionSynchronizationManager.unbindResource(catalogChangeKey);
+					}
+					catalogVersion.incrementAndGet();
+					catalog.set(null);
+				}
+			});
+		}
 	}
 
 	@Override
@@ -53,11 +145,164 @@ public class RegimenServiceImpl extends BaseOpenmrsService implements RegimenSer
 		return dao.getRegimen(artRegimenId);
 	}
 
+	@Override
+	@SuppressWarnings("unchecked")
+	public List<Regimen> getRegimens(Properties params) {
+		Properties daoParams = new Properties();
+		if (params != null && params.get("drugs") instanceof Set) {
+			// match with the index cached by the catalog, then load the matches of this session in one query
+			List<Integer> regimenIds = new ArrayList<Integer>();
+			for (Regimen match : getRegimenCatalog().getMatchingRegimens((Set<Concept>) params.get("drugs"))) {
+				regimenIds.add(match.getRegimenId());
+			}
+			daoParams.put("regimenIds", regimenIds);
+		}
+		return dao.getRegimens(daoParams);
+	}
+
 	@Override
 	public List<Regimen> getRegimensFromSnapshot(DrugSnapshot snapshot) {
+		return copyOf(getRegimenCatalog().getMatchingRegimens(snapshot.getConcepts()));
+	}
+
+	@Override
+	public List<Regimen> getRegimensWithDrugSet(Collection<Concept> drugs) {
+		return copyOf(getRegimenCatalog().getRegimensWithDrugSet(drugs));
+	}
+
+	@Override
+	public Map<DrugSnapshot, List<Regimen>> getRegimensFromSnapshots(Collection<DrugSnapshot> snapshots) {
+		final RegimenMatcher matcher = getRegimenCatalog().getMatcher();
+		final List<DrugSnapshot> list = new ArrayList<DrugSnapshot>(snapshots);
+
+		// read the drugs here, while the session is available, so workers only touch plain sets; snapshots whose
+		// concepts are not loaded yet are read in bulk rather than one lazy collection at a time
+		final ConceptIdSet[] conceptIds = new ConceptIdSet[list.size()];
+		List<Integer> unloaded = new ArrayList<Integer>();
+		for (int i = 0; i < list.size(); i++) {
+			DrugSnapshot snapshot = list.get(i);
+			if (snapshot.getDrugSnapshotId() == null || Hibernate.isInitialized(snapshot.getConcepts())) {
+				conceptIds[i] = ConceptIdSet.of(snapshot.getConcepts());
+			} else {
+				unloaded.add(snapshot.getDrugSnapshotId());
+			}
+		}
+		if (!unloaded.isEmpty()) {
+			Map<Integer, ConceptIdSet> read = Context.getService(DrugSnapshotService.class)
+					.getDrugSnapshotConceptIds(unloaded);
+			for (int i = 0; i < list.size(); i++) {
+				if (conceptIds[i] == null) {
+					conceptIds[i] = read.get(list.get(i).getDrugSnapshotId());
+				}
+			}
+		}
+
+		final List<List<Regimen>> matches = new ArrayList<List<Regimen>>(Collections.<List<Regimen>>nCopies(list.size(), null));
+		int parallelism = Runtime.getRuntime().availableProcessors();
+		if (list.size() < PARALLEL_CLASSIFICATION_THRESHOLD || parallelism < 2) {
+			match(matcher, conceptIds, matches, 0, list.size());
+		} else {
+			ExecutorService pool = getClassificationPool();
+			try {
+				int chunk = (list.size() + parallelism - 1) / parallelism;
+				List<Future<?>> futures = new ArrayList<Future<?>>();
+				for (int from = 0; from < list.size(); from += chunk) {
+					final int start = from;
+					final int end = Math.min(from + chunk, list.size());
+					futures.add(pool.submit(new Runnable() {
+						@Override
+						public void run() {
+							match(matcher, conceptIds, matches, start, end);
+						}
+					}));
+				}
+				for (Future<?> f : futures) {
+					f.get();
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new APIException("Interrupted while classifying drug snapshots", e);
+			} catch (ExecutionException e) {
+				throw new APIException("Unable to classify drug snapshots", e.getCause());
+			}
+		}
+
+		// copy each matching regimen once, so snapshots on the same regimen share the copy
+		Map<Regimen, Regimen> copies = new IdentityHashMap<Regimen, Regimen>();
+		Map<DrugSnapshot, List<Regimen>> result = new LinkedHashMap<DrugSnapshot, List<Regimen>>();
+		for (int i = 0; i < list.size(); i++) {
+			List<Regimen> copied = new ArrayList<Regimen>(matches.get(i).size());
+			for (Regimen r : matches.get(i)) {
+				Regimen copy = copies.get(r);
+				if (copy == null) {
+					copy = new Regimen(r);
+					copies.put(r, copy);
+				}
+				copied.add(copy);
+			}
+			result.put(list.get(i), copied);
+		}
+		return result;
+	}
+
+	/**
+	 * The catalog's regimens are shared by every thread, so callers outside the service only ever get copies
+	 */
+	private static List<Regimen> copyOf(List<Regimen> regimens) {
+		List<Regimen> copies = new ArrayList<Regimen>(regimens.size());
+		for (Regimen r : regimens) {
+			copies.add(new Regimen(r));
+		}
+		return copies;
+	}
+
+	@Override
+	public Map<DrugSnapshot, List<Regimen>> getRegimensFromSnapshots(Cohort cohort, Date fromDate, Date toDate) {
 		Properties params = new Properties();
-		params.put("drugs", snapshot.getConcepts());
-		return dao.getRegimens(params);
+		if (cohort != null) {
+			params.put("cohort", cohort);
+		}
+		if (fromDate != null) {
+			params.put("since", fromDate);
+		}
+		if (toDate != null) {
+			params.put("until", toDate);
+		}
+		return getRegimensFromSnapshots(Context.getService(DrugSnapshotService.class).getDrugSnapshots(params));
+	}
+
+	/**
+	 * @return the pool shared by every bulk classification, created on first use with one daemon thread per processor
+	 */
+	private synchronized ExecutorService getClassificationPool() {
+		if (classificationPool == null) {
+			final AtomicInteger threadCount = new AtomicInteger();
+			classificationPool = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(),
+					new ThreadFactory() {
+						@Override
+						public Thread newThread(Runnable r) {
+							Thread t = new Thread(r, "drughistory-classification-" + threadCount.incrementAndGet());
+							t.setDaemon(true);
+							return t;
+						}
+					});
+		}
+		return classificationPool;
+	}
+
+	@Override
+	public synchronized void onShutdown() {
+		if (classificationPool != null) {
+			classificationPool.shutdownNow();
+			classificationPool = null;
+		}
+	}
+
+	private static void match(RegimenMatcher matcher, ConceptIdSet[] conceptIds, List<List<Regimen>> matches, int from,
+	                          int to) {
+		for (int i = from; i < to; i++) {
+			matches.set(i, matcher.getMatchingRegimens(conceptIds[i]));
+		}
 	}
 
 	@Override
@@ -66,6 +311,7 @@ public class RegimenServiceImpl extends BaseOpenmrsService implements RegimenSer
 			throw new APIException("A regimen must not be null to be saved.");
 		}
 
+		invalidateRegimenCatalog();
 		return dao.saveRegimen(regimen);
 	}
 
@@ -84,6 +330,7 @@ public class RegimenServiceImpl extends BaseOpenmrsService implements RegimenSer
 		regimen.setDateRetired(new Date());
 		regimen.setRetireReason(retireReason);
 
+		invalidateRegimenCatalog();
 		dao.saveRegimen(regimen);
 	}
 
@@ -98,6 +345,7 @@ public class RegimenServiceImpl extends BaseOpenmrsService implements RegimenSer
 		regimen.setDateRetired(null);
 		regimen.setRetireReason(null);
 
+		invalidateRegimenCatalog();
 		dao.saveRegimen(regimen);
 	}
 
@@ -107,10 +355,31 @@ public class RegimenServiceImpl extends BaseOpenmrsService implements RegimenSer
 			throw new APIException("A regimen must not be null to be purged.");
 		}
 
+		invalidateRegimenCatalog();
+		dao.purgeDrugSnapshotTags(regimen);
+
 		// empty the drug set before attempting to purge
 		regimen.setDrugs(new HashSet<Concept>());
 		regimen = dao.saveRegimen(regimen);
 
 		dao.purgeRegimen(regimen);
 	}
+
+	@Override
+	public int retagDrugSnapshots() {
+		int rows = 0;
+		for (Regimen regimen : dao.getAllRegimens(true)) {
+			rows += retagDrugSnapshots(regimen);
+		}
+		return rows;
+	}
+
+	@Override
+	public int retagDrugSnapshots(Regimen regimen) {
+		if (regimen == null) {
+			throw new APIException("A regimen must not be null to be re-tagged.");
+		}
+
+		return dao.retagDrugSnapshots(regimen);
+	}
 }
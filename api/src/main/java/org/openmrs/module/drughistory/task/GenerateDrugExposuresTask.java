@@ -0,0 +1,53 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.drughistory.task;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.drughistory.DrugHistoryConstants;
+import org.openmrs.module.drughistory.DrugHistoryUtil;
+import org.openmrs.module.drughistory.GenerationSummary;
+import org.openmrs.module.drughistory.api.DrugExposureService;
+import org.openmrs.scheduler.tasks.AbstractTask;
+
+/**
+ * Scheduled task rebuilding everyone's drug exposures from their drug events, so exposures catch up with events
+ * generated since the last run. The rebuild is committed a range of people at a time, with as many ranges at once as
+ * the {@link DrugHistoryConstants#GP_EXPOSURE_GENERATION_PARALLELISM} global property allows. The module's liquibase
+ * changes register the task without starting it, so administrators choose whether and when to schedule it.
+ */
+public class GenerateDrugExposuresTask extends AbstractTask {
+
+	private static final Log log = LogFactory.getLog(GenerateDrugExposuresTask.class);
+
+	@Override
+	public void execute() {
+		Context.openSession();
+		try {
+			if (!Context.isAuthenticated()) {
+				authenticate();
+			}
+
+			int parallelism = DrugHistoryUtil.getPositiveIntegerGlobalProperty(
+					DrugHistoryConstants.GP_EXPOSURE_GENERATION_PARALLELISM, 1);
+			GenerationSummary summary = Context.getService(DrugExposureService.class).generateDrugExposures(parallelism);
+			if (summary.hasFailures()) {
+				log.warn("Failed to rebuild the drug exposures of " + summary.getFailures().size() + " range(s) of people");
+			}
+		} finally {
+			Context.closeSession();
+		}
+	}
+}
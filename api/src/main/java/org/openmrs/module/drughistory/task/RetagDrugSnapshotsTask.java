@@ -0,0 +1,76 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+
+package org.openmrs.module.drughistory.task;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.GlobalProperty;
+import org.openmrs.api.AdministrationService;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.drughistory.DrugHistoryConstants;
+import org.openmrs.module.drughistory.api.DrugSnapshotService;
+import org.openmrs.module.drughistory.api.RegimenService;
+import org.openmrs.scheduler.tasks.AbstractTask;
+
+/**
+ * Scheduled task re-tagging drug snapshots with their regimens once regimen definitions have changed. It compares the
+ * digest of the regimen drug sets with the one it last re-tagged for, kept in the
+ * {@link DrugHistoryConstants#GP_RETAGGED_REGIMEN_DIGEST} global property, so runs without changes do nothing, even
+ * after a restart. Re-tagging also records the drug fingerprints of regimens saved before fingerprints existed. Every
+ * run fills in the fingerprints of snapshots that do not have one yet. The task is registered by the module's
+ * liquibase changes.
+ */
+public class RetagDrugSnapshotsTask extends AbstractTask {
+
+	private static final Log log = LogFactory.getLog(RetagDrugSnapshotsTask.class);
+
+	@Override
+	public void execute() {
+		Context.openSession();
+		try {
+			if (!Context.isAuthenticated()) {
+				authenticate();
+			}
+
+			int fingerprinted = Context.getService(DrugSnapshotService.class).updateDrugFingerprints();
+			if (fingerprinted > 0) {
+				log.info("Recorded the drug fingerprint of " + fingerprinted + " drug snapshot(s)");
+			}
+
+			RegimenService service = Context.getService(RegimenService.class);
+			String digest = String.valueOf(service.getRegimenCatalog().getDrugSetsDigest());
+			AdministrationService as = Context.getAdministrationService();
+			if (digest.equals(as.getGlobalProperty(DrugHistoryConstants.GP_RETAGGED_REGIMEN_DIGEST))) {
+				log.debug("Regimens have not changed since the last re-tag");
+				return;
+			}
+
+			long start = System.currentTimeMillis();
+			int rows = service.retagDrugSnapshots();
+
+			GlobalProperty gp = as.getGlobalPropertyObject(DrugHistoryConstants.GP_RETAGGED_REGIMEN_DIGEST);
+			if (gp == null) {
+				gp = new GlobalProperty(DrugHistoryConstants.GP_RETAGGED_REGIMEN_DIGEST);
+			}
+			gp.setPropertyValue(digest);
+			as.saveGlobalProperty(gp);
+
+			log.info("Re-tagged drug snapshots with " + rows + " regimen assignment(s) in "
+					+ (System.currentTimeMillis() - start) + " ms");
+		} finally {
+			Context.closeSession();
+		}
+	}
+}
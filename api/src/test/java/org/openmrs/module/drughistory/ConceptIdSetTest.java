@@ -0,0 +1,95 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.drughistory;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests {@link ConceptIdSet}.
+ */
+public class ConceptIdSetTest {
+
+	/**
+	 * @verifies return the same set when the id is already there
+	 * @see ConceptIdSet#with(int)
+	 */
+	@Test
+	public void with_shouldReturnTheSameSetWhenTheIdIsAlreadyThere() throws Exception {
+		ConceptIdSet set = ConceptIdSet.of(new int[]{88, 792});
+		Assert.assertSame(set, set.with(792));
+	}
+
+	/**
+	 * @verifies insert the id in order
+	 * @see ConceptIdSet#with(int)
+	 */
+	@Test
+	public void with_shouldInsertTheIdInOrder() throws Exception {
+		ConceptIdSet set = ConceptIdSet.of(new int[]{792, 88});
+
+		Assert.assertArrayEquals(new int[]{3, 88, 792}, set.with(3).toArray());
+		Assert.assertArrayEquals(new int[]{88, 100, 792}, set.with(100).toArray());
+		Assert.assertArrayEquals(new int[]{88, 792, 5089}, set.with(5089).toArray());
+		Assert.assertArrayEquals(new int[]{88}, ConceptIdSet.EMPTY.with(88).toArray());
+		// the original set is left as it was
+		Assert.assertArrayEquals(new int[]{88, 792}, set.toArray());
+	}
+
+	/**
+	 * @verifies return the same set when the id is not there
+	 * @see ConceptIdSet#without(int)
+	 */
+	@Test
+	public void without_shouldReturnTheSameSetWhenTheIdIsNotThere() throws Exception {
+		ConceptIdSet set = ConceptIdSet.of(new int[]{88, 792});
+		Assert.assertSame(set, set.without(3));
+		Assert.assertSame(ConceptIdSet.EMPTY, ConceptIdSet.EMPTY.without(3));
+	}
+
+	/**
+	 * @verifies remove the id keeping the others in order
+	 * @see ConceptIdSet#without(int)
+	 */
+	@Test
+	public void without_shouldRemoveTheIdKeepingTheOthersInOrder() throws Exception {
+		ConceptIdSet set = ConceptIdSet.of(new int[]{792, 3, 88});
+
+		Assert.assertArrayEquals(new int[]{88, 792}, set.without(3).toArray());
+		Assert.assertArrayEquals(new int[]{3, 792}, set.without(88).toArray());
+		Assert.assertArrayEquals(new int[]{3, 88}, set.without(792).toArray());
+		Assert.assertArrayEquals(new int[]{3, 88, 792}, set.toArray());
+	}
+
+	/**
+	 * @verifies return EMPTY when the last id is removed
+	 * @see ConceptIdSet#without(int)
+	 */
+	@Test
+	public void without_shouldReturnEMPTYWhenTheLastIdIsRemoved() throws Exception {
+		Assert.assertSame(ConceptIdSet.EMPTY, ConceptIdSet.of(new int[]{88}).without(88));
+	}
+
+	/**
+	 * @verifies equal the fingerprint of the same ids
+	 * @see ConceptIdSet#getFingerprint()
+	 */
+	@Test
+	public void getFingerprint_shouldEqualTheFingerprintOfTheSameIds() throws Exception {
+		ConceptIdSet set = ConceptIdSet.of(new int[]{792, 88}).with(3).without(792).with(792);
+
+		Assert.assertEquals(DrugSetFingerprint.of(new int[]{3, 88, 792}), set.getFingerprint());
+		Assert.assertEquals(DrugSetFingerprint.of(new int[0]), ConceptIdSet.EMPTY.getFingerprint());
+	}
+}
@@ -13,22 +13,35 @@
  */
 package org.openmrs.module.drughistory.api;
 
+import org.hibernate.SessionFactory;
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Ignore;
 import org.junit.Test;
 import org.openmrs.Concept;
+import org.openmrs.GlobalProperty;
 import org.openmrs.api.context.Context;
 import org.openmrs.module.drughistory.DrugEvent;
+import org.openmrs.module.drughistory.DrugEventQuery;
+import org.openmrs.module.drughistory.DrugEventRow;
+import org.openmrs.module.drughistory.DrugEventSummary;
 import org.openmrs.module.drughistory.DrugEventTrigger;
 import org.openmrs.module.drughistory.DrugEventType;
+import org.openmrs.module.drughistory.DrugHistoryConstants;
+import org.openmrs.module.drughistory.GenerationSummary;
 import org.openmrs.test.BaseModuleContextSensitiveTest;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.test.annotation.ExpectedException;
+import org.springframework.test.annotation.NotTransactional;
 
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
 import java.util.GregorianCalendar;
 import java.util.List;
+import java.util.Properties;
 import java.util.concurrent.atomic.AtomicReference;
 
 import static org.junit.Assert.assertNotNull;
@@ -39,6 +52,9 @@ import static org.junit.Assert.assertNotNull;
 public class DrugEventServiceTest extends BaseModuleContextSensitiveTest {
 	private DrugEventService drugEventService;
 
+	@Autowired
+	private SessionFactory sessionFactory;
+
 	@Before
 	public void setUp() throws Exception {
 		drugEventService = Context.getService(DrugEventService.class);
@@ -143,4 +159,298 @@ public class DrugEventServiceTest extends BaseModuleContextSensitiveTest {
         Assert.assertEquals(dateFormat.format(gc.getTime()),dateFormat.format(drugEvents.get(0).getDateOccurred()));
     }
 
+	/**
+	 * @verifies generate the same events server-side as client-side
+	 * @see DrugEventService#generateDrugEventsFromTrigger(org.openmrs.module.drughistory.DrugEventTrigger, java.util.Date)
+	 */
+	@Test
+	public void generateDrugEventsFromTrigger_shouldGenerateTheSameEventsServerSideAsClientSide() throws Exception {
+		Concept q = Context.getConceptService().getConcept(5089);
+
+		DrugEventTrigger trigger = new DrugEventTrigger();
+		trigger.addQuestion(q);
+		trigger.setEventConcept(q);
+		trigger.setEventType(DrugEventType.START);
+
+		drugEventService.generateDrugEventsFromTrigger(trigger, null);
+		List<String> expected = describeAllDrugEvents();
+		drugEventService.purgeAllDrugEvents();
+
+		Context.getAdministrationService().saveGlobalProperty(
+				new GlobalProperty(DrugHistoryConstants.GP_EVENT_GENERATION_SERVER_SIDE, "true"));
+		drugEventService.generateDrugEventsFromTrigger(trigger, null);
+		List<String> actual = describeAllDrugEvents();
+
+		Assert.assertEquals(3, actual.size());
+		Assert.assertEquals(expected, actual);
+		for (DrugEvent drugEvent : drugEventService.getAllDrugEvents(null)) {
+			assertNotNull(drugEvent.getUuid());
+		}
+	}
+
+	/**
+	 * @verifies not duplicate events that already exist
+	 * @see DrugEventService#generateDrugEventsFromTrigger(org.openmrs.module.drughistory.DrugEventTrigger, java.util.Date)
+	 */
+	@Test
+	public void generateDrugEventsFromTrigger_shouldNotDuplicateEventsThatAlreadyExist() throws Exception {
+		Concept q = Context.getConceptService().getConcept(5089);
+
+		DrugEventTrigger trigger = new DrugEventTrigger();
+		trigger.addQuestion(q);
+		trigger.setEventConcept(q);
+		trigger.setEventType(DrugEventType.START);
+
+		drugEventService.generateDrugEventsFromTrigger(trigger, null);
+		List<String> expected = describeAllDrugEvents();
+
+		drugEventService.generateDrugEventsFromTrigger(trigger, null);
+		Assert.assertEquals(expected, describeAllDrugEvents());
+
+		Context.getAdministrationService().saveGlobalProperty(
+				new GlobalProperty(DrugHistoryConstants.GP_EVENT_GENERATION_SERVER_SIDE, "true"));
+		drugEventService.generateDrugEventsFromTrigger(trigger, null);
+		Assert.assertEquals(3, expected.size());
+		Assert.assertEquals(expected, describeAllDrugEvents());
+	}
+
+	/**
+	 * @verifies return events matching every field set on the query
+	 * @see DrugEventService#getDrugEvents(DrugEventQuery)
+	 */
+	@Test
+	public void getDrugEvents_shouldReturnEventsMatchingEveryFieldSetOnTheQuery() throws Exception {
+		executeDataSet("datasets/drugevents-drugsnapshotservice.xml");
+
+		DrugEventQuery query = new DrugEventQuery();
+		query.setPerson(Context.getPersonService().getPerson(2));
+		query.setEventTypes(Collections.singleton(DrugEventType.STOP));
+		query.setConcepts(Collections.singleton(Context.getConceptService().getConcept(792)));
+		List<DrugEvent> actual = drugEventService.getDrugEvents(query);
+
+		Assert.assertEquals(1, actual.size());
+		Assert.assertEquals(5, (int) actual.get(0).getDrugEventId());
+
+		query = new DrugEventQuery();
+		query.setSince(new SimpleDateFormat("yyyy-MM-dd").parse("1975-10-17"));
+		query.setConcepts(Collections.singleton(Context.getConceptService().getConcept(792)));
+		List<Integer> ids = new ArrayList<Integer>();
+		for (DrugEvent drugEvent : drugEventService.getDrugEvents(query)) {
+			ids.add(drugEvent.getDrugEventId());
+		}
+
+		Assert.assertEquals(Arrays.asList(3, 6, 5, 8), ids);
+
+		query.setLimit(2);
+		Assert.assertEquals(2, drugEventService.getDrugEvents(query).size());
+	}
+
+	/**
+	 * @verifies return summaries of the events matching the query
+	 * @see DrugEventService#getDrugEventSummaries(DrugEventQuery)
+	 */
+	@Test
+	public void getDrugEventSummaries_shouldReturnSummariesOfTheEventsMatchingTheQuery() throws Exception {
+		executeDataSet("datasets/drugevents-drugsnapshotservice.xml");
+
+		DrugEventQuery query = new DrugEventQuery();
+		query.setPerson(Context.getPersonService().getPerson(2));
+		List<DrugEventSummary> actual = drugEventService.getDrugEventSummaries(query);
+
+		Assert.assertEquals(5, actual.size());
+		Assert.assertEquals(1, (int) actual.get(0).getDrugEventId());
+		Assert.assertEquals(2, (int) actual.get(0).getPersonId());
+		Assert.assertEquals(792, (int) actual.get(0).getConceptId());
+		Assert.assertEquals(DrugEventType.START, actual.get(0).getEventType());
+		Assert.assertEquals(new SimpleDateFormat("yyyy-MM-dd").parse("1975-10-16").getTime(),
+				actual.get(0).getDateOccurred().getTime());
+		Assert.assertEquals(5, (int) actual.get(4).getDrugEventId());
+		Assert.assertEquals(DrugEventType.STOP, actual.get(4).getEventType());
+	}
+
+	/**
+	 * @verifies return the events after the given one ordered by date occurred and id
+	 * @see DrugEventService#getDrugEventPage(java.util.Properties, DrugEvent, int)
+	 */
+	@Test
+	public void getDrugEventPage_shouldReturnTheEventsAfterTheGivenOneOrderedByDateOccurredAndId() throws Exception {
+		executeDataSet("datasets/drugevents-drugsnapshotservice.xml");
+
+		List<Integer> visited = new ArrayList<Integer>();
+		List<DrugEvent> page = drugEventService.getDrugEventPage(null, null, 3);
+		Assert.assertEquals(3, page.size());
+		while (!page.isEmpty()) {
+			for (DrugEvent drugEvent : page) {
+				visited.add(drugEvent.getDrugEventId());
+			}
+			page = drugEventService.getDrugEventPage(null, page.get(page.size() - 1), 3);
+		}
+
+		Assert.assertEquals(Arrays.asList(1, 2, 3, 4, 6, 7, 5, 8), visited);
+	}
+
+	/**
+	 * @verifies cap the page size
+	 * @see DrugEventService#getDrugEventPage(java.util.Properties, DrugEvent, int)
+	 */
+	@Test
+	public void getDrugEventPage_shouldCapThePageSize() throws Exception {
+		executeDataSet("datasets/drugevents-drugsnapshotservice.xml");
+
+		Assert.assertEquals(1, drugEventService.getDrugEventPage(null, null, 0).size());
+		Assert.assertEquals(8, drugEventService.getDrugEventPage(null, null, Integer.MAX_VALUE).size());
+	}
+
+	/**
+	 * @verifies not return more events than the limit in params
+	 * @see DrugEventService#getDrugEventPage(java.util.Properties, DrugEvent, int)
+	 */
+	@Test
+	public void getDrugEventPage_shouldNotReturnMoreEventsThanTheLimitInParams() throws Exception {
+		executeDataSet("datasets/drugevents-drugsnapshotservice.xml");
+		Properties params = new Properties();
+
+		params.put("limit", 3);
+		Assert.assertEquals(3, drugEventService.getDrugEventPage(params, null, 5).size());
+
+		params.put("limit", 6);
+		Assert.assertEquals(2, drugEventService.getDrugEventPage(params, null, 2).size());
+	}
+
+	/**
+	 * @verifies visit events ordered by person and date occurred
+	 * @see DrugEventService#visitDrugEvents(java.util.Properties, ResultVisitor)
+	 */
+	@Test
+	public void visitDrugEvents_shouldVisitEventsOrderedByPersonAndDateOccurred() throws Exception {
+		executeDataSet("datasets/drugevents-drugsnapshotservice.xml");
+
+		final List<Integer> visited = new ArrayList<Integer>();
+		drugEventService.visitDrugEvents(new Properties(), new ResultVisitor<DrugEvent>() {
+			@Override
+			public boolean visit(DrugEvent result) {
+				visited.add(result.getDrugEventId());
+				return true;
+			}
+		});
+
+		Assert.assertEquals(Arrays.asList(6, 7, 8, 1, 2, 3, 4, 5), visited);
+	}
+
+	/**
+	 * @verifies visit rows ordered by person and date occurred
+	 * @see DrugEventService#visitDrugEventRows(java.util.Properties, ResultVisitor)
+	 */
+	@Test
+	public void visitDrugEventRows_shouldVisitRowsOrderedByPersonAndDateOccurred() throws Exception {
+		executeDataSet("datasets/drugevents-drugsnapshotservice.xml");
+
+		final List<String> expected = new ArrayList<String>();
+		drugEventService.visitDrugEvents(new Properties(), new ResultVisitor<DrugEvent>() {
+			@Override
+			public boolean visit(DrugEvent result) {
+				expected.add(result.getPerson().getPersonId() + ":" + result.getConcept().getConceptId() + ":"
+						+ result.getEventType() + ":" + result.getDateOccurred().getTime());
+				return true;
+			}
+		});
+
+		final List<String> visited = new ArrayList<String>();
+		drugEventService.visitDrugEventRows(new Properties(), new ResultVisitor<DrugEventRow>() {
+			@Override
+			public boolean visit(DrugEventRow result) {
+				visited.add(result.getPersonId() + ":" + result.getConceptId() + ":"
+						+ result.getEventType() + ":" + result.getDateOccurred().getTime());
+				return true;
+			}
+		});
+
+		Assert.assertEquals(8, visited.size());
+		Assert.assertEquals(expected, visited);
+	}
+
+	/**
+	 * @verifies return the distinct ids of people with events since the date in ascending order
+	 * @see DrugEventService#getDrugEventPersonIds(java.util.Date)
+	 */
+	@Test
+	public void getDrugEventPersonIds_shouldReturnTheDistinctIdsOfPeopleWithEventsSinceTheDateInAscendingOrder() throws Exception {
+		executeDataSet("datasets/drugevents-drugsnapshotservice.xml");
+
+		Assert.assertEquals(Arrays.asList(1, 2), drugEventService.getDrugEventPersonIds(null));
+		Assert.assertEquals(Arrays.asList(1, 2),
+				drugEventService.getDrugEventPersonIds(new GregorianCalendar(1975, 9, 18).getTime()));
+		Assert.assertTrue(drugEventService.getDrugEventPersonIds(new GregorianCalendar(1975, 9, 19).getTime()).isEmpty());
+	}
+
+	/**
+	 * @verifies generate the same events in parallel as serially
+	 * @see DrugEventService#generateAllDrugEvents(org.openmrs.Person, java.util.Date, int)
+	 */
+	@Test
+	@NotTransactional
+	public void generateAllDrugEvents_shouldGenerateTheSameEventsInParallelAsSerially() throws Exception {
+		// workers run in their own transactions, so the triggers must be committed for them to see them
+		try {
+			Concept q = Context.getConceptService().getConcept(5089);
+			for (DrugEventType type : DrugEventType.values()) {
+				DrugEventTrigger trigger = new DrugEventTrigger();
+				trigger.addQuestion(q);
+				trigger.setEventConcept(q);
+				trigger.setEventType(type);
+				sessionFactory.getCurrentSession().save(trigger);
+			}
+			sessionFactory.getCurrentSession().flush();
+			getConnection().commit();
+
+			GenerationSummary serial = drugEventService.generateAllDrugEvents(null, null, 1);
+			List<String> expected = describeAllDrugEvents();
+			drugEventService.purgeAllDrugEvents();
+
+			GenerationSummary parallel = drugEventService.generateAllDrugEvents(null, null, 3);
+			List<String> actual = describeAllDrugEvents();
+
+			//There are three obs with concept_id 5089, giving one event per trigger each
+			int triggers = DrugEventType.values().length;
+			Assert.assertFalse(parallel.hasFailures());
+			Assert.assertEquals(triggers, parallel.getEntries().size());
+			for (GenerationSummary.Entry entry : parallel.getEntries()) {
+				Assert.assertEquals(3, entry.getRows());
+			}
+			Assert.assertEquals(3 * triggers, parallel.getTotalRows());
+			Assert.assertEquals(serial.getTotalRows(), parallel.getTotalRows());
+			Assert.assertEquals(3 * triggers, actual.size());
+			Assert.assertEquals(expected, actual);
+		} finally {
+			deleteAllData();
+		}
+	}
+
+	/**
+	 * @verifies purge the drug exposures too
+	 * @see DrugEventService#purgeAllDrugEvents()
+	 */
+	@Test
+	public void purgeAllDrugEvents_shouldPurgeTheDrugExposuresToo() throws Exception {
+		executeDataSet("datasets/drugevents-drugsnapshotservice.xml");
+		DrugExposureService exposureService = Context.getService(DrugExposureService.class);
+		exposureService.generateDrugExposures(Context.getPatientService().getPatient(2));
+		Assert.assertEquals(2, exposureService.getDrugExposures(null).size());
+
+		drugEventService.purgeAllDrugEvents();
+
+		Assert.assertEquals(0, drugEventService.getAllDrugEvents(null).size());
+		Assert.assertEquals(0, exposureService.getDrugExposures(null).size());
+	}
+
+	private List<String> describeAllDrugEvents() {
+		List<String> described = new ArrayList<String>();
+		for (DrugEvent drugEvent : drugEventService.getAllDrugEvents(null)) {
+			described.add(drugEvent.getPerson().getPersonId() + ":" + drugEvent.getConcept().getConceptId() + ":"
+					+ drugEvent.getEventType() + ":" + drugEvent.getDateOccurred().getTime());
+		}
+		Collections.sort(described);
+		return described;
+	}
+
 }
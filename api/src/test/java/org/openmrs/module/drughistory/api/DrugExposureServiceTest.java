@@ -0,0 +1,142 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.drughistory.api;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.openmrs.Concept;
+import org.openmrs.Patient;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.drughistory.DrugExposure;
+import org.openmrs.module.drughistory.GenerationSummary;
+import org.openmrs.test.BaseModuleContextSensitiveTest;
+import org.springframework.test.annotation.NotTransactional;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+public class DrugExposureServiceTest extends BaseModuleContextSensitiveTest {
+
+	@Before
+	public void setUp() throws Exception {
+		executeDataSet("datasets/drugevents-drugsnapshotservice.xml");
+	}
+
+	/**
+	 * @verifies build exposures from START, CONTINUE and STOP events
+	 * @see DrugExposureService#generateDrugExposures(org.openmrs.Patient)
+	 */
+	@Test
+	@NotTransactional
+	public void generateDrugExposures_shouldBuildExposuresFromSTARTCONTINUEAndSTOPEvents() throws Exception {
+		// everyone is rebuilt in worker transactions, so the events must be committed for them to see them
+		try {
+			getConnection().commit();
+			assertEquals(3, Context.getService(DrugExposureService.class).generateDrugExposures(null));
+			assertExposuresOfEveryone(Context.getService(DrugExposureService.class).getDrugExposures(null));
+		} finally {
+			deleteAllData();
+		}
+	}
+
+	/**
+	 * @verifies rebuild the exposures of everyone a range of people at a time
+	 * @see DrugExposureService#generateDrugExposures(int)
+	 */
+	@Test
+	@NotTransactional
+	public void generateDrugExposures_shouldRebuildTheExposuresOfEveryoneARangeOfPeopleAtATime() throws Exception {
+		try {
+			getConnection().commit();
+			DrugExposureService service = Context.getService(DrugExposureService.class);
+			service.generateDrugExposures(2);
+			GenerationSummary summary = service.generateDrugExposures(2);
+
+			// persons 1 and 2 each get a range of their own
+			assertFalse(summary.hasFailures());
+			assertEquals(2, summary.getEntries().size());
+			assertEquals(3, summary.getTotalRows());
+			assertExposuresOfEveryone(service.getDrugExposures(null));
+		} finally {
+			deleteAllData();
+		}
+	}
+
+	private void assertExposuresOfEveryone(List<DrugExposure> actual) {
+		assertEquals(3, actual.size());
+
+		// person 1 continues 792 on the 17th and never stops it
+		assertEquals(1, (int) actual.get(0).getPerson().getPersonId());
+		assertEquals(792, (int) actual.get(0).getConcept().getConceptId());
+		assertEquals(makeDate("17 Oct 1975"), actual.get(0).getStartDate());
+		assertNull(actual.get(0).getStopDate());
+
+		assertEquals(2, (int) actual.get(1).getPerson().getPersonId());
+		assertEquals(792, (int) actual.get(1).getConcept().getConceptId());
+		assertEquals(makeDate("16 Oct 1975"), actual.get(1).getStartDate());
+		assertEquals(makeDate("18 Oct 1975"), actual.get(1).getStopDate());
+
+		assertEquals(2, (int) actual.get(2).getPerson().getPersonId());
+		assertEquals(88, (int) actual.get(2).getConcept().getConceptId());
+		assertEquals(makeDate("16 Oct 1975"), actual.get(2).getStartDate());
+		assertEquals(makeDate("17 Oct 1975"), actual.get(2).getStopDate());
+	}
+
+	/**
+	 * @verifies replace existing exposures
+	 * @see DrugExposureService#generateDrugExposures(org.openmrs.Patient)
+	 */
+	@Test
+	public void generateDrugExposures_shouldReplaceExistingExposures() throws Exception {
+		Patient p = Context.getPatientService().getPatient(2);
+		Context.getService(DrugExposureService.class).generateDrugExposures(Context.getPatientService().getPatient(1));
+		Context.getService(DrugExposureService.class).generateDrugExposures(p);
+		Context.getService(DrugExposureService.class).generateDrugExposures(p);
+
+		assertEquals(3, Context.getService(DrugExposureService.class).getDrugExposures(null).size());
+	}
+
+	/**
+	 * @verifies add up the days of every exposure within the window
+	 * @see DrugExposureService#getDaysOnDrug(org.openmrs.Person, org.openmrs.Concept, java.util.Date, java.util.Date)
+	 */
+	@Test
+	public void getDaysOnDrug_shouldAddUpTheDaysOfEveryExposureWithinTheWindow() throws Exception {
+		Patient p = Context.getPatientService().getPatient(2);
+		Context.getService(DrugExposureService.class).generateDrugExposures(p);
+		Concept drug = Context.getConceptService().getConcept(792);
+		DrugExposureService service = Context.getService(DrugExposureService.class);
+
+		assertEquals(2, service.getDaysOnDrug(p, drug, null, null));
+		assertEquals(1, service.getDaysOnDrug(p, drug, makeDate("17 Oct 1975"), null));
+		assertEquals(0, service.getDaysOnDrug(p, drug, makeDate("1 Jan 1980"), null));
+		assertEquals(0, service.getDaysOnDrug(p, Context.getConceptService().getConcept(5089), null, null));
+	}
+
+	private Date makeDate(String date) {
+		try {
+			return new SimpleDateFormat("d MMM yyyy", Locale.ENGLISH).parse(date);
+		} catch (ParseException e) {
+			// pass
+		}
+		return new Date();
+	}
+}
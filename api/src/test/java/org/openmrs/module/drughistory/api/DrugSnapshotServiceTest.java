@@ -18,24 +18,39 @@ import org.junit.Before;
 import org.junit.Test;
 import org.openmrs.Cohort;
 import org.openmrs.Concept;
+import org.openmrs.GlobalProperty;
 import org.openmrs.Patient;
 import org.openmrs.Person;
+import org.openmrs.api.APIException;
 import org.openmrs.api.context.Context;
+import org.openmrs.module.drughistory.ConceptIdSet;
+import org.openmrs.module.drughistory.DrugHistoryConstants;
+import org.openmrs.module.drughistory.DrugSetFingerprint;
 import org.openmrs.module.drughistory.DrugSnapshot;
+import org.openmrs.module.drughistory.DrugSnapshotQuery;
+import org.openmrs.module.drughistory.DrugSnapshotSummary;
+import org.openmrs.module.drughistory.GenerationSummary;
+import org.openmrs.module.drughistory.Regimen;
 import org.openmrs.test.BaseModuleContextSensitiveTest;
+import org.springframework.test.annotation.NotTransactional;
 
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
 public class DrugSnapshotServiceTest extends BaseModuleContextSensitiveTest {
@@ -185,6 +200,63 @@ public class DrugSnapshotServiceTest extends BaseModuleContextSensitiveTest {
 		assertFalse(actual.get(2).getConcepts().contains(Context.getConceptService().getConcept(792)));
 	}
 
+	/**
+	 * @verifies replace existing snapshots taken on or after sinceWhen
+	 * @see DrugSnapshotService#generateDrugSnapshots(org.openmrs.Patient, java.util.Date)
+	 */
+	@Test
+	public void generateDrugSnapshots_shouldReplaceExistingSnapshotsTakenOnOrAfterSinceWhen() throws Exception {
+		Patient p = Context.getPatientService().getPatient(2);
+
+		Context.getService(DrugSnapshotService.class).generateDrugSnapshots(p, null);
+		String firstUuid = Context.getService(DrugSnapshotService.class).getDrugSnapshots(null).get(0).getUuid();
+
+		Context.getService(DrugSnapshotService.class).generateDrugSnapshots(p, makeDate("17 Oct 1975"));
+		List<DrugSnapshot> actual = Context.getService(DrugSnapshotService.class).getDrugSnapshots(null);
+
+		assertEquals(3, actual.size());
+		assertEquals(makeDate("16 Oct 1975"), actual.get(0).getDateTaken());
+		assertEquals(firstUuid, actual.get(0).getUuid());
+	}
+
+	/**
+	 * @verifies seed snapshots with the concepts of the last snapshot before sinceWhen
+	 * @see DrugSnapshotService#generateDrugSnapshots(org.openmrs.Patient, java.util.Date)
+	 */
+	@Test
+	public void generateDrugSnapshots_shouldSeedSnapshotsWithTheConceptsOfTheLastSnapshotBeforeSinceWhen() throws Exception {
+		executeDataSet("datasets/drugevents-incremental.xml");
+		Patient p = Context.getPatientService().getPatient(1);
+
+		Context.getService(DrugSnapshotService.class).generateDrugSnapshots(p, null);
+		Context.getService(DrugSnapshotService.class).generateDrugSnapshots(p, makeDate("18 Oct 1975"));
+		List<DrugSnapshot> actual = Context.getService(DrugSnapshotService.class).getDrugSnapshots(null);
+
+		DrugSnapshot last = actual.get(actual.size() - 1);
+		assertEquals(makeDate("18 Oct 1975"), last.getDateTaken());
+		assertTrue(last.getConcepts().contains(Context.getConceptService().getConcept(5089)));
+		assertTrue(last.getConcepts().contains(Context.getConceptService().getConcept(792)));
+	}
+
+	/**
+	 * @verifies tag snapshots with the regimens they contain
+	 * @see DrugSnapshotService#generateDrugSnapshots(org.openmrs.Patient, java.util.Date)
+	 */
+	@Test
+	public void generateDrugSnapshots_shouldTagSnapshotsWithTheRegimensTheyContain() throws Exception {
+		Regimen r = new Regimen("A", "A Desc", Regimen.LINE_FIRST, Regimen.AGE_ADULT, null);
+		r.addDrug(Context.getConceptService().getConcept(88));
+		Context.getService(RegimenService.class).saveRegimen(r);
+
+		Patient p = Context.getPatientService().getPatient(2);
+		Context.getService(DrugSnapshotService.class).generateDrugSnapshots(p, null);
+		List<DrugSnapshot> actual = Context.getService(DrugSnapshotService.class).getDrugSnapshots(null);
+
+		assertEquals(makeDate("16 Oct 1975"), actual.get(0).getDateTaken());
+		assertTrue(actual.get(0).getRegimens().contains(r));
+		assertFalse(actual.get(1).getRegimens().contains(r));
+	}
+
 	@Test
 	public void getDrugSnapshots_testParams() throws Exception {
 		Context.getService(DrugSnapshotService.class).generateDrugSnapshots(null, null);
@@ -225,6 +297,486 @@ public class DrugSnapshotServiceTest extends BaseModuleContextSensitiveTest {
 		}
 	}
 
+	/**
+	 * @verifies only write snapshots for dates on which the active drugs change if changes only is set
+	 * @see DrugSnapshotService#generateDrugSnapshots(org.openmrs.Patient, java.util.Date)
+	 */
+	@Test
+	public void generateDrugSnapshots_shouldOnlyWriteSnapshotsForDatesOnWhichTheActiveDrugsChangeIfChangesOnlyIsSet()
+			throws Exception {
+		Context.getAdministrationService().saveGlobalProperty(
+				new GlobalProperty(DrugHistoryConstants.GP_SNAPSHOT_GENERATION_CHANGES_ONLY, "true"));
+
+		// patient 1 continues 792 on the 17th and starts it again on the 18th
+		Patient p = Context.getPatientService().getPatient(1);
+		Context.getService(DrugSnapshotService.class).generateDrugSnapshots(p, null);
+		List<DrugSnapshot> actual = Context.getService(DrugSnapshotService.class).getDrugSnapshots(null);
+
+		assertEquals(1, actual.size());
+		assertEquals(makeDate("17 Oct 1975"), actual.get(0).getDateTaken());
+	}
+
+	/**
+	 * @verifies return the latest snapshot taken on or before the date
+	 * @see DrugSnapshotService#getDrugSnapshotOnDate(org.openmrs.Person, java.util.Date)
+	 */
+	@Test
+	public void getDrugSnapshotOnDate_shouldReturnTheLatestSnapshotTakenOnOrBeforeTheDate() throws Exception {
+		Patient p = Context.getPatientService().getPatient(2);
+		Context.getService(DrugSnapshotService.class).generateDrugSnapshots(p, null);
+		DrugSnapshotService service = Context.getService(DrugSnapshotService.class);
+
+		assertNull(service.getDrugSnapshotOnDate(p, makeDate("15 Oct 1975")));
+		assertEquals(makeDate("16 Oct 1975"), service.getDrugSnapshotOnDate(p, makeDate("16 Oct 1975")).getDateTaken());
+		assertEquals(makeDate("18 Oct 1975"), service.getDrugSnapshotOnDate(p, makeDate("1 Jan 2000")).getDateTaken());
+	}
+
+	/**
+	 * @verifies return the concept ids of the latest snapshot taken on or before the date
+	 * @see DrugSnapshotService#getActiveDrugs(org.openmrs.Person, java.util.Date)
+	 */
+	@Test
+	public void getActiveDrugs_shouldReturnTheConceptIdsOfTheLatestSnapshotTakenOnOrBeforeTheDate() throws Exception {
+		Patient p = Context.getPatientService().getPatient(2);
+		Context.getService(DrugSnapshotService.class).generateDrugSnapshots(p, null);
+		DrugSnapshotService service = Context.getService(DrugSnapshotService.class);
+
+		assertEquals(ConceptIdSet.of(new int[]{88, 792}), service.getActiveDrugs(p, makeDate("16 Oct 1975")));
+		assertEquals(ConceptIdSet.of(new int[]{792}), service.getActiveDrugs(p, makeDate("17 Oct 1975")));
+		assertTrue(service.getActiveDrugs(p, makeDate("1 Jan 2000")).isEmpty());
+	}
+
+	/**
+	 * @verifies return an empty set if the person has no snapshot on or before the date
+	 * @see DrugSnapshotService#getActiveDrugs(org.openmrs.Person, java.util.Date)
+	 */
+	@Test
+	public void getActiveDrugs_shouldReturnAnEmptySetIfThePersonHasNoSnapshotOnOrBeforeTheDate() throws Exception {
+		Patient p = Context.getPatientService().getPatient(2);
+		Context.getService(DrugSnapshotService.class).generateDrugSnapshots(p, null);
+
+		assertTrue(Context.getService(DrugSnapshotService.class).getActiveDrugs(p, makeDate("15 Oct 1975")).isEmpty());
+	}
+
+	/**
+	 * @verifies return the concept ids of every snapshot
+	 * @see DrugSnapshotService#getDrugSnapshotConceptIds(java.util.Collection)
+	 */
+	@Test
+	public void getDrugSnapshotConceptIds_shouldReturnTheConceptIdsOfEverySnapshot() throws Exception {
+		DrugSnapshotService service = Context.getService(DrugSnapshotService.class);
+		service.generateDrugSnapshots(null, null);
+
+		List<DrugSnapshot> snapshots = service.getDrugSnapshots((Properties) null);
+		List<Integer> ids = new ArrayList<Integer>();
+		for (DrugSnapshot snapshot : snapshots) {
+			ids.add(snapshot.getDrugSnapshotId());
+		}
+		Map<Integer, ConceptIdSet> actual = service.getDrugSnapshotConceptIds(ids);
+
+		assertEquals(5, actual.size());
+		for (DrugSnapshot snapshot : snapshots) {
+			assertEquals(ConceptIdSet.of(snapshot.getConcepts()), actual.get(snapshot.getDrugSnapshotId()));
+		}
+	}
+
+	/**
+	 * @verifies return the active drugs of every cohort member
+	 * @see DrugSnapshotService#getActiveDrugs(org.openmrs.Cohort, java.util.Date)
+	 */
+	@Test
+	public void getActiveDrugs_shouldReturnTheActiveDrugsOfEveryCohortMember() throws Exception {
+		Context.getService(DrugSnapshotService.class).generateDrugSnapshots(null, null);
+
+		Cohort cohort = new Cohort();
+		cohort.addMember(1);
+		cohort.addMember(2);
+		cohort.addMember(7);
+		Map<Integer, ConceptIdSet> actual = Context.getService(DrugSnapshotService.class)
+				.getActiveDrugs(cohort, makeDate("16 Oct 1975"));
+
+		assertEquals(3, actual.size());
+		assertTrue(actual.get(1).isEmpty());
+		assertEquals(ConceptIdSet.of(new int[]{88, 792}), actual.get(2));
+		assertTrue(actual.get(7).isEmpty());
+
+		actual = Context.getService(DrugSnapshotService.class).getActiveDrugs(cohort, makeDate("18 Oct 1975"));
+
+		assertEquals(ConceptIdSet.of(new int[]{792}), actual.get(1));
+		assertTrue(actual.get(2).isEmpty());
+		assertTrue(actual.get(7).isEmpty());
+	}
+
+	/**
+	 * @verifies return people whose latest snapshot on or before the date contains all of the drugs
+	 * @see DrugSnapshotService#getCohortOnDrugs(java.util.Collection, java.util.Date)
+	 */
+	@Test
+	public void getCohortOnDrugs_shouldReturnPeopleWhoseLatestSnapshotOnOrBeforeTheDateContainsAllOfTheDrugs()
+			throws Exception {
+		Context.getService(DrugSnapshotService.class).generateDrugSnapshots(null, null);
+		DrugSnapshotService service = Context.getService(DrugSnapshotService.class);
+
+		Set<Concept> drugs = new HashSet<Concept>();
+		drugs.add(Context.getConceptService().getConcept(792));
+
+		assertEquals(0, service.getCohortOnDrugs(drugs, makeDate("15 Oct 1975")).size());
+		assertEquals(2, service.getCohortOnDrugs(drugs, makeDate("17 Oct 1975")).size());
+		Cohort actual = service.getCohortOnDrugs(drugs, makeDate("18 Oct 1975"));
+		assertEquals(1, actual.size());
+		assertTrue(actual.contains(1));
+
+		drugs.add(Context.getConceptService().getConcept(88));
+
+		actual = service.getCohortOnDrugs(drugs, makeDate("16 Oct 1975"));
+		assertEquals(1, actual.size());
+		assertTrue(actual.contains(2));
+		assertEquals(0, service.getCohortOnDrugs(drugs, makeDate("17 Oct 1975")).size());
+	}
+
+	/**
+	 * @verifies throw an APIException if no drugs are given
+	 * @see DrugSnapshotService#getCohortOnDrugs(java.util.Collection, java.util.Date)
+	 */
+	@Test(expected = APIException.class)
+	public void getCohortOnDrugs_shouldThrowAnAPIExceptionIfNoDrugsAreGiven() throws Exception {
+		Context.getService(DrugSnapshotService.class).getCohortOnDrugs(new HashSet<Concept>(), makeDate("17 Oct 1975"));
+	}
+
+	/**
+	 * @verifies return people whose latest snapshot on or before the date contains all of the regimen drugs
+	 * @see DrugSnapshotService#getCohortOnRegimen(Regimen, java.util.Date)
+	 */
+	@Test
+	public void getCohortOnRegimen_shouldReturnPeopleWhoseLatestSnapshotOnOrBeforeTheDateContainsAllOfTheRegimenDrugs()
+			throws Exception {
+		Context.getService(DrugSnapshotService.class).generateDrugSnapshots(null, null);
+		Regimen regimen = new Regimen();
+		regimen.addDrug(Context.getConceptService().getConcept(792));
+		regimen.addDrug(Context.getConceptService().getConcept(88));
+
+		Cohort actual = Context.getService(DrugSnapshotService.class).getCohortOnRegimen(regimen, makeDate("16 Oct 1975"));
+
+		assertEquals(1, actual.size());
+		assertTrue(actual.contains(2));
+	}
+
+	/**
+	 * @verifies return the snapshots after the given one ordered by person, date taken and id
+	 * @see DrugSnapshotService#getDrugSnapshotPage(java.util.Properties, DrugSnapshot, int)
+	 */
+	@Test
+	public void getDrugSnapshotPage_shouldReturnTheSnapshotsAfterTheGivenOneOrderedByPersonDateTakenAndId()
+			throws Exception {
+		Context.getService(DrugSnapshotService.class).generateDrugSnapshots(null, null);
+		DrugSnapshotService service = Context.getService(DrugSnapshotService.class);
+
+		List<String> visited = new ArrayList<String>();
+		List<DrugSnapshot> page = service.getDrugSnapshotPage(null, null, 2);
+		while (!page.isEmpty()) {
+			for (DrugSnapshot snapshot : page) {
+				visited.add(snapshot.getPerson().getPersonId() + ":" + snapshot.getDateTaken().getTime());
+			}
+			page = service.getDrugSnapshotPage(null, page.get(page.size() - 1), 2);
+		}
+
+		assertEquals(Arrays.asList(
+				"1:" + makeDate("17 Oct 1975").getTime(),
+				"1:" + makeDate("18 Oct 1975").getTime(),
+				"2:" + makeDate("16 Oct 1975").getTime(),
+				"2:" + makeDate("17 Oct 1975").getTime(),
+				"2:" + makeDate("18 Oct 1975").getTime()), visited);
+	}
+
+	/**
+	 * @verifies not return more snapshots than the limit in params
+	 * @see DrugSnapshotService#getDrugSnapshotPage(java.util.Properties, DrugSnapshot, int)
+	 */
+	@Test
+	public void getDrugSnapshotPage_shouldNotReturnMoreSnapshotsThanTheLimitInParams() throws Exception {
+		Context.getService(DrugSnapshotService.class).generateDrugSnapshots(null, null);
+		DrugSnapshotService service = Context.getService(DrugSnapshotService.class);
+		Properties params = new Properties();
+
+		params.put("limit", 3);
+		assertEquals(3, service.getDrugSnapshotPage(params, null, 4).size());
+
+		params.put("limit", 4);
+		assertEquals(2, service.getDrugSnapshotPage(params, null, 2).size());
+	}
+
+	/**
+	 * @verifies visit snapshots ordered by person, date taken and id
+	 * @see DrugSnapshotService#visitDrugSnapshots(java.util.Properties, ResultVisitor)
+	 */
+	@Test
+	public void visitDrugSnapshots_shouldVisitSnapshotsOrderedByPersonDateTakenAndId() throws Exception {
+		Context.getService(DrugSnapshotService.class).generateDrugSnapshots(null, null);
+		DrugSnapshotService service = Context.getService(DrugSnapshotService.class);
+
+		final List<Integer> visited = new ArrayList<Integer>();
+		service.visitDrugSnapshots(null, new ResultVisitor<DrugSnapshot>() {
+			@Override
+			public boolean visit(DrugSnapshot result) {
+				visited.add(result.getDrugSnapshotId());
+				return true;
+			}
+		});
+
+		List<Integer> expected = new ArrayList<Integer>();
+		for (DrugSnapshot snapshot : service.getDrugSnapshotPage(null, null, 10)) {
+			expected.add(snapshot.getDrugSnapshotId());
+		}
+		assertEquals(5, visited.size());
+		assertEquals(expected, visited);
+	}
+
+	/**
+	 * @verifies return snapshots matching every field set on the query
+	 * @see DrugSnapshotService#getDrugSnapshots(DrugSnapshotQuery)
+	 */
+	@Test
+	public void getDrugSnapshots_shouldReturnSnapshotsMatchingEveryFieldSetOnTheQuery() throws Exception {
+		Context.getService(DrugSnapshotService.class).generateDrugSnapshots(null, null);
+		DrugSnapshotService service = Context.getService(DrugSnapshotService.class);
+
+		DrugSnapshotQuery query = new DrugSnapshotQuery();
+		query.setPerson(Context.getPatientService().getPatient(2));
+		query.setSince(makeDate("17 Oct 1975"));
+		List<DrugSnapshot> actual = service.getDrugSnapshots(query);
+
+		assertEquals(2, actual.size());
+		assertEquals(makeDate("17 Oct 1975"), actual.get(0).getDateTaken());
+		assertEquals(makeDate("18 Oct 1975"), actual.get(1).getDateTaken());
+
+		query = new DrugSnapshotQuery();
+		query.setDrugs(Collections.singleton(Context.getConceptService().getConcept(88)));
+		actual = service.getDrugSnapshots(query);
+
+		assertEquals(1, actual.size());
+		assertEquals(2, (int) actual.get(0).getPerson().getPersonId());
+		assertEquals(makeDate("16 Oct 1975"), actual.get(0).getDateTaken());
+	}
+
+	/**
+	 * @verifies return each snapshot containing any of the drugs once
+	 * @see DrugSnapshotService#getDrugSnapshots(java.util.Properties)
+	 */
+	@Test
+	public void getDrugSnapshots_shouldReturnEachSnapshotContainingAnyOfTheDrugsOnce() throws Exception {
+		Context.getService(DrugSnapshotService.class).generateDrugSnapshots(null, null);
+
+		Set<Concept> drugs = new HashSet<Concept>();
+		drugs.add(Context.getConceptService().getConcept(792));
+		drugs.add(Context.getConceptService().getConcept(88));
+
+		Properties params = new Properties();
+		params.put("drugs", drugs);
+		List<DrugSnapshot> actual = Context.getService(DrugSnapshotService.class).getDrugSnapshots(params);
+
+		// patient 2's snapshot on the 16th holds both drugs, but is only returned once
+		assertEquals(4, actual.size());
+		assertEquals(4, new HashSet<DrugSnapshot>(actual).size());
+	}
+
+	/**
+	 * @verifies return only snapshots containing all of the allDrugs drugs
+	 * @see DrugSnapshotService#getDrugSnapshots(java.util.Properties)
+	 */
+	@Test
+	public void getDrugSnapshots_shouldReturnOnlySnapshotsContainingAllOfTheAllDrugsDrugs() throws Exception {
+		Context.getService(DrugSnapshotService.class).generateDrugSnapshots(null, null);
+
+		Set<Concept> drugs = new HashSet<Concept>();
+		drugs.add(Context.getConceptService().getConcept(792));
+		drugs.add(Context.getConceptService().getConcept(88));
+
+		Properties params = new Properties();
+		params.put("allDrugs", drugs);
+		List<DrugSnapshot> actual = Context.getService(DrugSnapshotService.class).getDrugSnapshots(params);
+
+		assertEquals(1, actual.size());
+		assertEquals(2, (int) actual.get(0).getPerson().getPersonId());
+		assertEquals(makeDate("16 Oct 1975"), actual.get(0).getDateTaken());
+	}
+
+	/**
+	 * @verifies count each matching snapshot once
+	 * @see DrugSnapshotService#getDrugSnapshotCount(DrugSnapshotQuery)
+	 */
+	@Test
+	public void getDrugSnapshotCount_shouldCountEachMatchingSnapshotOnce() throws Exception {
+		Context.getService(DrugSnapshotService.class).generateDrugSnapshots(null, null);
+		DrugSnapshotService service = Context.getService(DrugSnapshotService.class);
+
+		Set<Concept> drugs = new HashSet<Concept>();
+		drugs.add(Context.getConceptService().getConcept(792));
+		drugs.add(Context.getConceptService().getConcept(88));
+
+		DrugSnapshotQuery query = new DrugSnapshotQuery();
+		assertEquals(5, service.getDrugSnapshotCount(query));
+
+		query.setDrugs(drugs);
+		query.setLimit(1);
+		assertEquals(4, service.getDrugSnapshotCount(query));
+
+		query.setDrugs(null);
+		query.setAllDrugs(drugs);
+		assertEquals(1, service.getDrugSnapshotCount(query));
+	}
+
+	/**
+	 * @verifies return summaries of the snapshots matching the query
+	 * @see DrugSnapshotService#getDrugSnapshotSummaries(DrugSnapshotQuery)
+	 */
+	@Test
+	public void getDrugSnapshotSummaries_shouldReturnSummariesOfTheSnapshotsMatchingTheQuery() throws Exception {
+		Context.getService(DrugSnapshotService.class).generateDrugSnapshots(null, null);
+
+		List<DrugSnapshotSummary> actual = Context.getService(DrugSnapshotService.class)
+				.getDrugSnapshotSummaries(new DrugSnapshotQuery());
+
+		assertEquals(5, actual.size());
+		assertEquals(1, (int) actual.get(0).getPersonId());
+		assertEquals(makeDate("17 Oct 1975"), actual.get(0).getDateTaken());
+		assertEquals(ConceptIdSet.of(new int[]{792}), actual.get(0).getConceptIds());
+		// patient 1 stays on the same drugs, so both summaries share the set
+		assertTrue(actual.get(0).getConceptIds() == actual.get(1).getConceptIds());
+		assertEquals(2, (int) actual.get(2).getPersonId());
+		assertEquals(ConceptIdSet.of(new int[]{88, 792}), actual.get(2).getConceptIds());
+		assertTrue(actual.get(4).getConceptIds().isEmpty());
+	}
+
+	/**
+	 * @verifies return only snapshots with exactly the drugSet drugs
+	 * @see DrugSnapshotService#getDrugSnapshots(java.util.Properties)
+	 */
+	@Test
+	public void getDrugSnapshots_shouldReturnOnlySnapshotsWithExactlyTheDrugSetDrugs() throws Exception {
+		Context.getService(DrugSnapshotService.class).generateDrugSnapshots(null, null);
+
+		Set<Concept> drugs = new HashSet<Concept>();
+		drugs.add(Context.getConceptService().getConcept(792));
+		drugs.add(Context.getConceptService().getConcept(88));
+
+		Properties params = new Properties();
+		params.put("drugSet", drugs);
+		List<DrugSnapshot> actual = Context.getService(DrugSnapshotService.class).getDrugSnapshots(params);
+
+		assertFalse(actual.isEmpty());
+		for (DrugSnapshot ds : actual) {
+			assertEquals(drugs, ds.getConcepts());
+		}
+	}
+
+	/**
+	 * @verifies return people with a snapshot containing exactly the drugs
+	 * @see DrugSnapshotService#getCohortWithDrugSet(java.util.Collection)
+	 */
+	@Test
+	public void getCohortWithDrugSet_shouldReturnPeopleWithASnapshotContainingExactlyTheDrugs() throws Exception {
+		Context.getService(DrugSnapshotService.class).generateDrugSnapshots(Context.getPatientService().getPatient(2), null);
+
+		Set<Concept> drugs = new HashSet<Concept>();
+		drugs.add(Context.getConceptService().getConcept(792));
+		drugs.add(Context.getConceptService().getConcept(88));
+		Cohort actual = Context.getService(DrugSnapshotService.class).getCohortWithDrugSet(drugs);
+
+		assertEquals(1, actual.size());
+		assertTrue(actual.contains(2));
+
+		drugs.remove(Context.getConceptService().getConcept(792));
+		assertTrue(Context.getService(DrugSnapshotService.class).getCohortWithDrugSet(drugs).isEmpty());
+	}
+
+	/**
+	 * @verifies not return people whose snapshot only shares the fingerprint of the drugs
+	 * @see DrugSnapshotService#getCohortWithDrugSet(java.util.Collection)
+	 */
+	@Test
+	public void getCohortWithDrugSet_shouldNotReturnPeopleWhoseSnapshotOnlySharesTheFingerprintOfTheDrugs() throws Exception {
+		Context.getService(DrugSnapshotService.class).generateDrugSnapshots(null, null);
+
+		Set<Concept> drugs = new HashSet<Concept>();
+		drugs.add(Context.getConceptService().getConcept(792));
+		drugs.add(Context.getConceptService().getConcept(88));
+
+		// give patient 1's snapshots, which only hold 792, the fingerprint of both drugs as a collision would
+		Context.flushSession();
+		Context.getAdministrationService().executeSQL("UPDATE drughistory_drugsnapshot SET drug_fingerprint = "
+				+ DrugSetFingerprint.of(drugs) + " WHERE person_id = 1", false);
+
+		Cohort actual = Context.getService(DrugSnapshotService.class).getCohortWithDrugSet(drugs);
+		assertEquals(1, actual.size());
+		assertTrue(actual.contains(2));
+
+		Properties params = new Properties();
+		params.put("drugSet", drugs);
+		for (DrugSnapshot ds : Context.getService(DrugSnapshotService.class).getDrugSnapshots(params)) {
+			assertEquals(2, (int) ds.getPerson().getPersonId());
+		}
+	}
+
+	/**
+	 * @verifies fill in the fingerprint of snapshots without one
+	 * @see DrugSnapshotService#updateDrugFingerprints()
+	 */
+	@Test
+	public void updateDrugFingerprints_shouldFillInTheFingerprintOfSnapshotsWithoutOne() throws Exception {
+		Context.getService(DrugSnapshotService.class).generateDrugSnapshots(null, null);
+		Context.flushSession();
+		Context.getAdministrationService().executeSQL("UPDATE drughistory_drugsnapshot SET drug_fingerprint = NULL", false);
+
+		Set<Concept> drugs = Collections.singleton(Context.getConceptService().getConcept(792));
+		assertTrue(Context.getService(DrugSnapshotService.class).getCohortWithDrugSet(drugs).isEmpty());
+
+		assertEquals(5, Context.getService(DrugSnapshotService.class).updateDrugFingerprints());
+		assertEquals(0, Context.getService(DrugSnapshotService.class).updateDrugFingerprints());
+
+		Cohort actual = Context.getService(DrugSnapshotService.class).getCohortWithDrugSet(drugs);
+		assertEquals(2, actual.size());
+	}
+
+	/**
+	 * @verifies generate the same snapshots as the serial generation
+	 * @see DrugSnapshotService#generateDrugSnapshots(java.util.Date, int)
+	 */
+	@Test
+	@NotTransactional
+	public void generateDrugSnapshots_shouldGenerateTheSameSnapshotsAsTheSerialGeneration() throws Exception {
+		// ranges run in worker transactions, so the events must be committed for them to see them
+		try {
+			getConnection().commit();
+			DrugSnapshotService service = Context.getService(DrugSnapshotService.class);
+			service.generateDrugSnapshots(null, null);
+			List<String> expected = describeAllDrugSnapshots();
+
+			// a leftover snapshot of someone without events, above every person with events
+			Context.getAdministrationService().executeSQL("INSERT INTO drughistory_drugsnapshot" +
+					" (person_id, date_taken, uuid) VALUES (7, '1975-10-16', 'a7bc2b5e-4f1a-4c4e-9d61-2f0e5b1d3c88')", false);
+
+			GenerationSummary summary = service.generateDrugSnapshots(null, 2);
+
+			// persons 1 and 2 each get a range of their own
+			assertFalse(summary.hasFailures());
+			assertEquals(2, summary.getEntries().size());
+			assertEquals(5, expected.size());
+			assertEquals(expected, describeAllDrugSnapshots());
+		} finally {
+			deleteAllData();
+		}
+	}
+
+	private List<String> describeAllDrugSnapshots() {
+		List<String> described = new ArrayList<String>();
+		for (DrugSnapshot snapshot : Context.getService(DrugSnapshotService.class).getDrugSnapshots((Properties) null)) {
+			described.add(snapshot.getPerson().getPersonId() + ":" + snapshot.getDateTaken().getTime() + ":"
+					+ ConceptIdSet.of(snapshot.getConcepts()));
+		}
+		Collections.sort(described);
+		return described;
+	}
+
 	private Date makeDate(String date) {
 		try {
 			return new SimpleDateFormat("d MMM yyyy", Locale.ENGLISH).parse(date);
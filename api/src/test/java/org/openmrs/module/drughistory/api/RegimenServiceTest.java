@@ -16,17 +16,23 @@ package org.openmrs.module.drughistory.api;
 
 import org.junit.Assert;
 import org.junit.Test;
+import org.openmrs.Cohort;
 import org.openmrs.Concept;
 import org.openmrs.api.APIException;
 import org.openmrs.api.context.Context;
 import org.openmrs.module.drughistory.DrugSnapshot;
 import org.openmrs.module.drughistory.Regimen;
+import org.openmrs.module.drughistory.RegimenCatalog;
 import org.openmrs.test.BaseModuleContextSensitiveTest;
 import org.springframework.test.annotation.ExpectedException;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Properties;
 import java.util.Set;
 
 import static org.hamcrest.core.Is.is;
@@ -52,7 +58,7 @@ public class RegimenServiceTest extends BaseModuleContextSensitiveTest {
 
 		Assert.assertThat(actual.size(), is(1));
 		Assert.assertThat(actual.get(0).getName(), is("A"));
-		Assert.assertFalse(actual.contains(r));
+		Assert.assertFalse(getRegimenIds(actual).contains(r.getRegimenId()));
 	}
 
 	/**
@@ -73,7 +79,7 @@ public class RegimenServiceTest extends BaseModuleContextSensitiveTest {
 
 		Assert.assertThat(actual.size(), is(1));
 		Assert.assertThat(actual.get(0).getName(), is("A"));
-		Assert.assertFalse(actual.contains(r));
+		Assert.assertFalse(getRegimenIds(actual).contains(r.getRegimenId()));
 	}
 
 	/**
@@ -93,7 +99,80 @@ public class RegimenServiceTest extends BaseModuleContextSensitiveTest {
 		List<Regimen> actual = Context.getService(RegimenService.class).getAllRegimens(true);
 
 		Assert.assertThat(actual.size(), is(2));
-		Assert.assertTrue(actual.contains(r));
+		Assert.assertTrue(getRegimenIds(actual).contains(r.getRegimenId()));
+	}
+
+	/**
+	 * @verifies return copies that can be changed without affecting the catalog
+	 * @see RegimenService#getAllRegimens(Boolean)
+	 */
+	@Test
+	public void getAllRegimens_shouldReturnCopiesThatCanBeChangedWithoutAffectingTheCatalog() throws Exception {
+		Regimen r = new Regimen("A", "A Desc", Regimen.LINE_FIRST, Regimen.AGE_ADULT, null);
+		r.addDrug(Context.getConceptService().getConcept(3));
+		Context.getService(RegimenService.class).saveRegimen(r);
+
+		Regimen copy = Context.getService(RegimenService.class).getAllRegimens(false).get(0);
+		copy.setName("B");
+		copy.addDrug(Context.getConceptService().getConcept(88));
+
+		Regimen cached = Context.getService(RegimenService.class).getRegimenCatalog().getRegimens(false).get(0);
+		Assert.assertNotSame(copy, cached);
+		Assert.assertThat(cached.getName(), is("A"));
+		Assert.assertThat(cached.getDrugs().size(), is(1));
+		Assert.assertThat(Context.getService(RegimenService.class).getAllRegimens(false).get(0).getName(), is("A"));
+	}
+
+	/**
+	 * @verifies return copies whose audit users are set by id
+	 * @see RegimenService#getAllRegimens(Boolean)
+	 */
+	@Test
+	public void getAllRegimens_shouldReturnCopiesWhoseAuditUsersAreSetById() throws Exception {
+		Regimen r = new Regimen("A", "A Desc", Regimen.LINE_FIRST, Regimen.AGE_ADULT, null);
+		r.addDrug(Context.getConceptService().getConcept(3));
+		Context.getService(RegimenService.class).saveRegimen(r);
+
+		Regimen copy = Context.getService(RegimenService.class).getAllRegimens(false).get(0);
+		Regimen cached = Context.getService(RegimenService.class).getRegimenCatalog().getRegimens(false).get(0);
+		assertNotNull(copy.getCreator());
+		Assert.assertNotSame(cached.getCreator(), copy.getCreator());
+		assertEquals(Context.getAuthenticatedUser().getUserId(), copy.getCreator().getUserId());
+		Assert.assertNull(copy.getRetiredBy());
+	}
+
+	/**
+	 * @verifies return the regimens whose drugs are all among the drugs
+	 * @see RegimenService#getRegimens(java.util.Properties)
+	 */
+	@Test
+	public void getRegimens_shouldReturnTheRegimensWhoseDrugsAreAllAmongTheDrugs() throws Exception {
+		RegimenService service = Context.getService(RegimenService.class);
+		Regimen a = new Regimen("A", "A Desc", Regimen.LINE_FIRST, Regimen.AGE_ADULT, null);
+		a.addDrug(Context.getConceptService().getConcept(3));
+		service.saveRegimen(a);
+		Regimen b = new Regimen("B", "B Desc", Regimen.LINE_FIRST, Regimen.AGE_ADULT, null);
+		b.addDrug(Context.getConceptService().getConcept(3));
+		b.addDrug(Context.getConceptService().getConcept(88));
+		service.saveRegimen(b);
+		Regimen c = new Regimen("C", "C Desc", Regimen.LINE_FIRST, Regimen.AGE_ADULT, null);
+		c.addDrug(Context.getConceptService().getConcept(792));
+		service.saveRegimen(c);
+
+		Properties params = new Properties();
+		Set<Concept> drugs = new HashSet<Concept>();
+		drugs.add(Context.getConceptService().getConcept(3));
+		drugs.add(Context.getConceptService().getConcept(88));
+		params.put("drugs", drugs);
+		List<Regimen> actual = service.getRegimens(params);
+
+		assertEquals(Arrays.asList(a.getRegimenId(), b.getRegimenId()), getRegimenIds(actual));
+		Assert.assertSame(service.getRegimen(a.getRegimenId()), actual.get(0));
+
+		drugs.clear();
+		drugs.add(Context.getConceptService().getConcept(5089));
+		Assert.assertTrue(service.getRegimens(params).isEmpty());
+		assertEquals(3, service.getRegimens(null).size());
 	}
 
 	/**
@@ -334,4 +413,211 @@ public class RegimenServiceTest extends BaseModuleContextSensitiveTest {
 		assertEquals(1, actual.size());
 		assertEquals("C", actual.get(0).getName());
 	}
+
+	/**
+	 * @verifies return every regimen whose drugs are all in the snapshot in regimen order
+	 * @see RegimenService#getRegimensFromSnapshot(org.openmrs.module.drughistory.DrugSnapshot)
+	 */
+	@Test
+	public void getRegimensFromSnapshot_shouldReturnEveryRegimenWhoseDrugsAreAllInTheSnapshotInRegimenOrder() throws Exception {
+		Set<Concept> drugs = new HashSet<Concept>();
+		drugs.add(Context.getConceptService().getConcept(3));
+		drugs.add(Context.getConceptService().getConcept(88));
+		drugs.add(Context.getConceptService().getConcept(792));
+
+		Context.getService(RegimenService.class).saveRegimen(
+				new Regimen("A", "A Desc", Regimen.LINE_FIRST, Regimen.AGE_ADULT, new HashSet<Concept>(drugs)));
+
+		drugs.clear();
+		drugs.add(Context.getConceptService().getConcept(11));
+		drugs.add(Context.getConceptService().getConcept(12));
+
+		Context.getService(RegimenService.class).saveRegimen(
+				new Regimen("B", "B Desc", Regimen.LINE_FIRST, Regimen.AGE_ADULT, new HashSet<Concept>(drugs)));
+
+		drugs.clear();
+		drugs.add(Context.getConceptService().getConcept(3));
+		drugs.add(Context.getConceptService().getConcept(88));
+
+		Context.getService(RegimenService.class).saveRegimen(
+				new Regimen("C", "C Desc", Regimen.LINE_FIRST, Regimen.AGE_ADULT, new HashSet<Concept>(drugs)));
+
+		DrugSnapshot ds = new DrugSnapshot();
+		ds.addConcept(Context.getConceptService().getConcept(3));
+		ds.addConcept(Context.getConceptService().getConcept(88));
+		ds.addConcept(Context.getConceptService().getConcept(792));
+		ds.addConcept(Context.getConceptService().getConcept(11));
+
+		List<Regimen> actual = Context.getService(RegimenService.class).getRegimensFromSnapshot(ds);
+
+		assertNotNull(actual);
+		assertEquals(2, actual.size());
+		assertEquals("A", actual.get(0).getName());
+		assertEquals("C", actual.get(1).getName());
+	}
+
+	/**
+	 * @verifies reflect regimens saved after it was loaded
+	 * @see RegimenService#getRegimenCatalog()
+	 */
+	@Test
+	public void getRegimenCatalog_shouldReflectRegimensSavedAfterItWasLoaded() throws Exception {
+		int before = Context.getService(RegimenService.class).getRegimenCatalog().getRegimens(true).size();
+
+		Context.getService(RegimenService.class).saveRegimen(
+				new Regimen("A", "A Desc", Regimen.LINE_FIRST, Regimen.AGE_ADULT, null));
+
+		RegimenCatalog catalog = Context.getService(RegimenService.class).getRegimenCatalog();
+		Assert.assertThat(catalog.getRegimens(true).size(), is(before + 1));
+		Assert.assertThat(catalog.getVersion(), is(Context.getService(RegimenService.class).getRegimenCatalogVersion()));
+	}
+
+	/**
+	 * @verifies change the drug sets digest only when regimen drugs change
+	 * @see RegimenService#getRegimenCatalog()
+	 */
+	@Test
+	public void getRegimenCatalog_shouldChangeTheDrugSetsDigestOnlyWhenRegimenDrugsChange() throws Exception {
+		Regimen r = new Regimen("A", "A Desc", Regimen.LINE_FIRST, Regimen.AGE_ADULT, null);
+		r.addDrug(Context.getConceptService().getConcept(3));
+		Context.getService(RegimenService.class).saveRegimen(r);
+		long before = Context.getService(RegimenService.class).getRegimenCatalog().getDrugSetsDigest();
+
+		r.setDescription("A new description");
+		Context.getService(RegimenService.class).saveRegimen(r);
+		Assert.assertEquals(before, Context.getService(RegimenService.class).getRegimenCatalog().getDrugSetsDigest());
+
+		r.addDrug(Context.getConceptService().getConcept(88));
+		Context.getService(RegimenService.class).saveRegimen(r);
+		Assert.assertTrue(Context.getService(RegimenService.class).getRegimenCatalog().getDrugSetsDigest() != before);
+	}
+
+	/**
+	 * @verifies change when a regimen is saved
+	 * @see RegimenService#getRegimenCatalogVersion()
+	 */
+	@Test
+	public void getRegimenCatalogVersion_shouldChangeWhenARegimenIsSaved() throws Exception {
+		long before = Context.getService(RegimenService.class).getRegimenCatalogVersion();
+
+		Context.getService(RegimenService.class).saveRegimen(
+				new Regimen("A", "A Desc", Regimen.LINE_FIRST, Regimen.AGE_ADULT, null));
+
+		Assert.assertTrue(Context.getService(RegimenService.class).getRegimenCatalogVersion() != before);
+	}
+
+	/**
+	 * @verifies return the regimens matching each snapshot
+	 * @see RegimenService#getRegimensFromSnapshots(java.util.Collection)
+	 */
+	@Test
+	public void getRegimensFromSnapshots_shouldReturnTheRegimensMatchingEachSnapshot() throws Exception {
+		Regimen a = new Regimen("A", "A Desc", Regimen.LINE_FIRST, Regimen.AGE_ADULT, null);
+		a.addDrug(Context.getConceptService().getConcept(3));
+		a.addDrug(Context.getConceptService().getConcept(88));
+		Context.getService(RegimenService.class).saveRegimen(a);
+
+		Regimen b = new Regimen("B", "B Desc", Regimen.LINE_FIRST, Regimen.AGE_ADULT, null);
+		b.addDrug(Context.getConceptService().getConcept(11));
+		Context.getService(RegimenService.class).saveRegimen(b);
+
+		DrugSnapshot first = new DrugSnapshot();
+		first.addConcept(Context.getConceptService().getConcept(3));
+		first.addConcept(Context.getConceptService().getConcept(88));
+
+		DrugSnapshot second = new DrugSnapshot();
+		second.addConcept(Context.getConceptService().getConcept(3));
+		second.addConcept(Context.getConceptService().getConcept(11));
+
+		Map<DrugSnapshot, List<Regimen>> actual = Context.getService(RegimenService.class)
+				.getRegimensFromSnapshots(Arrays.asList(first, second));
+
+		assertEquals(2, actual.size());
+		assertEquals(1, actual.get(first).size());
+		assertEquals("A", actual.get(first).get(0).getName());
+		assertEquals(1, actual.get(second).size());
+		assertEquals("B", actual.get(second).get(0).getName());
+	}
+
+	/**
+	 * @verifies return the regimens matching each snapshot of the cohort within the dates
+	 * @see RegimenService#getRegimensFromSnapshots(org.openmrs.Cohort, java.util.Date, java.util.Date)
+	 */
+	@Test
+	public void getRegimensFromSnapshots_shouldReturnTheRegimensMatchingEachSnapshotOfTheCohortWithinTheDates()
+			throws Exception {
+		executeDataSet("datasets/drugevents-drugsnapshotservice.xml");
+		Context.getService(DrugSnapshotService.class).generateDrugSnapshots(null, null);
+
+		Regimen r = new Regimen("A", "A Desc", Regimen.LINE_FIRST, Regimen.AGE_ADULT, null);
+		r.addDrug(Context.getConceptService().getConcept(792));
+		Context.getService(RegimenService.class).saveRegimen(r);
+
+		Cohort cohort = new Cohort();
+		cohort.addMember(2);
+		Map<DrugSnapshot, List<Regimen>> actual = Context.getService(RegimenService.class)
+				.getRegimensFromSnapshots(cohort, null, null);
+
+		// person 2 is on 792 on the 16th and 17th and on nothing on the 18th
+		assertEquals(3, actual.size());
+		for (Map.Entry<DrugSnapshot, List<Regimen>> e : actual.entrySet()) {
+			assertEquals(2, (int) e.getKey().getPerson().getPersonId());
+			boolean on792 = !e.getKey().getConcepts().isEmpty();
+			assertEquals(on792 ? Arrays.asList(r.getRegimenId()) : new ArrayList<Integer>(), getRegimenIds(e.getValue()));
+		}
+	}
+
+	/**
+	 * @verifies tag every snapshot containing all of the regimen drugs
+	 * @see RegimenService#retagDrugSnapshots(org.openmrs.module.drughistory.Regimen)
+	 */
+	@Test
+	public void retagDrugSnapshots_shouldTagEverySnapshotContainingAllOfTheRegimenDrugs() throws Exception {
+		executeDataSet("datasets/drugevents-drugsnapshotservice.xml");
+		Context.getService(DrugSnapshotService.class).generateDrugSnapshots(Context.getPatientService().getPatient(2), null);
+
+		Regimen r = new Regimen("A", "A Desc", Regimen.LINE_FIRST, Regimen.AGE_ADULT, null);
+		r.addDrug(Context.getConceptService().getConcept(792));
+		Context.getService(RegimenService.class).saveRegimen(r);
+
+		assertEquals(2, Context.getService(RegimenService.class).retagDrugSnapshots(r));
+
+		for (DrugSnapshot ds : Context.getService(DrugSnapshotService.class).getDrugSnapshots(null)) {
+			assertEquals(ds.getConcepts().contains(Context.getConceptService().getConcept(792)),
+					ds.getRegimens().contains(r));
+		}
+	}
+
+	/**
+	 * @verifies return only regimens with exactly the given drugs
+	 * @see RegimenService#getRegimensWithDrugSet(java.util.Collection)
+	 */
+	@Test
+	public void getRegimensWithDrugSet_shouldReturnOnlyRegimensWithExactlyTheGivenDrugs() throws Exception {
+		Set<Concept> drugs = new HashSet<Concept>();
+		drugs.add(Context.getConceptService().getConcept(3));
+		drugs.add(Context.getConceptService().getConcept(88));
+
+		Regimen expected = Context.getService(RegimenService.class).saveRegimen(
+				new Regimen("A", "A Desc", Regimen.LINE_FIRST, Regimen.AGE_ADULT, new HashSet<Concept>(drugs)));
+
+		drugs.add(Context.getConceptService().getConcept(792));
+		Context.getService(RegimenService.class).saveRegimen(
+				new Regimen("B", "B Desc", Regimen.LINE_FIRST, Regimen.AGE_ADULT, new HashSet<Concept>(drugs)));
+
+		drugs.remove(Context.getConceptService().getConcept(792));
+		List<Regimen> actual = Context.getService(RegimenService.class).getRegimensWithDrugSet(drugs);
+
+		assertEquals(1, actual.size());
+		assertEquals(expected.getRegimenId(), actual.get(0).getRegimenId());
+		assertNotNull(expected.getDrugFingerprint());
+	}
+
+	private static List<Integer> getRegimenIds(List<Regimen> regimens) {
+		List<Integer> ids = new ArrayList<Integer>();
+		for (Regimen r : regimens) {
+			ids.add(r.getRegimenId());
+		}
+		return ids;
+	}
 }
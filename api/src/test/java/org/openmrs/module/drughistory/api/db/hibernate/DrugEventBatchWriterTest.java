@@ -0,0 +1,96 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.drughistory.api.db.hibernate;
+
+import org.hibernate.SessionFactory;
+import org.junit.Assert;
+import org.junit.Test;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.drughistory.DrugEvent;
+import org.openmrs.module.drughistory.DrugEventType;
+import org.openmrs.test.BaseModuleContextSensitiveTest;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.test.annotation.ExpectedException;
+
+import java.util.Date;
+
+/**
+ * Tests {@link DrugEventBatchWriter}.
+ */
+public class DrugEventBatchWriterTest extends BaseModuleContextSensitiveTest {
+
+	@Autowired
+	private SessionFactory sessionFactory;
+
+	/**
+	 * @verifies send a batch each time it is full and the rest on finish
+	 * @see DrugEventBatchWriter#finish()
+	 */
+	@Test
+	public void finish_shouldSendABatchEachTimeItIsFullAndTheRestOnFinish() throws Exception {
+		DrugEventBatchWriter writer = new DrugEventBatchWriter(sessionFactory.getCurrentSession().connection(), 2);
+		try {
+			Date today = new Date();
+			writer.add(1, null, 88, null, today, DrugEventType.START, null);
+			writer.add(1, null, 792, null, today, DrugEventType.START, null);
+			Assert.assertEquals(1, writer.getBatchCount());
+			Assert.assertEquals(2, writer.getRowsWritten());
+
+			DrugEvent drugEvent = new DrugEvent();
+			drugEvent.setPerson(Context.getPersonService().getPerson(2));
+			drugEvent.setConcept(Context.getConceptService().getConcept(88));
+			drugEvent.setDateOccurred(today);
+			drugEvent.setEventType(DrugEventType.STOP);
+			writer.add(drugEvent);
+			Assert.assertNotNull(drugEvent.getUuid());
+
+			Assert.assertEquals(3, writer.finish());
+			Assert.assertEquals(2, writer.getBatchCount());
+		} finally {
+			writer.close();
+		}
+
+		Assert.assertEquals(3, count("SELECT COUNT(*) FROM drughistory_drugevent"));
+		Assert.assertEquals(1, count("SELECT COUNT(*) FROM drughistory_drugevent WHERE person_id = 2"
+				+ " AND concept_id = 88 AND drug_event_type = 'STOP'"));
+	}
+
+	/**
+	 * @verifies discard rows still queued when closed without finishing
+	 * @see DrugEventBatchWriter#close()
+	 */
+	@Test
+	public void close_shouldDiscardRowsStillQueuedWhenClosedWithoutFinishing() throws Exception {
+		DrugEventBatchWriter writer = new DrugEventBatchWriter(sessionFactory.getCurrentSession().connection(), 10);
+		writer.add(1, null, 88, null, new Date(), DrugEventType.START, null);
+		writer.close();
+
+		Assert.assertEquals(0, writer.getRowsWritten());
+		Assert.assertEquals(0, count("SELECT COUNT(*) FROM drughistory_drugevent"));
+	}
+
+	/**
+	 * @verifies fail for a batch size below one
+	 * @see DrugEventBatchWriter#DrugEventBatchWriter(java.sql.Connection, int)
+	 */
+	@Test
+	@ExpectedException(IllegalArgumentException.class)
+	public void DrugEventBatchWriter_shouldFailForABatchSizeBelowOne() throws Exception {
+		new DrugEventBatchWriter(sessionFactory.getCurrentSession().connection(), 0);
+	}
+
+	private int count(String sql) {
+		return ((Number) sessionFactory.getCurrentSession().createSQLQuery(sql).uniqueResult()).intValue();
+	}
+}
@@ -0,0 +1,238 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.drughistory.api.db.hibernate;
+
+import org.hibernate.SessionFactory;
+import org.junit.Assert;
+import org.junit.Test;
+import org.openmrs.Concept;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.drughistory.ConceptIdSet;
+import org.openmrs.module.drughistory.DrugSnapshot;
+import org.openmrs.module.drughistory.DrugSnapshotRecord;
+import org.openmrs.module.drughistory.Regimen;
+import org.openmrs.module.drughistory.RegimenMatcher;
+import org.openmrs.module.drughistory.api.RegimenService;
+import org.openmrs.test.BaseModuleContextSensitiveTest;
+import org.springframework.beans.factory.annotation.Autowired;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.util.Collections;
+import java.util.GregorianCalendar;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Tests {@link DrugSnapshotBatchWriter}.
+ */
+public class DrugSnapshotBatchWriterTest extends BaseModuleContextSensitiveTest {
+
+	@Autowired
+	private SessionFactory sessionFactory;
+
+	/**
+	 * @verifies match regimens once for consecutive snapshots sharing a drug set
+	 * @see DrugSnapshotBatchWriter#finish()
+	 */
+	@Test
+	public void finish_shouldMatchRegimensOnceForConsecutiveSnapshotsSharingADrugSet() throws Exception {
+		Set<Concept> drugs = new HashSet<Concept>();
+		drugs.add(Context.getConceptService().getConcept(792));
+		Regimen r = new Regimen("A", "A Desc", Regimen.LINE_FIRST, Regimen.AGE_ADULT, drugs);
+		Context.getService(RegimenService.class).saveRegimen(r);
+		sessionFactory.getCurrentSession().flush();
+
+		final int[] matches = new int[1];
+		RegimenMatcher matcher = new RegimenMatcher(Collections.singletonList(r)) {
+			@Override
+			public List<Regimen> getMatchingRegimens(ConceptIdSet conceptIds) {
+				matches[0]++;
+				return super.getMatchingRegimens(conceptIds);
+			}
+		};
+
+		ConceptIdSet first = ConceptIdSet.of(new int[]{792});
+		ConceptIdSet second = first.with(88);
+
+		DrugSnapshotBatchWriter writer = new DrugSnapshotBatchWriter(sessionFactory.getCurrentSession().connection(), 10,
+				matcher);
+		try {
+			writer.add(new DrugSnapshotRecord(1, null, new GregorianCalendar(1975, 9, 16).getTime(), first));
+			writer.add(new DrugSnapshotRecord(1, null, new GregorianCalendar(1975, 9, 17).getTime(), first));
+			writer.add(new DrugSnapshotRecord(1, null, new GregorianCalendar(1975, 9, 18).getTime(), second));
+			Assert.assertEquals(3, writer.finish());
+		} finally {
+			writer.close();
+		}
+
+		Assert.assertEquals(2, matches[0]);
+		Number tagged = (Number) sessionFactory.getCurrentSession().createSQLQuery("SELECT COUNT(*)" +
+				" FROM drughistory_snapshot_regimen WHERE regimen_id = :regimenId")
+				.setInteger("regimenId", r.getRegimenId())
+				.uniqueResult();
+		Assert.assertEquals(3, tagged.intValue());
+	}
+
+	/**
+	 * @verifies set the generated ids and the regimens on entity snapshots
+	 * @see DrugSnapshotBatchWriter#finish()
+	 */
+	@Test
+	public void finish_shouldSetTheGeneratedIdsAndTheRegimensOnEntitySnapshots() throws Exception {
+		Regimen r = saveRegimen(792);
+		DrugSnapshot first = newSnapshot(16, 792, 88);
+		DrugSnapshot second = newSnapshot(17, 792);
+
+		// a snapshot per batch, so the driver returns a generated key for each
+		DrugSnapshotBatchWriter writer = new DrugSnapshotBatchWriter(sessionFactory.getCurrentSession().connection(), 1,
+				new RegimenMatcher(Collections.singletonList(r)));
+		try {
+			writer.add(first);
+			writer.add(second);
+			Assert.assertEquals(2, writer.finish());
+			Assert.assertEquals(2, writer.getBatchCount());
+		} finally {
+			writer.close();
+		}
+
+		assertWritten(first, 88, 792);
+		assertWritten(second, 792);
+		Assert.assertEquals(Collections.singleton(r), first.getRegimens());
+		Assert.assertEquals(Collections.singleton(r), second.getRegimens());
+	}
+
+	/**
+	 * @verifies look the ids up by uuid when the driver returns no generated keys
+	 * @see DrugSnapshotBatchWriter#finish()
+	 */
+	@Test
+	public void finish_shouldLookTheIdsUpByUuidWhenTheDriverReturnsNoGeneratedKeys() throws Exception {
+		DrugSnapshot first = newSnapshot(16, 792, 88);
+		DrugSnapshot second = newSnapshot(17, 792);
+		DrugSnapshot third = newSnapshot(18);
+
+		DrugSnapshotBatchWriter writer = new DrugSnapshotBatchWriter(
+				withoutGeneratedKeys(sessionFactory.getCurrentSession().connection()), 10);
+		try {
+			writer.add(first);
+			writer.add(second);
+			writer.add(third);
+			Assert.assertEquals(3, writer.finish());
+			Assert.assertEquals(1, writer.getBatchCount());
+		} finally {
+			writer.close();
+		}
+
+		assertWritten(first, 88, 792);
+		assertWritten(second, 792);
+		assertWritten(third);
+	}
+
+	private Regimen saveRegimen(int conceptId) {
+		Set<Concept> drugs = new HashSet<Concept>();
+		drugs.add(Context.getConceptService().getConcept(conceptId));
+		Regimen r = new Regimen("A", "A Desc", Regimen.LINE_FIRST, Regimen.AGE_ADULT, drugs);
+		Context.getService(RegimenService.class).saveRegimen(r);
+		sessionFactory.getCurrentSession().flush();
+		return r;
+	}
+
+	private DrugSnapshot newSnapshot(int day, int... conceptIds) {
+		DrugSnapshot snapshot = new DrugSnapshot();
+		snapshot.setPerson(Context.getPersonService().getPerson(2));
+		snapshot.setDateTaken(new GregorianCalendar(1975, 9, day).getTime());
+		for (int conceptId : conceptIds) {
+			snapshot.addConcept(Context.getConceptService().getConcept(conceptId));
+		}
+		return snapshot;
+	}
+
+	/**
+	 * checks the snapshot got the id of its row, and that its concept rows were written
+	 */
+	@SuppressWarnings("unchecked")
+	private void assertWritten(DrugSnapshot snapshot, Integer... conceptIds) {
+		Assert.assertNotNull(snapshot.getDrugSnapshotId());
+		Object uuid = sessionFactory.getCurrentSession().createSQLQuery("SELECT uuid FROM drughistory_drugsnapshot" +
+				" WHERE drugsnapshot_id = :id").setInteger("id", snapshot.getDrugSnapshotId()).uniqueResult();
+		Assert.assertEquals(snapshot.getUuid(), uuid);
+
+		List<Number> written = sessionFactory.getCurrentSession().createSQLQuery("SELECT concept_id" +
+				" FROM drughistory_drugsnapshot_concept WHERE drugsnapshot_id = :id ORDER BY concept_id")
+				.setInteger("id", snapshot.getDrugSnapshotId()).list();
+		Assert.assertEquals(conceptIds.length, written.size());
+		for (int i = 0; i < conceptIds.length; i++) {
+			Assert.assertEquals(conceptIds[i].intValue(), written.get(i).intValue());
+		}
+	}
+
+	/**
+	 * wraps the connection so the statements it prepares return no generated keys, like drivers that do not support
+	 * them for batches
+	 */
+	private static Connection withoutGeneratedKeys(final Connection connection) {
+		return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(), new Class[]{Connection.class},
+				new InvocationHandler() {
+					public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+						Object result = invokeOn(connection, method, args);
+						if (result instanceof PreparedStatement) {
+							return withoutGeneratedKeys((PreparedStatement) result);
+						}
+						return result;
+					}
+				});
+	}
+
+	private static PreparedStatement withoutGeneratedKeys(final PreparedStatement statement) {
+		return (PreparedStatement) Proxy.newProxyInstance(PreparedStatement.class.getClassLoader(),
+				new Class[]{PreparedStatement.class}, new InvocationHandler() {
+					public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+						if (method.getName().equals("getGeneratedKeys")) {
+							return emptyResultSet();
+						}
+						return invokeOn(statement, method, args);
+					}
+				});
+	}
+
+	private static ResultSet emptyResultSet() {
+		return (ResultSet) Proxy.newProxyInstance(ResultSet.class.getClassLoader(), new Class[]{ResultSet.class},
+				new InvocationHandler() {
+					public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+						if (method.getName().equals("next")) {
+							return false;
+						}
+						if (method.getName().equals("close")) {
+							return null;
+						}
+						throw new UnsupportedOperationException(method.getName());
+					}
+				});
+	}
+
+	private static Object invokeOn(Object target, Method method, Object[] args) throws Throwable {
+		try {
+			return method.invoke(target, args);
+		} catch (InvocationTargetException e) {
+			throw e.getTargetException();
+		}
+	}
+}
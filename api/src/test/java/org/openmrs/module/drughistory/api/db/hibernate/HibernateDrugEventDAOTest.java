@@ -0,0 +1,204 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.drughistory.api.db.hibernate;
+
+import org.hibernate.SessionFactory;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.openmrs.Concept;
+import org.openmrs.Obs;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.drughistory.DrugEvent;
+import org.openmrs.module.drughistory.DrugEventTrigger;
+import org.openmrs.module.drughistory.DrugEventType;
+import org.openmrs.test.BaseModuleContextSensitiveTest;
+import org.springframework.beans.factory.annotation.Autowired;
+
+import java.util.Arrays;
+import java.util.Date;
+
+/**
+ * Tests {@link HibernateDrugEventDAO}.
+ */
+public class HibernateDrugEventDAOTest extends BaseModuleContextSensitiveTest {
+
+	@Autowired
+	private SessionFactory sessionFactory;
+
+	private HibernateDrugEventDAO dao;
+
+	@Before
+	public void setUp() throws Exception {
+		dao = new HibernateDrugEventDAO();
+		dao.setSessionFactory(sessionFactory);
+		executeDataSet("datasets/drugevents-drugsnapshotservice.xml");
+	}
+
+	/**
+	 * @verifies insert new events and update existing ones
+	 * @see HibernateDrugEventDAO#saveDrugEvents(java.util.List, int)
+	 */
+	@Test
+	public void saveDrugEvents_shouldInsertNewEventsAndUpdateExistingOnes() throws Exception {
+		DrugEvent existing = (DrugEvent) sessionFactory.getCurrentSession().get(DrugEvent.class, 3);
+		existing.setEventType(DrugEventType.STOP);
+
+		DrugEvent added = new DrugEvent();
+		added.setPerson(Context.getPersonService().getPerson(1));
+		added.setConcept(Context.getConceptService().getConcept(88));
+		added.setDateOccurred(new Date());
+		added.setEventType(DrugEventType.START);
+
+		dao.saveDrugEvents(Arrays.asList(existing, added), 1);
+		sessionFactory.getCurrentSession().flush();
+		sessionFactory.getCurrentSession().clear();
+
+		Assert.assertEquals(9, count("SELECT COUNT(*) FROM drughistory_drugevent"));
+		Assert.assertEquals(1, count("SELECT COUNT(*) FROM drughistory_drugevent WHERE drugevent_id = 3"
+				+ " AND drug_event_type = 'STOP'"));
+		Assert.assertEquals(1, count("SELECT COUNT(*) FROM drughistory_drugevent WHERE uuid = '" + added.getUuid() + "'"));
+	}
+
+	/**
+	 * @verifies process all obs on the first run and move the checkpoint to the last obs
+	 * @see HibernateDrugEventDAO#generateNewDrugEventsFromTrigger(DrugEventTrigger, boolean)
+	 */
+	@Test
+	public void generateNewDrugEventsFromTrigger_shouldProcessAllObsOnTheFirstRunAndMoveTheCheckpointToTheLastObs() throws Exception {
+		DrugEventTrigger trigger = saveWeightTrigger();
+		Assert.assertNull(dao.getDrugEventCheckpoint(trigger));
+
+		//There are three obs with concept_id 5089
+		Assert.assertEquals(3, dao.generateNewDrugEventsFromTrigger(trigger, false));
+		Assert.assertEquals(maxObsId(), dao.getDrugEventCheckpoint(trigger));
+		Assert.assertEquals(3, count("SELECT COUNT(*) FROM drughistory_drugevent WHERE concept_id = 5089"));
+	}
+
+	/**
+	 * @verifies generate nothing when there are no new obs
+	 * @see HibernateDrugEventDAO#generateNewDrugEventsFromTrigger(DrugEventTrigger, boolean)
+	 */
+	@Test
+	public void generateNewDrugEventsFromTrigger_shouldGenerateNothingWhenThereAreNoNewObs() throws Exception {
+		DrugEventTrigger trigger = saveWeightTrigger();
+		dao.generateNewDrugEventsFromTrigger(trigger, false);
+
+		Assert.assertEquals(0, dao.generateNewDrugEventsFromTrigger(trigger, false));
+		Assert.assertEquals(0, dao.generateNewDrugEventsFromTrigger(trigger, true));
+		Assert.assertEquals(maxObsId(), dao.getDrugEventCheckpoint(trigger));
+		Assert.assertEquals(3, count("SELECT COUNT(*) FROM drughistory_drugevent WHERE concept_id = 5089"));
+	}
+
+	/**
+	 * @verifies only generate events for the new obs
+	 * @see HibernateDrugEventDAO#generateNewDrugEventsFromTrigger(DrugEventTrigger, boolean)
+	 */
+	@Test
+	public void generateNewDrugEventsFromTrigger_shouldOnlyGenerateEventsForTheNewObs() throws Exception {
+		DrugEventTrigger trigger = saveWeightTrigger();
+		dao.generateNewDrugEventsFromTrigger(trigger, false);
+
+		Obs obs = saveWeightObs();
+
+		Assert.assertEquals(1, dao.generateNewDrugEventsFromTrigger(trigger, true));
+		Assert.assertEquals(obs.getObsId(), dao.getDrugEventCheckpoint(trigger));
+		Assert.assertEquals(4, count("SELECT COUNT(*) FROM drughistory_drugevent WHERE concept_id = 5089"));
+	}
+
+	/**
+	 * @verifies pick up obs below the checkpoint that have no events yet
+	 * @see HibernateDrugEventDAO#generateNewDrugEventsFromTrigger(DrugEventTrigger, boolean)
+	 */
+	@Test
+	public void generateNewDrugEventsFromTrigger_shouldPickUpObsBelowTheCheckpointThatHaveNoEventsYet() throws Exception {
+		DrugEventTrigger trigger = saveWeightTrigger();
+		dao.generateNewDrugEventsFromTrigger(trigger, false);
+
+		// as if the obs had committed after a run that already moved the checkpoint past it
+		Obs obs = saveWeightObs();
+		sessionFactory.getCurrentSession().createSQLQuery("UPDATE drughistory_drugeventtrigger_checkpoint" +
+				" SET last_obs_id = :lastObsId").setInteger("lastObsId", obs.getObsId() + 1).executeUpdate();
+
+		Assert.assertEquals(1, dao.generateNewDrugEventsFromTrigger(trigger, false));
+		Assert.assertEquals(obs.getObsId() + 1, (int) dao.getDrugEventCheckpoint(trigger));
+		Assert.assertEquals(4, count("SELECT COUNT(*) FROM drughistory_drugevent WHERE concept_id = 5089"));
+	}
+
+	/**
+	 * @verifies write an event for every obs when they are read and written in several round trips
+	 * @see HibernateDrugEventDAO#generateDrugEventsFromTrigger(org.openmrs.Person, DrugEventTrigger, java.util.Date)
+	 */
+	@Test
+	public void generateDrugEventsFromTrigger_shouldWriteAnEventForEveryObsWhenTheyAreReadAndWrittenInSeveralRoundTrips()
+			throws Exception {
+		DrugEventTrigger trigger = saveWeightTrigger();
+		saveWeightObs();
+		saveWeightObs();
+		int obs = count("SELECT COUNT(*) FROM obs WHERE concept_id = 5089 AND voided = 0");
+		Assert.assertTrue(obs > 2);
+
+		// one obs per fetch and two events per batch, so rows are streamed in and written while the cursor is open
+		dao.setFetchSize(1);
+		dao.setBatchSize(2);
+		Assert.assertEquals(obs, dao.generateDrugEventsFromTrigger(null, trigger, null));
+
+		Assert.assertEquals(obs, count("SELECT COUNT(*) FROM drughistory_drugevent WHERE concept_id = 5089"
+				+ " AND drug_event_type = 'START'"));
+		Assert.assertEquals(obs, count("SELECT COUNT(DISTINCT uuid) FROM drughistory_drugevent WHERE concept_id = 5089"));
+	}
+
+	/**
+	 * @verifies generate events from the questions when the custom query is blank
+	 * @see HibernateDrugEventDAO#generateDrugEventsFromTrigger(org.openmrs.Person, DrugEventTrigger, java.util.Date)
+	 */
+	@Test
+	public void generateDrugEventsFromTrigger_shouldGenerateEventsFromTheQuestionsWhenTheCustomQueryIsBlank()
+			throws Exception {
+		DrugEventTrigger trigger = saveWeightTrigger();
+		trigger.setCustomQuery(" ");
+		int obs = count("SELECT COUNT(*) FROM obs WHERE concept_id = 5089 AND voided = 0");
+
+		Assert.assertEquals(obs, dao.generateDrugEventsFromTrigger(null, trigger, null));
+		Assert.assertEquals(obs, count("SELECT COUNT(*) FROM drughistory_drugevent WHERE concept_id = 5089"));
+	}
+
+	private DrugEventTrigger saveWeightTrigger() {
+		Concept q = Context.getConceptService().getConcept(5089);
+		DrugEventTrigger trigger = new DrugEventTrigger();
+		trigger.addQuestion(q);
+		trigger.setEventConcept(q);
+		trigger.setEventType(DrugEventType.START);
+		sessionFactory.getCurrentSession().save(trigger);
+		sessionFactory.getCurrentSession().flush();
+		return trigger;
+	}
+
+	private Obs saveWeightObs() {
+		Obs obs = new Obs(Context.getPersonService().getPerson(7), Context.getConceptService().getConcept(5089), new Date(),
+				Context.getLocationService().getLocation(1));
+		obs.setValueNumeric(70.0);
+		Context.getObsService().saveObs(obs, null);
+		Context.flushSession();
+		return obs;
+	}
+
+	private Integer maxObsId() {
+		return count("SELECT MAX(obs_id) FROM obs");
+	}
+
+	private int count(String sql) {
+		return ((Number) sessionFactory.getCurrentSession().createSQLQuery(sql).uniqueResult()).intValue();
+	}
+}